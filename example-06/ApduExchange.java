@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.nio.ByteBuffer;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+
+
+/**
+ * APDU exchange without per-command allocations.
+ *
+ * Commands are mutable templates backed by their own direct buffers, responses
+ * are received into one direct buffer of the exchange and read in place, both
+ * go through CardChannel.transmit(ByteBuffer, ByteBuffer). Templates and
+ * responses are reused, so once templates are created, traffic allocates
+ * nothing in this layer (the PC/SC provider may still copy internally).
+ *
+ *     var readBinary = new ApduExchange.Template("FF B0 00 00 10");
+ *     var exchange = new ApduExchange(channel);
+ *     ...
+ *     readBinary.setP2(block);
+ *     if (exchange.transmit(readBinary) == 0x9000) {
+ *         long balance = exchange.getDataLong(0);
+ *     }
+ *
+ * Exchange and its templates are not thread safe.
+ */
+class ApduExchange {
+    // short APDU response: up to 256 data bytes and SW1 SW2
+    public static final int MAX_RESPONSE_LENGTH = 258;
+
+    private CardChannel channel;
+    private final ByteBuffer response;
+    // read-only view over response data, see getResponseData()
+    private final ByteBuffer responseData;
+    private int responseLength = 0;
+
+    // optional recorder of transmits, see setTrace()
+    private ApduTrace trace;
+    private int traceReader;
+    // start of the next traced transmit, 0 if transmits aren't chained, see chainTrace()
+    private long traceClock;
+    // reader name of JFR events
+    private String reader;
+
+
+    public ApduExchange(CardChannel channel) {
+        this(channel, MAX_RESPONSE_LENGTH);
+    }
+
+    /**
+     * @param channel           card channel
+     * @param maxResponseLength capacity of response buffer, including SW
+     * @throws IllegalArgumentException if capacity is below MAX_RESPONSE_LENGTH,
+     *                                  CardChannel.transmit() rejects such buffers
+     */
+    public ApduExchange(CardChannel channel, int maxResponseLength) {
+        if (maxResponseLength < MAX_RESPONSE_LENGTH) {
+            throw new IllegalArgumentException(String.format("Response buffer must have at least %d bytes", MAX_RESPONSE_LENGTH));
+        }
+        this.channel = channel;
+        this.response = ByteBuffer.allocateDirect(maxResponseLength);
+        this.responseData = response.asReadOnlyBuffer();
+    }
+
+
+    /**
+     * Use the exchange with another channel, e.g. after next card is connected.
+     */
+    public void setChannel(CardChannel channel) {
+        this.channel = channel;
+        responseLength = 0;
+    }
+
+    /**
+     * Reader name reported in pcsc.ApduExchange JFR events, e.g. terminal.getName().
+     */
+    public void setReader(String reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Record every transmit to "trace" as reader "reader", null to stop recording.
+     */
+    public void setTrace(ApduTrace trace, int reader) {
+        this.trace = trace;
+        this.traceReader = reader;
+    }
+
+    /**
+     * Chain traced transmits: the next one starts at "startNanos", e.g. end of
+     * the connect event, every following one starts when the previous ended.
+     * Each transmit then reads the clock once, time spent between transmits
+     * is counted in the next one. 0 stops chaining.
+     */
+    public void chainTrace(long startNanos) {
+        traceClock = startNanos;
+    }
+
+    /**
+     * Returns System.nanoTime() when the last chained transmit ended, start
+     * passed to chainTrace() if there was none.
+     */
+    public long getTraceEnd() {
+        return traceClock;
+    }
+
+    /**
+     * Send command and receive response into the exchange buffer, previous
+     * response is overwritten.
+     * 
+     * @param  command command template
+     * @return         SW of the response
+     * @throws CardException if card operation failed or response has no SW
+     */
+    public int transmit(Template command)
+        throws CardException
+    {
+        if (trace != null) {
+            return tracedTransmit(command);
+        }
+        return doTransmit(command);
+    }
+
+    private int tracedTransmit(Template command)
+        throws CardException
+    {
+        long start = (traceClock != 0) ? traceClock : System.nanoTime();
+        int sw = ApduTrace.FAILED;
+        try {
+            sw = doTransmit(command);
+            return sw;
+        } finally {
+            long end = trace.record(ApduTrace.TRANSMIT, traceReader, command.getHeader(), sw, start);
+            if (traceClock != 0) {
+                traceClock = end;
+            }
+        }
+    }
+
+    private int doTransmit(Template command)
+        throws CardException
+    {
+        response.clear();
+        responseLength = 0;
+        var event = new PcscEvents.ApduExchange();
+        event.begin();
+        int length = 0;
+        try {
+            length = channel.transmit(command.prepare(), response);
+        } finally {
+            // failed transmits are recorded with sw 0
+            if (event.shouldCommit()) {
+                event.reader = reader;
+                event.ins = (command.getHeader() >> 16) & 0xFF;
+                event.sw = (length >= 2) ? response.getShort(length - 2) & 0xFFFF : 0;
+                event.commandLength = command.length;
+                event.responseLength = length;
+                event.commit();
+            }
+        }
+        if (length < 2) {
+            throw new CardException("Response APDU must be at least 2 bytes long");
+        }
+        responseLength = length;
+        return getSW();
+    }
+
+    /**
+     * Returns SW of the last response as int, e.g. 0x9000.
+     *
+     * Response getters throw IllegalStateException if there is no response,
+     * i.e. before the first successful transmit() and after setChannel().
+     */
+    public int getSW() {
+        return (getSW1() << 8) | getSW2();
+    }
+
+    public int getSW1() {
+        checkResponse();
+        return response.get(responseLength - 2) & 0xFF;
+    }
+
+    public int getSW2() {
+        checkResponse();
+        return response.get(responseLength - 1) & 0xFF;
+    }
+
+    /**
+     * Returns number of data bytes of the last response, SW excluded.
+     */
+    public int getDataLength() {
+        checkResponse();
+        return responseLength - 2;
+    }
+
+    /**
+     * Returns byte of the last response data.
+     */
+    public byte getDataByte(int index) {
+        checkData(index, 1);
+        return response.get(index);
+    }
+
+    /**
+     * Returns 8 bytes of the last response data starting at "offset" as
+     * big-endian long, see Util.bytesToLong().
+     */
+    public long getDataLong(int offset) {
+        checkData(offset, 8);
+        return response.getLong(offset);
+    }
+
+    /**
+     * Copy data of the last response into "dst" starting at "offset".
+     * 
+     * @return number of copied bytes
+     */
+    public int getData(byte[] dst, int offset) {
+        int length = getDataLength();
+        response.get(0, dst, offset, length);
+        return length;
+    }
+
+    /**
+     * Returns read-only view over data of the last response: position is 0,
+     * limit is data length. The view is shared and valid until next transmit().
+     */
+    public ByteBuffer getResponseData() {
+        responseData.clear().limit(getDataLength());
+        return responseData;
+    }
+
+    private void checkResponse() {
+        if (responseLength == 0) {
+            throw new IllegalStateException("no response");
+        }
+    }
+
+    private void checkData(int offset, int length) {
+        if (offset < 0 || offset + length > getDataLength()) {
+            throw new IndexOutOfBoundsException(String.format("Bytes [%d, %d) are out of response data of %d bytes", offset, offset + length, getDataLength()));
+        }
+    }
+
+
+    /**
+     * Mutable short command APDU: header, optional Lc with data and optional Le.
+     * Data field keeps template length, setters change bytes in place.
+     */
+    static class Template {
+        private final ByteBuffer bytes;
+        private final int length;
+        // offset of data field, -1 if command has no data
+        private final int dataOffset;
+        private final int dataLength;
+        // offset of Le, -1 if command has no Le
+        private final int leOffset;
+        // CLA INS P1 P2, kept in sync with bytes so tracing doesn't read the direct buffer
+        private int header;
+
+        /**
+         * Create template from hex string like "FF B0 00 00 10".
+         */
+        public Template(String hex) {
+            this(Util.toByteArray(hex));
+        }
+
+        /**
+         * Create template from command bytes, bytes are copied.
+         */
+        public Template(byte[] command) {
+            if (command.length < 4) {
+                throw new IllegalArgumentException("APDU must be at least 4 bytes long");
+            }
+            length = command.length;
+            if (length > 5) {
+                dataOffset = 5;
+                dataLength = command[4] & 0xFF;
+                if (dataLength == 0 || 5 + dataLength > length || length > 5 + dataLength + 1) {
+                    throw new IllegalArgumentException(String.format("Lc %d doesn't match APDU length %d", dataLength, length));
+                }
+                leOffset = (length > 5 + dataLength) ? length - 1 : -1;
+            } else {
+                dataOffset = -1;
+                dataLength = 0;
+                leOffset = (length == 5) ? 4 : -1;
+            }
+            bytes = ByteBuffer.allocateDirect(length);
+            bytes.put(command).flip();
+            header = bytes.getInt(0);
+        }
+
+        public Template setP1(int p1) {
+            bytes.put(2, (byte)p1);
+            header = (header & 0xFFFF00FF) | ((p1 & 0xFF) << 8);
+            return this;
+        }
+
+        public Template setP2(int p2) {
+            bytes.put(3, (byte)p2);
+            header = (header & 0xFFFFFF00) | (p2 & 0xFF);
+            return this;
+        }
+
+        /**
+         * Set command byte at "index", e.g. parameter slot of ApduScript.
+         */
+        public Template setByte(int index, byte value) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException(String.format("Byte %d is out of APDU of %d bytes", index, length));
+            }
+            bytes.put(index, value);
+            if (index < 4) {
+                header = bytes.getInt(0);
+            }
+            return this;
+        }
+
+        /**
+         * Set Le: the last byte of commands with Le (0 means 256).
+         */
+        public Template setLe(int le) {
+            if (leOffset < 0) {
+                throw new IllegalStateException("Command has no Le");
+            }
+            bytes.put(leOffset, (byte)le);
+            return this;
+        }
+
+        /**
+         * Returns length of the data field, 0 if command has no data.
+         */
+        public int getDataLength() {
+            return dataLength;
+        }
+
+        /**
+         * Copy src[srcOffset..srcOffset+length) into data field starting at "offset".
+         */
+        public Template setData(int offset, byte[] src, int srcOffset, int length) {
+            checkData(offset, length);
+            bytes.put(dataOffset + offset, src, srcOffset, length);
+            return this;
+        }
+
+        public Template setDataByte(int offset, byte value) {
+            checkData(offset, 1);
+            bytes.put(dataOffset + offset, value);
+            return this;
+        }
+
+        /**
+         * Put big-endian long into data field at "offset", see Util.longToBytes().
+         */
+        public Template setDataLong(int offset, long value) {
+            checkData(offset, 8);
+            bytes.putLong(dataOffset + offset, value);
+            return this;
+        }
+
+        /**
+         * Fill data field with "value".
+         */
+        public Template fillData(byte value) {
+            for (int i=0; i<dataLength; i++) {
+                bytes.put(dataOffset + i, value);
+            }
+            return this;
+        }
+
+        /**
+         * Returns CLA INS P1 P2 as big-endian int.
+         */
+        public int getHeader() {
+            return header;
+        }
+
+        /**
+         * Returns copy of command bytes, e.g. for logging.
+         */
+        public byte[] toBytes() {
+            var res = new byte[length];
+            bytes.get(0, res);
+            return res;
+        }
+
+        // buffer ready for transmit: position 0, limit length
+        private ByteBuffer prepare() {
+            bytes.clear().limit(length);
+            return bytes;
+        }
+
+        private void checkData(int offset, int length) {
+            if (offset < 0 || offset + length > dataLength) {
+                throw new IndexOutOfBoundsException(String.format("Bytes [%d, %d) are out of data field of %d bytes", offset, offset + length, dataLength));
+            }
+        }
+    }
+}
@@ -0,0 +1,560 @@
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import javax.smartcardio.CardException;
+
+
+/**
+ * Precompiled APDU script: a sequence of commands with expected status words
+ * and jumps, executed by ApduExchange.
+ *
+ * Script has one step per line, "#" outside of quotes starts a comment:
+ *
+ *     [label:] command bytes [| clause]...
+ *
+ * Command bytes are hex bytes and parameter slots: "{name}" is one byte,
+ * "{name:8}" is 8 bytes. Clauses are checked in order of appearance:
+ *
+ *     expect 9000                SW of success (default 9000), then next step runs
+ *     on 63xx goto label         jump if SW matches, "x" matches any digit
+ *     on 9000 end                stop successfully if SW matches
+ *     on 6982 fail "message"     stop with failure if SW matches
+ *     fail "message"             failure message for unexpected SW
+ *
+ * Example:
+ *
+ *     auth:   FF 86 00 00 05 01 00 {block} 61 00  | fail "Key B doesn't match."
+ *     read:   FF B0 00 {block} 10                 | on 9000 end
+ *
+ * Script is parsed once by compile(): every step becomes an ApduExchange.Template,
+ * slots are resolved into byte offsets and jumps into step indexes, so run()
+ * does no parsing and no allocations. Execution time of every step is
+ * accumulated, see getStepNanos().
+ *
+ * One run executes at most getMaxSteps() commands, so a jump back to a step
+ * the card keeps answering the same way fails the run instead of looping.
+ *
+ * Slot values are written into templates in place, so script is not thread safe.
+ */
+class ApduScript {
+    // rule actions, non-negative actions are jump targets
+    private static final int END = -1;
+    private static final int FAIL = -2;
+
+    // commands executed by one run, see setMaxSteps()
+    public static final int DEFAULT_MAX_STEPS = 256;
+
+    private final String[] stepNames;
+    private final ApduExchange.Template[] templates;
+    // SW of success of every step
+    private final int[] expectValues;
+    private final int[] expectMasks;
+    // message for unexpected SW of every step, null for default one
+    private final String[] failMessages;
+    // rules of step i are [ruleStarts[i], ruleStarts[i+1])
+    private final int[] ruleStarts;
+    private final int[] ruleValues;
+    private final int[] ruleMasks;
+    private final int[] ruleActions;
+    private final String[] ruleMessages;
+
+    // slot name => index; every slot has a list of (step, offset) occurrences
+    private final HashMap<String, Integer> slotIndexes;
+    private final int[] slotLengths;
+    private final int[][] slotSteps;
+    private final int[][] slotOffsets;
+
+    private final long[] stepNanos;
+    private final long[] stepRuns;
+
+    private int maxSteps = DEFAULT_MAX_STEPS;
+
+    // result of the last run
+    private int sw;
+    private int failedStep = -1;
+    private String failure;
+
+
+    private ApduScript(Compiler c) {
+        int n = c.stepNames.size();
+        stepNames = c.stepNames.toArray(new String[n]);
+        templates = c.templates.toArray(new ApduExchange.Template[n]);
+        expectValues = toArray(c.expectValues);
+        expectMasks = toArray(c.expectMasks);
+        failMessages = c.failMessages.toArray(new String[n]);
+        c.ruleStarts.add(c.ruleValues.size());
+        ruleStarts = toArray(c.ruleStarts);
+        ruleValues = toArray(c.ruleValues);
+        ruleMasks = toArray(c.ruleMasks);
+        ruleActions = new int[c.ruleTargets.size()];
+        for (int i=0; i<ruleActions.length; i++) {
+            var target = c.ruleTargets.get(i);
+            if (target.equals("end")) {
+                ruleActions[i] = END;
+            } else if (target.equals("fail")) {
+                ruleActions[i] = FAIL;
+            } else {
+                ruleActions[i] = c.labels.get(target);
+            }
+        }
+        ruleMessages = c.ruleMessages.toArray(new String[0]);
+
+        slotIndexes = c.slotIndexes;
+        int slots = slotIndexes.size();
+        slotLengths = toArray(c.slotLengths);
+        slotSteps = new int[slots][];
+        slotOffsets = new int[slots][];
+        for (int i=0; i<slots; i++) {
+            slotSteps[i] = toArray(c.slotSteps.get(i));
+            slotOffsets[i] = toArray(c.slotOffsets.get(i));
+        }
+
+        stepNanos = new long[n];
+        stepRuns = new long[n];
+    }
+
+
+    /**
+     * Compile script source.
+     * 
+     * @param  source script text
+     * @return        compiled script
+     * @throws IllegalArgumentException if script is malformed, message has line number
+     */
+    public static ApduScript compile(String source) {
+        var c = new Compiler();
+        var lines = source.split("\n", -1);
+        for (int i=0; i<lines.length; i++) {
+            try {
+                c.compileLine(lines[i]);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(String.format("line %d: %s", i + 1, e.getMessage()));
+            }
+        }
+        if (c.stepNames.isEmpty()) {
+            throw new IllegalArgumentException("Script has no steps");
+        }
+        for (var target : c.ruleTargets) {
+            if (!target.equals("end") && !target.equals("fail") && !c.labels.containsKey(target)) {
+                throw new IllegalArgumentException(String.format("Unknown label \"%s\"", target));
+            }
+        }
+        return new ApduScript(c);
+    }
+
+    /**
+     * Returns index of slot "name" to set its value with set().
+     * 
+     * @throws IllegalArgumentException if script has no such slot
+     */
+    public int slot(String name) {
+        var index = slotIndexes.get(name);
+        if (index == null) {
+            throw new IllegalArgumentException(String.format("Script has no slot \"%s\"", name));
+        }
+        return index;
+    }
+
+    /**
+     * Returns index of step with "label" to start run() from.
+     * 
+     * @throws IllegalArgumentException if script has no such label
+     */
+    public int step(String label) {
+        for (int i=0; i<stepNames.length; i++) {
+            if (label.equals(stepNames[i])) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Script has no label \"%s\"", label));
+    }
+
+    /**
+     * Set slot value: the lowest slot length bytes of "value", big-endian.
+     */
+    public void set(int slot, long value) {
+        int length = slotLengths[slot];
+        for (int i=0; i<slotSteps[slot].length; i++) {
+            var template = templates[slotSteps[slot][i]];
+            int offset = slotOffsets[slot][i];
+            for (int j=0; j<length; j++) {
+                template.setByte(offset + j, (byte)(value >> (8 * (length - 1 - j))));
+            }
+        }
+    }
+
+    /**
+     * Set slot value, "value" must have slot length.
+     */
+    public void set(int slot, byte[] value) {
+        if (value.length != slotLengths[slot]) {
+            throw new IllegalArgumentException(String.format("Slot of %d bytes can't take %d bytes", slotLengths[slot], value.length));
+        }
+        for (int i=0; i<slotSteps[slot].length; i++) {
+            var template = templates[slotSteps[slot][i]];
+            int offset = slotOffsets[slot][i];
+            for (int j=0; j<value.length; j++) {
+                template.setByte(offset + j, value[j]);
+            }
+        }
+    }
+
+    /**
+     * Set maximum number of commands executed by one run, the run fails when
+     * it's reached.
+     */
+    public void setMaxSteps(int maxSteps) {
+        if (maxSteps < 1) {
+            throw new IllegalArgumentException("Script must be allowed at least one step");
+        }
+        this.maxSteps = maxSteps;
+    }
+
+    public int getMaxSteps() {
+        return maxSteps;
+    }
+
+    /**
+     * Run script from the first step, see run(ApduExchange, int).
+     */
+    public boolean run(ApduExchange exchange)
+        throws CardException
+    {
+        return run(exchange, 0);
+    }
+
+    /**
+     * Run script starting at "step" until it ends or fails. Response of the
+     * last executed command stays in the exchange.
+     * 
+     * @param  exchange exchange to send commands with
+     * @param  step     index of the first step, see step()
+     * @return          true on success, false on failure (see getFailure()),
+     *                  including too many executed steps
+     * @throws CardException if card operation failed
+     * @throws IllegalArgumentException if script has no such step
+     */
+    public boolean run(ApduExchange exchange, int step)
+        throws CardException
+    {
+        if (step < 0 || step >= templates.length) {
+            throw new IllegalArgumentException(String.format("Script has no step %d", step));
+        }
+        failedStep = -1;
+        failure = null;
+        int executed = 0;
+        while (step < templates.length) {
+            if (executed == maxSteps) {
+                failedStep = step;
+                failure = String.format("Step %s not run, script executed %d steps already", stepNames[step], maxSteps);
+                return false;
+            }
+            executed++;
+            long start = System.nanoTime();
+            sw = exchange.transmit(templates[step]);
+            stepNanos[step] += System.nanoTime() - start;
+            stepRuns[step]++;
+
+            int next = step + 1;
+            int action = next;
+            String message = null;
+            int r = ruleStarts[step];
+            for (; r<ruleStarts[step+1]; r++) {
+                if ((sw & ruleMasks[r]) == ruleValues[r]) {
+                    action = ruleActions[r];
+                    message = ruleMessages[r];
+                    break;
+                }
+            }
+            if (r == ruleStarts[step+1] && (sw & expectMasks[step]) != expectValues[step]) {
+                action = FAIL;
+                message = failMessages[step];
+            }
+
+            if (action == END) {
+                return true;
+            }
+            if (action == FAIL) {
+                failedStep = step;
+                failure = (message != null) ? message : String.format("Step %s failed: %04X", stepNames[step], sw);
+                return false;
+            }
+            step = action;
+        }
+        return true;
+    }
+
+    /**
+     * Returns SW of the last executed command.
+     */
+    public int getSW() {
+        return sw;
+    }
+
+    /**
+     * Returns failure message of the last run, null if it succeeded.
+     */
+    public String getFailure() {
+        return failure;
+    }
+
+    /**
+     * Returns index of the step failed in the last run, -1 if it succeeded.
+     */
+    public int getFailedStep() {
+        return failedStep;
+    }
+
+    public int getStepCount() {
+        return templates.length;
+    }
+
+    /**
+     * Returns step label or "#n" for steps without label.
+     */
+    public String getStepName(int step) {
+        return stepNames[step];
+    }
+
+    /**
+     * Returns total execution time of the step in all runs, ns.
+     */
+    public long getStepNanos(int step) {
+        return stepNanos[step];
+    }
+
+    /**
+     * Returns number of step executions.
+     */
+    public long getStepRuns(int step) {
+        return stepRuns[step];
+    }
+
+    private static int[] toArray(ArrayList<Integer> list) {
+        var res = new int[list.size()];
+        for (int i=0; i<res.length; i++) {
+            res[i] = list.get(i);
+        }
+        return res;
+    }
+
+
+    /**
+     * Script parser state, collects compiled steps.
+     */
+    private static class Compiler {
+        final ArrayList<String> stepNames = new ArrayList<String>();
+        final HashMap<String, Integer> labels = new HashMap<String, Integer>();
+        final ArrayList<ApduExchange.Template> templates = new ArrayList<ApduExchange.Template>();
+        final ArrayList<Integer> expectValues = new ArrayList<Integer>();
+        final ArrayList<Integer> expectMasks = new ArrayList<Integer>();
+        final ArrayList<String> failMessages = new ArrayList<String>();
+        final ArrayList<Integer> ruleStarts = new ArrayList<Integer>();
+        final ArrayList<Integer> ruleValues = new ArrayList<Integer>();
+        final ArrayList<Integer> ruleMasks = new ArrayList<Integer>();
+        final ArrayList<String> ruleTargets = new ArrayList<String>();
+        final ArrayList<String> ruleMessages = new ArrayList<String>();
+        final HashMap<String, Integer> slotIndexes = new HashMap<String, Integer>();
+        final ArrayList<Integer> slotLengths = new ArrayList<Integer>();
+        final ArrayList<ArrayList<Integer>> slotSteps = new ArrayList<ArrayList<Integer>>();
+        final ArrayList<ArrayList<Integer>> slotOffsets = new ArrayList<ArrayList<Integer>>();
+
+        void compileLine(String line) {
+            var clauses = splitLine(line);
+            if (clauses.size() == 1 && clauses.get(0).isEmpty()) {
+                return;
+            }
+            int step = stepNames.size();
+
+            var command = clauses.get(0);
+            var name = "#" + step;
+            int colon = command.indexOf(':');
+            int brace = command.indexOf('{');
+            if (colon >= 0 && (brace < 0 || colon < brace)) {
+                name = command.substring(0, colon).strip();
+                if (!name.matches("[A-Za-z_][A-Za-z0-9_-]*")) {
+                    throw new IllegalArgumentException(String.format("Bad label \"%s\"", name));
+                }
+                if (labels.containsKey(name)) {
+                    throw new IllegalArgumentException(String.format("Duplicate label \"%s\"", name));
+                }
+                labels.put(name, step);
+                command = command.substring(colon + 1).strip();
+            }
+            stepNames.add(name);
+            templates.add(compileCommand(command, step));
+
+            expectValues.add(0x9000);
+            expectMasks.add(0xFFFF);
+            failMessages.add(null);
+            ruleStarts.add(ruleValues.size());
+            for (int i=1; i<clauses.size(); i++) {
+                compileClause(clauses.get(i), step);
+            }
+        }
+
+        // line without comment split into stripped clauses by "|", quoted
+        // messages may contain both "#" and "|"
+        static ArrayList<String> splitLine(String line) {
+            var clauses = new ArrayList<String>();
+            int start = 0;
+            boolean quoted = false;
+            int end = line.length();
+            for (int i=0; i<end; i++) {
+                char c = line.charAt(i);
+                if (c == '"') {
+                    quoted = !quoted;
+                } else if (!quoted && c == '#') {
+                    end = i;
+                } else if (!quoted && c == '|') {
+                    clauses.add(line.substring(start, i).strip());
+                    start = i + 1;
+                }
+            }
+            if (quoted) {
+                throw new IllegalArgumentException("Unterminated quote");
+            }
+            clauses.add(line.substring(start, end).strip());
+            return clauses;
+        }
+
+        ApduExchange.Template compileCommand(String command, int step) {
+            var bytes = new ArrayList<Byte>();
+            for (var token : command.split("\\s+")) {
+                if (token.startsWith("{") && token.endsWith("}")) {
+                    var slot = token.substring(1, token.length() - 1);
+                    int length = 1;
+                    int colon = slot.indexOf(':');
+                    if (colon >= 0) {
+                        try {
+                            length = Integer.parseInt(slot.substring(colon + 1));
+                        } catch (NumberFormatException e) {
+                            length = 0;
+                        }
+                        slot = slot.substring(0, colon);
+                    }
+                    if (length < 1 || length > 255) {
+                        throw new IllegalArgumentException(String.format("Bad length of slot \"%s\"", token));
+                    }
+                    addSlot(slot, length, step, bytes.size());
+                    for (int i=0; i<length; i++) {
+                        bytes.add((byte)0);
+                    }
+                } else if (token.matches("[0-9A-Fa-f]{2}")) {
+                    bytes.add((byte)Integer.parseInt(token, 16));
+                } else {
+                    throw new IllegalArgumentException(String.format("Bad command byte \"%s\"", token));
+                }
+            }
+            var res = new byte[bytes.size()];
+            for (int i=0; i<res.length; i++) {
+                res[i] = bytes.get(i);
+            }
+            return new ApduExchange.Template(res);
+        }
+
+        void addSlot(String name, int length, int step, int offset) {
+            var index = slotIndexes.get(name);
+            if (index == null) {
+                index = slotIndexes.size();
+                slotIndexes.put(name, index);
+                slotLengths.add(length);
+                slotSteps.add(new ArrayList<Integer>());
+                slotOffsets.add(new ArrayList<Integer>());
+            } else if (slotLengths.get(index) != length) {
+                throw new IllegalArgumentException(String.format("Slot \"%s\" has different lengths", name));
+            }
+            slotSteps.get(index).add(step);
+            slotOffsets.get(index).add(offset);
+        }
+
+        void compileClause(String clause, int step) {
+            var words = clause.split("\\s+", 4);
+            if (words[0].equals("expect") && words.length == 2) {
+                var pattern = parseSW(words[1]);
+                expectValues.set(step, pattern[0]);
+                expectMasks.set(step, pattern[1]);
+            } else if (words[0].equals("fail") && words.length >= 2) {
+                failMessages.set(step, parseMessage(clause.substring(4)));
+            } else if (words[0].equals("on") && words.length >= 3) {
+                var pattern = parseSW(words[1]);
+                String target;
+                String message = null;
+                if (words[2].equals("goto") && words.length == 4) {
+                    target = words[3];
+                } else if (words[2].equals("end") && words.length == 3) {
+                    target = "end";
+                } else if (words[2].equals("fail") && words.length == 4) {
+                    target = "fail";
+                    message = parseMessage(words[3]);
+                } else {
+                    throw new IllegalArgumentException(String.format("Bad rule \"%s\"", clause));
+                }
+                ruleValues.add(pattern[0]);
+                ruleMasks.add(pattern[1]);
+                ruleTargets.add(target);
+                ruleMessages.add(message);
+            } else {
+                throw new IllegalArgumentException(String.format("Bad clause \"%s\"", clause));
+            }
+        }
+
+        // SW pattern like "9000" or "63xx" => {value, mask}
+        static int[] parseSW(String pattern) {
+            if (pattern.length() != 4) {
+                throw new IllegalArgumentException(String.format("Bad SW pattern \"%s\"", pattern));
+            }
+            int value = 0;
+            int mask = 0;
+            for (int i=0; i<4; i++) {
+                char c = pattern.charAt(i);
+                value <<= 4;
+                mask <<= 4;
+                if (c == 'x' || c == 'X') {
+                    continue;
+                }
+                int d = Character.digit(c, 16);
+                if (d < 0) {
+                    throw new IllegalArgumentException(String.format("Bad SW pattern \"%s\"", pattern));
+                }
+                value |= d;
+                mask |= 0xF;
+            }
+            return new int[]{value, mask};
+        }
+
+        static String parseMessage(String s) {
+            s = s.strip();
+            if (s.length() < 2 || !s.startsWith("\"") || !s.endsWith("\"")) {
+                throw new IllegalArgumentException(String.format("Message must be quoted: %s", s));
+            }
+            return s.substring(1, s.length() - 1);
+        }
+    }
+}
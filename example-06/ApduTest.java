@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+
+// Tests of ApduScript and ApduExchange over scripted channel, no card is needed.
+class ApduTest {
+    public static void main(String[] args) {
+        startTest(1);
+        // script with slots, default expectation and "on ... end"
+        try {
+            var script = ApduScript.compile(String.join("\n",
+                "# comment line",
+                "auth:  FF 86 00 00 05 01 00 {block} 61 00  | fail \"Key B doesn't match.\"",
+                "read:  FF B0 00 {block} 10                 | on 9000 end",
+                "       FF D6 00 {block} 01 {value}"));
+            script.set(script.slot("block"), 8);
+            var card = new ScriptedChannel("90 00", "01 02 90 00");
+            var exchange = new ApduExchange(card);
+            boolean passed = script.run(exchange)
+                && script.getFailure() == null && script.getSW() == 0x9000
+                && script.getStepCount() == 3 && script.getStepName(2).equals("#2")
+                && script.getStepRuns(1) == 1 && script.getStepRuns(2) == 0
+                && card.sent.equals(Arrays.asList("FF 86 00 00 05 01 00 08 61 00", "FF B0 00 08 10"))
+                && exchange.getDataLength() == 2;
+            System.out.println(passed ? "PASSED" : "FAILED");
+        } catch (CardException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(2);
+        // jump back to a step the card keeps answering the same way stops at step limit
+        try {
+            var script = ApduScript.compile(String.join("\n",
+                "select:  00 A4 04 00 02 3F 00",
+                "read:    00 B0 00 00 10        | on 6300 goto select"));
+            script.setMaxSteps(5);
+            var card = new ScriptedChannel("90 00", "63 00", "90 00", "63 00", "90 00", "63 00");
+            var exchange = new ApduExchange(card);
+            boolean passed = !script.run(exchange)
+                && card.sent.size() == 5
+                && script.getFailedStep() == 1
+                && script.getFailure().equals("Step read not run, script executed 5 steps already");
+            System.out.println(passed ? "PASSED" : "FAILED");
+        } catch (CardException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(3);
+        // "#" and "|" inside of quoted messages
+        try {
+            var script = ApduScript.compile(String.join("\n",
+                "00 A4 04 00 02 3F 00  | on 6982 fail \"Access denied | see log #1\" | fail \"Not found # 2\"  # comment",
+                "00 B0 00 00 10"));
+            var exchange = new ApduExchange(new ScriptedChannel("69 82", "6A 82"));
+            boolean passed = !script.run(exchange)
+                && script.getFailure().equals("Access denied | see log #1")
+                && !script.run(exchange)
+                && script.getFailure().equals("Not found # 2")
+                && script.getSW() == 0x6A82 && script.getFailedStep() == 0;
+
+            // steps out of script
+            for (int step : new int[] {-1, 2}) {
+                try {
+                    script.run(exchange, step);
+                    passed = false;
+                } catch (IllegalArgumentException e) {
+                    passed = passed && e.getMessage().equals("Script has no step " + step);
+                }
+            }
+            System.out.println(passed ? "PASSED" : "FAILED");
+        } catch (CardException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(4);
+        // malformed scripts
+        var malformed = new String[] {
+            "00 A4 04 00 | fail \"unterminated",
+            "00 A4 04 00 | on 6982 goto nowhere",
+            "00 A4 04 00 | on 69 end",
+            "00 A4 04 00 | fail message",
+            "00 A4 04 00 {slot:0}",
+        };
+        int rejected = 0;
+        for (var source : malformed) {
+            try {
+                ApduScript.compile(source);
+            } catch (IllegalArgumentException e) {
+                rejected++;
+            }
+        }
+        System.out.println((rejected == malformed.length) ? "PASSED" : "FAILED");
+
+        startTest(5);
+        // command templates: Lc and Le found by APDU case
+        {
+            var readBinary = new ApduExchange.Template("FF B0 00 04 10");
+            readBinary.setP2(5).setLe(0x20);
+            var update = new ApduExchange.Template("FF D6 00 04 03 01 02 03");
+            update.setDataByte(2, (byte)0x33);
+            var select = new ApduExchange.Template("00 A4 04 00 02 3F 00 00");
+            select.setData(0, new byte[] {0x2F, 0x01}, 0, 2).setLe(0x10);
+            var noData = new ApduExchange.Template("00 A4 04 00");
+            boolean passed = Util.hexify(readBinary.toBytes()).equals("FF B0 00 05 20")
+                && readBinary.getDataLength() == 0
+                && Util.hexify(update.toBytes()).equals("FF D6 00 04 03 01 02 33")
+                && update.getDataLength() == 3
+                && Util.hexify(select.toBytes()).equals("00 A4 04 00 02 2F 01 10")
+                && select.getHeader() == 0x00A40400;
+            try {
+                update.setLe(1);
+                passed = false;
+            } catch (IllegalStateException e) {
+            }
+            try {
+                noData.setLe(1);
+                passed = false;
+            } catch (IllegalStateException e) {
+            }
+            try {
+                update.setDataLong(0, 1L);
+                passed = false;
+            } catch (IndexOutOfBoundsException e) {
+            }
+
+            var badCommands = new String[] {"00 A4 04", "00 A4 04 00 05 01 02", "00 A4 04 00 00 01", "00 A4 04 00 01 01 02 03"};
+            for (var command : badCommands) {
+                try {
+                    new ApduExchange.Template(command);
+                    passed = false;
+                } catch (IllegalArgumentException e) {
+                }
+            }
+            System.out.println(passed ? "PASSED" : "FAILED");
+        }
+
+        startTest(6);
+        // exchange: response read in place, no response before transmit and after setChannel()
+        try {
+            var card = new ScriptedChannel("00 01 02 03 04 05 06 07 08 09 0A 0B 0C 0D 0E 0F 90 00", "6A");
+            var exchange = new ApduExchange(card);
+            boolean passed = true;
+            try {
+                exchange.getSW();
+                passed = false;
+            } catch (IllegalStateException e) {
+                passed = e.getMessage().equals("no response");
+            }
+
+            var dst = new byte[16];
+            passed = passed && exchange.transmit(new ApduExchange.Template("FF B0 00 04 10")) == 0x9000
+                && exchange.getSW1() == 0x90 && exchange.getSW2() == 0x00
+                && exchange.getDataLength() == 16
+                && exchange.getDataByte(1) == 1
+                && exchange.getDataLong(8) == 0x08090A0B0C0D0E0FL
+                && exchange.getResponseData().remaining() == 16
+                && exchange.getData(dst, 0) == 16 && dst[15] == 0x0F
+                && card.sent.equals(Arrays.asList("FF B0 00 04 10"));
+            try {
+                exchange.getDataLong(9);
+                passed = false;
+            } catch (IndexOutOfBoundsException e) {
+            }
+
+            // response without SW
+            try {
+                exchange.transmit(new ApduExchange.Template("FF B0 00 05 10"));
+                passed = false;
+            } catch (CardException e) {
+            }
+
+            exchange.setChannel(card);
+            try {
+                exchange.getDataLength();
+                passed = false;
+            } catch (IllegalStateException e) {
+            }
+
+            // CardChannel.transmit() rejects response buffers shorter than short APDU response
+            try {
+                new ApduExchange(card, 16);
+                passed = false;
+            } catch (IllegalArgumentException e) {
+            }
+            System.out.println(passed ? "PASSED" : "FAILED");
+        } catch (CardException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+    }
+
+    // every test starts with separator and its number
+    private static void startTest(int number) {
+        System.out.println("--------------------");
+        System.out.printf("Test %d%n", number);
+    }
+
+
+    /**
+     * Channel replaying recorded responses and recording sent commands.
+     */
+    static class ScriptedChannel extends CardChannel {
+        final ArrayList<String> sent = new ArrayList<String>();
+        private final ArrayDeque<byte[]> responses = new ArrayDeque<byte[]>();
+
+        ScriptedChannel(String... responses) {
+            for (var r : responses) {
+                this.responses.add(Util.toByteArray(r));
+            }
+        }
+
+        @Override
+        public Card getCard() {
+            return null;
+        }
+
+        @Override
+        public int getChannelNumber() {
+            return 0;
+        }
+
+        @Override
+        public ResponseAPDU transmit(CommandAPDU command)
+            throws CardException
+        {
+            return new ResponseAPDU(next(command.getBytes()));
+        }
+
+        // raw responses, so malformed ones may be replayed too
+        @Override
+        public int transmit(ByteBuffer command, ByteBuffer response)
+            throws CardException
+        {
+            var bytes = new byte[command.remaining()];
+            command.get(bytes);
+            var r = next(bytes);
+            response.put(r);
+            return r.length;
+        }
+
+        private byte[] next(byte[] command)
+            throws CardException
+        {
+            sent.add(Util.hexify(command));
+            if (responses.isEmpty()) {
+                // card removed
+                throw new CardException("No more responses");
+            }
+            return responses.remove();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
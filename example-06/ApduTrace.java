@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Always-on recorder of card operations: transmit, connect, wait for card and
+ * disconnect. Keeps the last "capacity" events in a ring buffer:
+ *
+ *     timestamp, operation, reader, command header (CLA INS P1 P2), SW, duration
+ *
+ * Recording is lock-free and allocation-free: writers take a slot with one
+ * atomic increment and publish it with a release store, a seqlock-like check
+ * lets dump() skip slots being overwritten. Nothing is printed until dump() is
+ * called, e.g. when a card operation fails.
+ *
+ *     long start = System.nanoTime();
+ *     terminal.waitForCardPresent(0);
+ *     start = trace.record(ApduTrace.WAIT, reader, 0, 0, start);
+ *     var card = terminal.connect("*");
+ *     trace.record(ApduTrace.CONNECT, reader, 0, 0, start);
+ *
+ * Reading the clock dominates the cost of an event, so operations run one
+ * after another should be chained: end of one is the start of the next.
+ */
+class ApduTrace {
+    // operations
+    public static final int TRANSMIT = 0;
+    public static final int CONNECT = 1;
+    public static final int WAIT = 2;
+    public static final int DISCONNECT = 3;
+
+    // SW of operations failed with exception
+    public static final int FAILED = -1;
+
+    private static final String[] OPERATION_NAMES = {"transmit", "connect", "wait", "disconnect"};
+
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+    // sequence number + 1 of the event in the slot, 0 while slot is empty or being written
+    private final AtomicLongArray sequences;
+    private final long[] timestamps;
+    private final long[] durations;
+    private final int[] headers;
+    private final int[] sws;
+    // operation << 16 | reader
+    private final int[] kinds;
+
+    private volatile String[] readers = new String[0];
+
+    // wall clock time of System.nanoTime() == 0
+    private final long epochNanos;
+
+
+    /**
+     * @param capacity number of kept events, rounded up to power of two
+     */
+    public ApduTrace(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        timestamps = new long[size];
+        durations = new long[size];
+        headers = new int[size];
+        sws = new int[size];
+        kinds = new int[size];
+        var now = Instant.now();
+        epochNanos = now.getEpochSecond() * 1_000_000_000L + now.getNano() - System.nanoTime();
+    }
+
+
+    /**
+     * Returns id of the reader to record its events with, e.g. for terminal.getName().
+     */
+    public synchronized int reader(String name) {
+        var current = readers;
+        for (int i=0; i<current.length; i++) {
+            if (current[i].equals(name)) {
+                return i;
+            }
+        }
+        var updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = name;
+        readers = updated;
+        return current.length;
+    }
+
+    /**
+     * Record operation that started at "startNanos" and ends now.
+     * 
+     * @param operation  TRANSMIT, CONNECT, WAIT or DISCONNECT
+     * @param reader     reader id, see reader()
+     * @param header     command header CLA INS P1 P2 as big-endian int, 0 for other operations
+     * @param sw         response SW, FAILED if operation failed, 0 for other operations
+     * @param startNanos System.nanoTime() when operation started
+     * @return           System.nanoTime() when operation ended, start of the operation run next
+     */
+    public long record(int operation, int reader, int header, int sw, long startNanos) {
+        long end = System.nanoTime();
+        long sequence = next.getAndIncrement();
+        int i = (int)sequence & mask;
+        sequences.setOpaque(i, 0);
+        VarHandle.storeStoreFence();
+        timestamps[i] = startNanos;
+        durations[i] = end - startNanos;
+        headers[i] = header;
+        sws[i] = sw;
+        kinds[i] = (operation << 16) | reader;
+        sequences.setRelease(i, sequence + 1);
+        return end;
+    }
+
+    /**
+     * Returns number of events recorded so far, including overwritten ones.
+     */
+    public long getRecorded() {
+        return next.get();
+    }
+
+    /**
+     * Write kept events from the oldest to the newest, one per line:
+     *
+     *     2026-10-16T09:12:44.120337615Z  transmit    ACS ACR122U  FF B0 00 04  9000   1840512 ns
+     */
+    public void dump(Appendable out)
+        throws IOException
+    {
+        var names = readers;
+        long last = next.get();
+        for (long sequence = Math.max(0, last - mask - 1); sequence < last; sequence++) {
+            int i = (int)sequence & mask;
+            long published = sequences.getAcquire(i);
+            long timestamp = timestamps[i];
+            long duration = durations[i];
+            int header = headers[i];
+            int sw = sws[i];
+            int kind = kinds[i];
+            VarHandle.loadLoadFence();
+            if (published != sequence + 1 || sequences.getAcquire(i) != published) {
+                // not yet published or being overwritten
+                continue;
+            }
+
+            int operation = kind >>> 16;
+            int reader = kind & 0xFFFF;
+            out.append(Instant.ofEpochSecond(0, epochNanos + timestamp).toString());
+            out.append(String.format("  %-10s  %-20s", OPERATION_NAMES[operation], (reader < names.length) ? names[reader] : "?"));
+            if (operation == TRANSMIT) {
+                out.append(String.format("  %02X %02X %02X %02X  %s", header >>> 24, (header >> 16) & 0xFF, (header >> 8) & 0xFF, header & 0xFF,
+                    (sw == FAILED) ? "FAIL" : String.format("%04X", sw)));
+            } else {
+                out.append(" ".repeat(19));
+            }
+            out.append(String.format("  %10d ns%n", duration));
+        }
+    }
+}
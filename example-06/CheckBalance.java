@@ -27,7 +27,6 @@
 
 import java.util.List;
 import javax.smartcardio.*;
-import static java.util.Arrays.copyOfRange;
 
 // This class check balance.
 class CheckBalance {
@@ -54,42 +53,22 @@ class CheckBalance {
 
             // establish a connection to the card using autoselected protocol
             Card card = terminal.connect("*");
-            CardChannel channel = card.getBasicChannel();
+            var exchange = new ApduExchange(card.getBasicChannel());
 
-            byte[] authenticateCommand = Util.toByteArray("FF 86 00 00 05 01 00 00 00 00");
-            byte[] readBinaryCommand = Util.toByteArray("FF B0 00 00 10");
-            byte firstBlock = (byte)(config.sector * 4);
-            ResponseAPDU answer;
-            byte[] data;
-
-            // load production Key B to cell 00
-            byte[] loadKeysCommand = Util.toByteArray("FF 82 00 00 06 " + config.prod_key_b);
-            answer = channel.transmit(new CommandAPDU(loadKeysCommand));
-            if (answer.getSW() != 0x9000) {
+            // load production Key B, authenticate with it and read balance block
+            var script = Util.loadScript("balance.apdu");
+            script.set(script.slot("key"), Util.toByteArray(config.prod_key_b));
+            script.set(script.slot("block"), config.sector * 4);
+            if (!script.run(exchange)) {
                 card.disconnect(false);
-                throw new Util.CardCheckFailedException("Failed to load Key B into terminal.");
+                throw new Util.CardCheckFailedException(script.getFailure());
             }
-
-            // authenticate using Key B
-            authenticateCommand[7] = firstBlock;
-            authenticateCommand[8] = 0x61; 
-            answer = channel.transmit(new CommandAPDU(authenticateCommand));
-            if (answer.getSW() != 0x9000) {
-                card.disconnect(false);
-                throw new Util.CardCheckFailedException("Key B doesn't match.");
-            }
-
-            // read balance block data
-            readBinaryCommand[3] = firstBlock;
-            answer = channel.transmit(new CommandAPDU(readBinaryCommand));
-            if (answer.getSW() != 0x9000) {
+            // balance is in the first 8 bytes
+            if (exchange.getDataLength() < 8) {
                 card.disconnect(false);
-                throw new Util.CardCheckFailedException("Failed to read block with Key A.");
+                throw new Util.CardCheckFailedException("Balance block is too short.");
             }
-            // take first 8 bytes
-            data = answer.getData();
-            data = copyOfRange(data, 0, 8);
-            long balance = Util.bytesToLong(data);
+            long balance = exchange.getDataLong(0);
             System.out.printf("Card balance is: %d%n", balance);
 
             card.disconnect(false);
@@ -25,9 +25,9 @@
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
+import java.io.IOException;
 import java.util.List;
 import javax.smartcardio.*;
-import static java.util.Arrays.copyOfRange;
 
 
 // Checkout: withdraw a fixed sum each time card touches the terminal.
@@ -48,89 +48,79 @@ class Checkout {
 
             System.out.printf("Checkout terminal%n=================%n");
 
-            var authenticateCommand = Util.toByteArray("FF 86 00 00 05 01 00 00 00 00");
-            var readBinaryCommand = Util.toByteArray("FF B0 00 00 10");
-            var updateBinaryCommand = Util.toByteArray("FF D6 00 00 10 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00");
-            var firstBlock = (byte)(config.sector * 4);
-
+            // read and update steps of the balance block
+            var script = Util.loadScript("balance.apdu");
+            int balanceSlot = script.slot("balance");
+            int updateStep = script.step("update");
+            script.set(script.slot("key"), Util.toByteArray(config.prod_key_b));
+            script.set(script.slot("block"), config.sector * 4);
+
+            // responses of all cards are received into the same buffer
+            var exchange = new ApduExchange(null);
+
+            // keep last card operations, they are printed when a card fails,
+            // the same operations are also JFR events, see PcscEvents
+            var trace = new ApduTrace(4096);
+            int reader = trace.reader(terminal.getName());
+            exchange.setTrace(trace, reader);
+            exchange.setReader(terminal.getName());
+
+            // operations of a tap are chained, every event reads the clock once
+            long time = System.nanoTime();
             while (true) {
-                ResponseAPDU answer;
-                byte[] data;
-                byte[] command;
-
                 System.out.printf("Waiting for card... ");
-                terminal.waitForCardPresent(0);
+                PcscEvents.waitForCardPresent(terminal, 0);
+                time = trace.record(ApduTrace.WAIT, reader, 0, 0, time);
 
                 try {
                     // establish a connection to the card using autoselected protocol
-                    var card = terminal.connect("*");
-                    var channel = card.getBasicChannel();
-
-                    // load production Key B to cell 00
-                    var loadKeysCommand = Util.toByteArray("FF 82 00 00 06 " + config.prod_key_b);
-                    answer = channel.transmit(new CommandAPDU(loadKeysCommand));
-                    if (answer.getSW() != 0x9000) {
-                        card.disconnect(false);
-                        throw new Util.CardCheckFailedException("Failed to load Key B into terminal.");
+                    var card = PcscEvents.connect(terminal, "*");
+                    time = trace.record(ApduTrace.CONNECT, reader, 0, 0, time);
+                    exchange.setChannel(card.getBasicChannel());
+                    exchange.chainTrace(time);
+
+                    // load production Key B, authenticate with it and read balance block
+                    if (!script.run(exchange)) {
+                        disconnect(card, exchange, trace, reader);
+                        throw new Util.CardCheckFailedException(script.getFailure());
                     }
-
-                    // authenticate using Key B
-                    authenticateCommand[7] = firstBlock;
-                    authenticateCommand[8] = 0x61; 
-                    answer = channel.transmit(new CommandAPDU(authenticateCommand));
-                    if (answer.getSW() != 0x9000) {
-                        card.disconnect(false);
-                        throw new Util.CardCheckFailedException("Key B doesn't match.");
+                    // balance is in the first 8 bytes
+                    if (exchange.getDataLength() < 8) {
+                        disconnect(card, exchange, trace, reader);
+                        throw new Util.CardCheckFailedException("Balance block is too short.");
                     }
-
-                    // read balance block data
-                    readBinaryCommand[3] = firstBlock;
-                    answer = channel.transmit(new CommandAPDU(readBinaryCommand));
-                    if (answer.getSW() != 0x9000) {
-                        card.disconnect(false);
-                        throw new Util.CardCheckFailedException("Failed to read block with Key A.");
-                    }
-                    // take first 8 bytes
-                    data = answer.getData();
-                    data = copyOfRange(data, 0, 8);
-                    long balance = Util.bytesToLong(data);
+                    long balance = exchange.getDataLong(0);
 
                     if (balance < config.ticket_price) {
                         System.out.printf("not enough funds: %d%n", balance);
                     } else {
                         long newBalance = balance - config.ticket_price;
 
-                        // create APDU by cloning updateBinaryCommand template, specify target
-                        // block address and copy data block
-                        byte[] newBalanceBytes = Util.longToBytes(newBalance);
-                        data = new byte[16];
-                        for (int i=0; i<8; i++) {
-                            data[i] = newBalanceBytes[i];
-                        }
-                        command = updateBinaryCommand.clone();
-                        command[3] = firstBlock;
-                        for (int i=0; i<16; i++) {
-                            command[5+i] = data[i];
-                        }
-                        answer = channel.transmit(new CommandAPDU(command));
-                        if (answer.getSW() != 0x9000) {
-                            card.disconnect(false);
-                            throw new Util.CardUpdateFailedException("Failed to update data block.");
+                        // put new balance to the first 8 bytes of the block, the rest stays zero
+                        script.set(balanceSlot, newBalance);
+                        if (!script.run(exchange, updateStep)) {
+                            disconnect(card, exchange, trace, reader);
+                            throw new Util.CardUpdateFailedException(script.getFailure());
                         }
                         System.out.printf("success, new balance: %d, please remove card%n", newBalance);
                     }
-                    card.disconnect(false);
+                    disconnect(card, exchange, trace, reader);
                 } catch (Util.CardCheckFailedException e) {
                     System.out.printf("failed, please remove card%n");
                     System.out.printf("Error: %s%n", e.getMessage());
+                    dumpTrace(trace);
                 } catch (Util.CardUpdateFailedException e) {
                     System.out.printf("failed%n");
                     System.out.printf("Error: %s%n", e.getMessage());
+                    dumpTrace(trace);
                 } catch (CardException e) {
                     System.out.println("CardException: " + e.toString());
+                    dumpTrace(trace);
                     System.exit(2);
                 }
-                terminal.waitForCardAbsent(0);
+                time = System.nanoTime();
+                PcscEvents.waitForCardAbsent(terminal, 0);
+                time = trace.record(ApduTrace.WAIT, reader, 0, 0, time);
             }
         } catch (Util.TerminalNotFoundException e) {
             System.out.println("No connected terminals.");
@@ -140,4 +130,21 @@ class Checkout {
             System.exit(2);
         }
     }
+
+    // disconnect starts when the last transmit of the tap ended
+    private static void disconnect(Card card, ApduExchange exchange, ApduTrace trace, int reader)
+        throws CardException
+    {
+        card.disconnect(false);
+        trace.record(ApduTrace.DISCONNECT, reader, 0, 0, exchange.getTraceEnd());
+    }
+
+    private static void dumpTrace(ApduTrace trace) {
+        try {
+            System.err.printf("Last card operations:%n");
+            trace.dump(System.err);
+        } catch (IOException e) {
+            // PrintStream doesn't throw
+        }
+    }
 }
@@ -59,50 +59,45 @@ class IssueCard {
             System.out.printf("Checking card sector %d... ", config.sector);
             // establish a connection to the card using autoselected protocol
             var card = terminal.connect("*");
-            CardChannel channel = card.getBasicChannel();
+            var exchange = new ApduExchange(card.getBasicChannel());
 
-            var authenticateCommand = Util.toByteArray("FF 86 00 00 05 01 00 00 00 00");
-            var readBinaryCommand = Util.toByteArray("FF B0 00 00 10");
-            var updateBinaryCommand = Util.toByteArray("FF D6 00 00 10 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00");
+            var authenticateCommand = new ApduExchange.Template("FF 86 00 00 05 01 00 00 00 00");
+            var readBinaryCommand = new ApduExchange.Template("FF B0 00 00 10");
+            var updateBinaryCommand = new ApduExchange.Template("FF D6 00 00 10 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00");
             var firstBlock = (byte)(config.sector * 4);
             byte[] data;
-            byte[] command;
-
-            ResponseAPDU answer;
 
             // load Key A to cell 00
-            var loadKeysCommand = Util.toByteArray("FF 82 00 00 06 " + config.initial_key_a);
-            answer = channel.transmit(new CommandAPDU(loadKeysCommand));
-            if (answer.getSW() != 0x9000) {
+            var loadKeysCommand = new ApduExchange.Template("FF 82 00 00 06 " + config.initial_key_a);
+            if (exchange.transmit(loadKeysCommand) != 0x9000) {
                 card.disconnect(false);
                 throw new Util.CardCheckFailedException("Failed to load Key A into terminal.");
             }
 
             // check Key A only: authenticate for the trailer block
-            authenticateCommand[7] = (byte)(firstBlock+3);
-            authenticateCommand[8] = 0x60;
-            answer = channel.transmit(new CommandAPDU(authenticateCommand));
-            if (answer.getSW() != 0x9000) {
+            authenticateCommand.setDataByte(2, (byte)(firstBlock+3));
+            authenticateCommand.setDataByte(3, (byte)0x60);
+            if (exchange.transmit(authenticateCommand) != 0x9000) {
                 card.disconnect(false);
                 throw new Util.CardCheckFailedException("Key A doesn't match.");
             }
 
             // read trailer block data
-            readBinaryCommand[3] = (byte)(firstBlock+3);
-            answer = channel.transmit(new CommandAPDU(readBinaryCommand));
-            if (answer.getSW() != 0x9000) {
+            readBinaryCommand.setP2(firstBlock+3);
+            if (exchange.transmit(readBinaryCommand) != 0x9000) {
                 card.disconnect(false);
                 throw new Util.CardCheckFailedException("Failed to read block with Key A.");
             }
             // read trailer and check that we should be able to set both keys and change access 
-            readBinaryCommand[3] = (byte)(firstBlock+3);
-            answer = channel.transmit(new CommandAPDU(readBinaryCommand));
-            if (answer.getSW() != 0x9000) {
+            if (exchange.transmit(readBinaryCommand) != 0x9000) {
                 card.disconnect(false);
                 throw new Util.CardCheckFailedException("Failed to read trailer with Key A.");
             }
-            var trailerData = answer.getData();
-            var accessBits = Util.decodeAccessBits(trailerData[6], trailerData[7], trailerData[8]);
+            if (exchange.getDataLength() < 9) {
+                card.disconnect(false);
+                throw new Util.CardCheckFailedException("Trailer block is too short.");
+            }
+            var accessBits = Util.decodeAccessBits(exchange.getDataByte(6), exchange.getDataByte(7), exchange.getDataByte(8));
             if (!accessBits[3].equals("001")) {
                 card.disconnect(false);
                 throw new Util.CardCheckFailedException("Access condition bits don't match.");
@@ -111,18 +106,9 @@ class IssueCard {
 
             // write data
             System.out.printf("Writing data... ");
-            // store empty balance to first block
-            data = new byte[16];
-
-            // create APDU by cloning updateBinaryCommand template, specify target
-            // block address and copy data block
-            command = updateBinaryCommand.clone();
-            command[3] = firstBlock;
-            for (int i=0; i<16; i++) {
-                command[5+i] = data[i];
-            }
-            answer = channel.transmit(new CommandAPDU(command));
-            if (answer.getSW() != 0x9000) {
+            // store empty balance to first block: data of the template is zero
+            updateBinaryCommand.setP2(firstBlock);
+            if (exchange.transmit(updateBinaryCommand) != 0x9000) {
                 card.disconnect(false);
                 throw new Util.CardUpdateFailedException("Failed to update data block.");
             }
@@ -146,15 +132,10 @@ class IssueCard {
             data[7] = ac[1];
             data[8] = ac[2];
 
-            // create APDU by cloning updateBinaryCommand template, specify target
-            // block address (trailer) and copy data block
-            command = updateBinaryCommand.clone();
-            command[3] = (byte)(firstBlock+3);
-            for (int i=0; i<16; i++) {
-                command[5+i] = data[i];
-            }
-            answer = channel.transmit(new CommandAPDU(command));
-            if (answer.getSW() != 0x9000) {
+            // specify target block address (trailer) and copy data block
+            updateBinaryCommand.setP2(firstBlock+3);
+            updateBinaryCommand.setData(0, data, 0, 16);
+            if (exchange.transmit(updateBinaryCommand) != 0x9000) {
                 card.disconnect(false);
                 throw new Util.CardUpdateFailedException("Failed to update data block.");
             }
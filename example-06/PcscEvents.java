@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+/**
+ * Java Flight Recorder events of PC/SC operations, so card latency can be
+ * correlated with GC and JIT activity of the same recording:
+ *
+ *     java -XX:StartFlightRecording=filename=pcsc.jfr Checkout
+ *     jfr print --events 'pcsc.*' pcsc.jfr
+ *
+ * Events cost almost nothing while recording is off: begin() and commit() are
+ * empty until JFR is started and the event object is not allocated.
+ */
+final class PcscEvents {
+    private PcscEvents() {}
+
+    @Name("pcsc.ApduExchange")
+    @Label("APDU Exchange")
+    @Category({"PC/SC"})
+    @Description("One command-response pair sent through CardChannel.transmit()")
+    static class ApduExchange extends Event {
+        @Label("Reader")
+        String reader;
+
+        @Label("INS")
+        int ins;
+
+        @Label("SW")
+        @Description("Status word, 0 if transmit failed")
+        int sw;
+
+        @Label("Command Length")
+        @DataAmount
+        int commandLength;
+
+        @Label("Response Length")
+        @DataAmount
+        int responseLength;
+    }
+
+    @Name("pcsc.CardConnect")
+    @Label("Card Connect")
+    @Category({"PC/SC"})
+    static class CardConnect extends Event {
+        @Label("Reader")
+        String reader;
+
+        @Label("Protocol")
+        String protocol;
+
+        @Label("ATR Length")
+        @DataAmount
+        int atrLength;
+
+        @Label("Failed")
+        @Description("true if connect failed with exception, protocol and ATR are not set then")
+        boolean failed;
+    }
+
+    @Name("pcsc.CardWait")
+    @Label("Card Wait")
+    @Category({"PC/SC"})
+    @Description("Wait for card to be inserted or removed")
+    static class CardWait extends Event {
+        @Label("Reader")
+        String reader;
+
+        @Label("Present")
+        @Description("true when waited for insertion, false for removal")
+        boolean present;
+
+        @Label("Timed Out")
+        boolean timedOut;
+
+        @Label("Failed")
+        @Description("true if wait failed with exception")
+        boolean failed;
+    }
+
+
+    /**
+     * terminal.connect(protocol) recorded as CardConnect event.
+     */
+    static Card connect(CardTerminal terminal, String protocol)
+        throws CardException
+    {
+        var event = new CardConnect();
+        event.begin();
+        Card card = null;
+        try {
+            card = terminal.connect(protocol);
+            return card;
+        } finally {
+            // failed connects are recorded too
+            if (event.shouldCommit()) {
+                event.reader = terminal.getName();
+                event.failed = (card == null);
+                if (card != null) {
+                    event.protocol = card.getProtocol();
+                    event.atrLength = card.getATR().getBytes().length;
+                }
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * terminal.waitForCardPresent(timeout) recorded as CardWait event.
+     */
+    static boolean waitForCardPresent(CardTerminal terminal, long timeout)
+        throws CardException
+    {
+        return waitForCard(terminal, true, timeout);
+    }
+
+    /**
+     * terminal.waitForCardAbsent(timeout) recorded as CardWait event.
+     */
+    static boolean waitForCardAbsent(CardTerminal terminal, long timeout)
+        throws CardException
+    {
+        return waitForCard(terminal, false, timeout);
+    }
+
+    private static boolean waitForCard(CardTerminal terminal, boolean present, long timeout)
+        throws CardException
+    {
+        var event = new CardWait();
+        event.begin();
+        boolean result = false;
+        boolean failed = true;
+        try {
+            result = present ? terminal.waitForCardPresent(timeout) : terminal.waitForCardAbsent(timeout);
+            failed = false;
+            return result;
+        } finally {
+            // failed waits are recorded too
+            if (event.shouldCommit()) {
+                event.reader = terminal.getName();
+                event.present = present;
+                event.timedOut = !failed && !result;
+                event.failed = failed;
+                event.commit();
+            }
+        }
+    }
+}
@@ -26,9 +26,15 @@
  */
 
 import java.util.List;
+import java.util.Map;
 import javax.smartcardio.*;
 
 public class Example {
+    // commands sent when their name is typed instead of hex bytes
+    private static final Map<String, byte[]> COMMANDS = Map.of(
+        "pse", Util.toByteArrayUnchecked("00 A4 04 00 0E 31 50 41 59 2E 53 59 53 2E 44 44 46 30 31 00"),
+        "ppse", Util.toByteArrayUnchecked("00 A4 04 00 0E 32 50 41 59 2E 53 59 53 2E 44 44 46 30 31 00"));
+
     public static void main(String[] args) {
         try {
             var factory = TerminalFactory.getDefault();
@@ -52,7 +58,7 @@ public class Example {
             // obtain logical channel
             var channel = card.getBasicChannel();
 
-            System.out.println("Type quit or exit to stop the program.");
+            System.out.println("Type quit or exit to stop the program, pse or ppse to select payment system directory.");
 
             // start infinite loop
             while (true) {
@@ -63,11 +69,13 @@ public class Example {
                     break;
                 }
 
-                byte[] apduBytes = null;
-                try {
-                    apduBytes = Util.toByteArray(rawAPDU);
-                } catch (Util.ByteStringParseException e) {
-                    System.out.printf("ERROR: Incorrect input string%n");
+                byte[] apduBytes = COMMANDS.get(rawAPDU);
+                if (apduBytes == null) {
+                    try {
+                        apduBytes = Util.toByteArray(rawAPDU);
+                    } catch (Util.ByteStringParseException e) {
+                        System.out.printf("ERROR: %s%n", e.getMessage());
+                    }
                 }
 
                 if (apduBytes == null) {
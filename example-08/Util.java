@@ -25,9 +25,8 @@
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
-import static java.util.Arrays.copyOfRange;
 import static java.lang.Math.max;
-import java.util.ArrayList;
+import java.util.Arrays;
 
 // local utility class
 class Util {
@@ -36,50 +35,126 @@ class Util {
     public static class TerminalNotFoundException extends Exception {}
 
     static class ByteStringParseException extends Exception{
+        private final int offset;
+
         public ByteStringParseException(String message) {
-            super(message);
+            this(message, -1);
+        }
+
+        public ByteStringParseException(String message, int offset) {
+            super((offset >= 0) ? String.format("%s at offset %d", message, offset) : message);
+            this.offset = offset;
+        }
+
+        /**
+         * Returns offset of the bad char in the input string, -1 if unknown.
+         */
+        public int getOffset() {
+            return offset;
         }
     }
 
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
     public static String hexify(byte[] bytes) {
-        var bytesStrings = new ArrayList<String>(bytes.length);
+        if (bytes.length == 0) {
+            return "";
+        }
+        // two digits per byte, spaces between bytes
+        var chars = new char[bytes.length * 3 - 1];
+        int p = 0;
         for (var b : bytes) {
-            bytesStrings.add(String.format("%02X", b));
+            if (p > 0) {
+                chars[p++] = ' ';
+            }
+            chars[p++] = HEX_DIGITS[(b >> 4) & 0xF];
+            chars[p++] = HEX_DIGITS[b & 0xF];
+        }
+        return new String(chars);
+    }
+
+    // value of every ASCII hex digit, -1 for other chars
+    private static final byte[] HEX_VALUES = new byte[128];
+    static {
+        Arrays.fill(HEX_VALUES, (byte)-1);
+        for (int i=0; i<16; i++) {
+            HEX_VALUES[hexChars.charAt(i)] = (byte)i;
+            HEX_VALUES[Character.toUpperCase(hexChars.charAt(i))] = (byte)i;
         }
-        return String.join(" ", bytesStrings);
     }
 
+    /**
+     * Parse hex string like "00 A4 04 00", digits of every byte must be
+     * adjacent, bytes may be separated by spaces.
+     * 
+     * @throws ByteStringParseException if input has non-hex char or odd number of digits
+     */
     public static byte[] toByteArray(String s)
         throws ByteStringParseException
     {
-        s = s.toLowerCase();
+        int digits = 0;
+        for (int i=0; i<s.length(); i++) {
+            if (s.charAt(i) != ' ') {
+                digits++;
+            }
+        }
+        var buf = new byte[digits / 2];
+        toByteArray(s, buf, 0);
+        return buf;
+    }
+
+    /**
+     * Parse hex string known to be correct, e.g. constant command template.
+     * 
+     * @throws IllegalArgumentException if input has non-hex char or odd number of digits
+     */
+    public static byte[] toByteArrayUnchecked(String s) {
+        try {
+            return toByteArray(s);
+        } catch (ByteStringParseException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
 
+    /**
+     * Parse hex string into caller supplied buffer, see toByteArray(String).
+     * 
+     * @param  s      hex string
+     * @param  dst    output buffer
+     * @param  offset output start
+     * @return        number of parsed bytes
+     * @throws ByteStringParseException  if input has non-hex char or odd number of digits
+     * @throws IndexOutOfBoundsException if parsed bytes don't fit into dst
+     */
+    public static int toByteArray(CharSequence s, byte[] dst, int offset)
+        throws ByteStringParseException
+    {
         int len = s.length();
-        var buf = new byte[len/2];
-        int bufLen = 0;
+        int p = offset;
         int i = 0;
-        
+
         while (i < len) {
             var c1 = s.charAt(i);
-            i++;
             if (c1 == ' ') {
+                i++;
                 continue;
             }
-            try {
-                var c2 = s.charAt(i);
-                if (hexChars.indexOf(c1) == -1 || hexChars.indexOf(c2) == -1) {
-                    throw new ByteStringParseException("Incorrect input character");
-                }
-                var d = (byte)((Character.digit(c1, 16) << 4) + (Character.digit(c2, 16)));
-                buf[bufLen] = d;
-                ++bufLen;
-            } catch (StringIndexOutOfBoundsException e) {
-                throw new ByteStringParseException("Input too short");
+            if (i + 1 == len) {
+                throw new ByteStringParseException("Input too short", i);
             }
-            i++;
-
+            var c2 = s.charAt(i + 1);
+            int d1 = (c1 < 128) ? HEX_VALUES[c1] : -1;
+            int d2 = (c2 < 128) ? HEX_VALUES[c2] : -1;
+            if ((d1 | d2) < 0) {
+                throw new ByteStringParseException("Incorrect input character", (d1 < 0) ? i : i + 1);
+            }
+            if (p == dst.length) {
+                throw new IndexOutOfBoundsException(String.format("Output buffer of %d bytes is too short", dst.length));
+            }
+            dst[p++] = (byte)((d1 << 4) | d2);
+            i += 2;
         }
 
-        return copyOfRange(buf, 0, bufLen);
+        return p - offset;
     }
 }
\ No newline at end of file
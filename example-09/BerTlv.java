@@ -25,8 +25,14 @@
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
 
 
 class BerTlv {
@@ -43,73 +49,424 @@ class BerTlv {
     }
 
     public static class ParsingException extends Exception {
+        private final String reason;
+        private final int offset;
+        private final String tagPath;
+
         public ParsingException(String message) {
+            this(message, -1, null);
+        }
+
+        public ParsingException(String reason, int offset, String tagPath) {
+            super(formatMessage(reason, offset, tagPath));
+            this.reason = reason;
+            this.offset = offset;
+            this.tagPath = tagPath;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        /**
+         * Returns offset of the byte that caused the error, -1 if unknown.
+         */
+        public int getOffset() {
+            return offset;
+        }
+
+        /**
+         * Returns path of tags of objects containing the error, e.g. "6F/A5", null if unknown.
+         */
+        public String getTagPath() {
+            return tagPath;
+        }
+
+        private static String formatMessage(String reason, int offset, String tagPath) {
+            var s = reason;
+            if (offset != -1) {
+                s += " at offset " + offset;
+            }
+            if (tagPath != null && !tagPath.isEmpty()) {
+                s += " in " + tagPath;
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Parser limits, protect from malformed or hostile data.
+     */
+    public static class Limits {
+        // maximum nesting level of objects, root object has level 1
+        public final int maxDepth;
+        // maximum number of objects in the tree
+        public final int maxNodes;
+        // maximum size of the root object encoding
+        public final int maxLength;
+
+        public Limits(int maxDepth, int maxNodes, int maxLength) {
+            this.maxDepth = maxDepth;
+            this.maxNodes = maxNodes;
+            this.maxLength = maxLength;
+        }
+    }
+
+    // longest value of encoded objects, the parser accepts at most 3 length bytes "83 xx xx xx"
+    public static final int MAX_VALUE_LENGTH = 0xFFFFFF;
+
+    // limits used by parseBytes(byte[]) and parseBytesLazy(byte[])
+    public static final Limits DEFAULT_LIMITS = new Limits(32, 10000, 0xFFFFFF);
+
+    /**
+     * Cache of shared PRIMITIVE objects with tiny values, e.g. SFI "88 01 01"
+     * or currency code "5F 2A 02 09 78", see parseBytes(byte[], Limits, ValueCache).
+     *
+     * Pass the same cache when parsing many records to keep one object per
+     * distinct tag and value instead of one per occurrence. Cache is direct
+     * mapped: colliding entries replace each other, so its size never grows.
+     * Cached objects are immutable and may be shared across threads, the cache
+     * itself is not thread-safe.
+     */
+    public static class ValueCache {
+        // values longer than this are never cached
+        public static final int MAX_VALUE_LENGTH = 3;
+
+        private final long[] keys;
+        private final BerTlv[] objects;
+        private final int mask;
+
+        /**
+         * @param capacity number of cached objects, rounded up to power of two
+         */
+        public ValueCache(int capacity) {
+            int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+            keys = new long[size];
+            objects = new BerTlv[size];
+            mask = size - 1;
+        }
+
+        // shared object for the chunk described by header, null if it can't be cached
+        private BerTlv get(byte[] bytes, ByteBuffer data, int offset, Header header) {
+            if (((byteAt(bytes, data, offset) >> 5) & 1) == 1 || header.tagLength > 4 || header.valueLength > MAX_VALUE_LENGTH) {
+                return null;
+            }
+            // key: tag in upper half, value bytes and value length in lower half
+            long key = 0;
+            for (int i=0; i<header.tagLength; i++) {
+                key = (key << 8) | (byteAt(bytes, data, offset + i) & 0xFF);
+            }
+            int packedValue = 0;
+            for (int i=0; i<header.valueLength; i++) {
+                packedValue = (packedValue << 8) | (byteAt(bytes, data, header.valueOffset + i) & 0xFF);
+            }
+            key = (key << 32) | ((long)packedValue << 8) | header.valueLength;
+
+            int slot = hashTag((int)(key >>> 32) ^ (int)key) & mask;
+            var t = objects[slot];
+            if (t != null && keys[slot] == key && t.tag.length == header.tagLength) {
+                return t;
+            }
+            // created on miss only, own copy of value, so cached object doesn't retain parsed bytes
+            var value = new byte[header.valueLength];
+            for (int i=0; i<value.length; i++) {
+                value[i] = byteAt(bytes, data, header.valueOffset + i);
+            }
+            var tag = (bytes != null)
+                ? BerTlvTags.intern(bytes, offset, header.tagLength)
+                : BerTlvTags.intern(data, offset, header.tagLength);
+            t = new BerTlv(tag, value);
+            keys[slot] = key;
+            objects[slot] = t;
+            return t;
+        }
+    }
+
+    public static class ConstraintException extends Exception {
+        public ConstraintException(String message) {
             super(message);
         }
     }
 
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    private static final String INDENT = " ".repeat(64);
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    // constructed objects with at least this number of parts get hashed tag index
+    private static final int PARTS_INDEX_THRESHOLD = 8;
+
     private final byte[] tag;
+    // tag bytes packed into int, see packTag()
+    private final int packedTag;
     private final Encoding encoding;
     private final Class tagClass;
 
-    // primitive value
-    private final byte[] value;
+    // primitive value, stored as (offset, length) view into backing buffer;
+    // for lazily decoded constructed objects it's encoding of not yet decoded parts
+    private final byte[] buffer;
+    // read-only backing buffer of objects parsed by parseBuffer(), null if "buffer" is used
+    private final ByteBuffer data;
+    private final int valueOffset;
+    private final int valueLength;
+
+    // constructed value parts, null until decoded for lazy objects;
+    // memoized fields are volatile, so trees may be shared between threads
+    private volatile List<BerTlv> parts;
+
+    // open addressing index over parts: packed tag => position of its first part,
+    // pairs (tag, position) in adjacent slots, built on demand for objects with many parts
+    private volatile int[] partsIndex;
+
+    // hash of tag and value of the subtree, 0 until computed by contentHash()
+    private volatile long contentHash;
+    // MODIFICATIONS when contentHash was computed, hash of CONSTRUCTED object is stale if it differs
+    private volatile int hashStamp;
 
-    // constructed value parts
-    private final List<BerTlv> parts;
+    // number of addPart() calls on all objects: objects don't know their parents,
+    // so any modification invalidates cached hashes of all CONSTRUCTED objects
+    private static final AtomicInteger MODIFICATIONS = new AtomicInteger();
 
 
     // constructed value constructor
     public BerTlv(byte[] tag, List<BerTlv> parts) {
-        this.tag = tag;
-        this.parts = parts;
-        this.value = null;
-
-        this.encoding = Encoding.CONSTRUCTED;
-        this.tagClass = getClassFromTag(tag);
+        this(tag, Encoding.CONSTRUCTED, null, null, 0, 0, parts);
     }
 
 
     // primitive value constructor
     public BerTlv(byte[] tag, byte[] value) {
+        this(tag, value, 0, value.length);
+    }
+
+
+    // primitive value constructor, value is a view into "buffer", no bytes are copied
+    BerTlv(byte[] tag, byte[] buffer, int valueOffset, int valueLength) {
+        this(tag, Encoding.PRIMITIVE, buffer, null, valueOffset, valueLength, null);
+    }
+
+
+    private BerTlv(byte[] tag, Encoding encoding, byte[] buffer, ByteBuffer data, int valueOffset, int valueLength, List<BerTlv> parts) {
         this.tag = tag;
-        this.parts = null;
-        this.value = value;
+        this.packedTag = packTag(tag);
+        this.parts = parts;
+        this.buffer = buffer;
+        this.data = data;
+        this.valueOffset = valueOffset;
+        this.valueLength = valueLength;
 
-        this.encoding = Encoding.PRIMITIVE;
+        this.encoding = encoding;
         this.tagClass = getClassFromTag(tag);
     }
 
+    /**
+     * Returns copy of tag bytes. Tags of known EMV objects are shared by all
+     * parsed objects (see BerTlvTags), so the shared array is never returned;
+     * use getPackedTag(), tagEquals() or getTagLength() to avoid the copy.
+     * 
+     * @return tag bytes
+     */
     public byte[] getTag() {
-        return tag;
+        return tag.clone();
+    }
+
+    /**
+     * Returns number of tag bytes.
+     */
+    public int getTagLength() {
+        return tag.length;
+    }
+
+    // true if both objects use the same tag array, e.g. interned one
+    boolean sharesTag(BerTlv other) {
+        return tag == other.tag;
+    }
+
+    // true if tag array is canonical one of BerTlvTags
+    boolean isTagInterned() {
+        return BerTlvTags.isCanonical(tag);
     }
 
     public Encoding getEncoding() {
         return encoding;
     }
 
+    /**
+     * Returns copy of the primitive value, null for CONSTRUCTED objects.
+     * 
+     * @return value bytes
+     */
     public byte[] getValue() {
-        return value;
+        if (this.encoding != Encoding.PRIMITIVE) {
+            return null;
+        }
+        if (data != null) {
+            var res = new byte[valueLength];
+            data.get(valueOffset, res);
+            return res;
+        }
+        return Util.copyArray(buffer, valueOffset, valueLength);
+    }
+
+    /**
+     * Returns read-only view of the primitive value without copying it,
+     * null for CONSTRUCTED objects.
+     * 
+     * @return value view, position is 0 and limit is value length
+     */
+    public ByteBuffer getValueView() {
+        if (this.encoding != Encoding.PRIMITIVE) {
+            return null;
+        }
+        if (data != null) {
+            return data.slice(valueOffset, valueLength);
+        }
+        return ByteBuffer.wrap(buffer, valueOffset, valueLength).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns length of the primitive value, 0 for CONSTRUCTED objects.
+     */
+    public int getValueLength() {
+        if (this.encoding != Encoding.PRIMITIVE) {
+            return 0;
+        }
+        return valueLength;
+    }
+
+    /**
+     * Returns tag bytes packed into int, e.g. tag "9F 38" is returned as 0x9F38,
+     * or -1 if tag is longer than 4 bytes.
+     */
+    public int getPackedTag() {
+        return packedTag;
     }
 
     public boolean tagEquals(String tagHex) {
-        return java.util.Arrays.equals(getTag(), Util.toByteArray(tagHex));
+        int t = tagFromHex(tagHex);
+        if (t == -1) {
+            return java.util.Arrays.equals(tag, Util.toByteArray(tagHex));
+        }
+        return packedTag == t;
+    }
+
+    /**
+     * Compare tag with packed tag value, e.g. tagEquals(0x9F38).
+     */
+    public boolean tagEquals(int tag) {
+        return packedTag == tag && tag != -1;
     }
 
+    /**
+     * Compare tag with tag of another object without copying either.
+     */
+    public boolean tagEquals(BerTlv other) {
+        return java.util.Arrays.equals(tag, other.tag);
+    }
 
     /**
-     * Add new BerTlv part to constructed
+     * Compares primitive values in place, without copying them.
      * 
-     * @param  part [description]
-     * @return      [description]
+     * @return true if both objects are PRIMITIVE with equal value bytes
      */
-    public BerTlv addPart(BerTlv part) {
+    public boolean valueEquals(BerTlv other) {
+        if (encoding != Encoding.PRIMITIVE || other.encoding != Encoding.PRIMITIVE || valueLength != other.valueLength) {
+            return false;
+        }
+        for (int i=0; i<valueLength; i++) {
+            if (byteAt(buffer, data, valueOffset + i) != byteAt(other.buffer, other.data, other.valueOffset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Add new BerTlv part to constructed object.
+     * 
+     * @param  part part to append
+     * @return      this object
+     * @throws ConstraintException if this object is PRIMITIVE
+     */
+    public BerTlv addPart(BerTlv part)
+        throws ConstraintException
+    {
+        if (this.encoding != Encoding.CONSTRUCTED) {
+            throw new ConstraintException("Only CONSTRUCTED objects have parts.");
+        }
+        parts().add(part);
+        partsIndex = null;
+        MODIFICATIONS.incrementAndGet();
         return this;
     }
 
 
+    /**
+     * Returns size of the object encoding, i.e. tag, length and value bytes.
+     * 
+     * @return encoded length
+     * @throws IllegalStateException if some value is longer than MAX_VALUE_LENGTH
+     */
+    public int getEncodedLength() {
+        int length = getEncodedValueLength();
+        return tag.length + lengthFieldSize(length) + length;
+    }
+
+
+    /**
+     * Encode object into a new bytes array.
+     * 
+     * @return encoded object
+     * @throws IllegalStateException if some value is longer than MAX_VALUE_LENGTH
+     */
+    public byte[] toBytes() {
+        var lengths = new int[countNodes()];
+        computeLengths(lengths, 0);
+        var res = new byte[tag.length + lengthFieldSize(lengths[0]) + lengths[0]];
+        writeEncoding(ByteBuffer.wrap(res), lengths, 0);
+        return res;
+    }
+
+
+    /**
+     * Encode object into dst starting at offset.
+     * 
+     * @param  dst    target array
+     * @param  offset position of the first encoded byte
+     * @return        number of bytes written
+     * @throws BufferOverflowException if encoding doesn't fit into dst, nothing is written then
+     * @throws IllegalStateException if some value is longer than MAX_VALUE_LENGTH
+     */
+    public int encode(byte[] dst, int offset) {
+        var buffer = ByteBuffer.wrap(dst, offset, dst.length - offset);
+        encode(buffer);
+        return buffer.position() - offset;
+    }
+
+
+    /**
+     * Encode object into dst at its current position. Value lengths of all nested
+     * objects are computed in one pass before writing.
+     * 
+     * @param  dst target buffer
+     * @throws BufferOverflowException if encoding doesn't fit into dst, nothing is written then
+     * @throws IllegalStateException if some value is longer than MAX_VALUE_LENGTH
+     */
+    public void encode(ByteBuffer dst) {
+        var lengths = new int[countNodes()];
+        computeLengths(lengths, 0);
+        if (dst.remaining() < tag.length + lengthFieldSize(lengths[0]) + lengths[0]) {
+            throw new BufferOverflowException();
+        }
+        writeEncoding(dst, lengths, 0);
+    }
+
+
     /**
      * Parse bytes into ONE BerTlv object ignoring remaining data if there are any.
+     *
+     * Primitive values of the resulting tree are views into "bytes", so the array
+     * must not be modified while the tree is in use.
      * 
      * @param  bytes            bytes array to parse
      * @return                  parsed BerTlv object, remaining bytes are ignored
@@ -118,8 +475,178 @@ class BerTlv {
     public static BerTlv parseBytes(byte[] bytes)
         throws ParsingException
     {
-        Pair p = parseChunk(bytes);
-        return p.value;
+        return parseBytes(bytes, DEFAULT_LIMITS);
+    }
+
+    /**
+     * Parse bytes into ONE BerTlv object checking parser limits.
+     * 
+     * @param  bytes            bytes array to parse
+     * @param  limits           parser limits
+     * @return                  parsed BerTlv object, remaining bytes are ignored
+     * @throws ParsingException if data is malformed or exceeds limits
+     */
+    public static BerTlv parseBytes(byte[] bytes, Limits limits)
+        throws ParsingException
+    {
+        return parse(bytes, null, 0, bytes.length, limits, null, true);
+    }
+
+    /**
+     * Parse ONE BerTlv object located in bytes[offset..offset+length), e.g. one
+     * of many records read into the same array.
+     * 
+     * @param  bytes            bytes array to parse
+     * @param  offset           object start
+     * @param  length           size of available data, remaining bytes are ignored
+     * @param  limits           parser limits
+     * @return                  parsed BerTlv object
+     * @throws ParsingException if data is malformed or exceeds limits, error
+     *                          offset is counted from the start of bytes
+     */
+    public static BerTlv parseBytes(byte[] bytes, int offset, int length, Limits limits)
+        throws ParsingException
+    {
+        if (offset < 0 || length < 0 || length > bytes.length - offset) {
+            throw new IndexOutOfBoundsException(String.format("Range [%d, %d) is out of bounds of %d bytes", offset, offset + length, bytes.length));
+        }
+        return parse(bytes, null, offset, offset + length, limits, null, true);
+    }
+
+    /**
+     * Parse bytes into ONE BerTlv object taking PRIMITIVE objects with tiny
+     * values from cache, so repeated objects of many parsed records are shared.
+     * 
+     * @param  bytes            bytes array to parse
+     * @param  limits           parser limits
+     * @param  cache            cache of shared objects
+     * @return                  parsed BerTlv object, remaining bytes are ignored
+     * @throws ParsingException if data is malformed or exceeds limits
+     */
+    public static BerTlv parseBytes(byte[] bytes, Limits limits, ValueCache cache)
+        throws ParsingException
+    {
+        return parse(bytes, null, 0, bytes.length, limits, cache, true);
+    }
+
+    /**
+     * Parse bytes into ONE BerTlv object like parseBytes() but decode parts of
+     * constructed objects on demand.
+     *
+     * Whole encoding is validated first (without creating any objects), then
+     * only the root object is created. Parts of every constructed object are
+     * decoded on the first call of getPart(), getParts() etc. and remembered.
+     * This is useful when only a few objects of a large response are needed,
+     * code touching every object (e.g. EmvTemplates binding) should use
+     * parseBytes() which creates the whole tree in one pass.
+     *
+     * Decoding on demand is synchronized, so a lazy tree may be read from many
+     * threads like an eagerly parsed one. Trees modified with addPart() are
+     * not thread safe.
+     * 
+     * @param  bytes            bytes array to parse, must not be modified while the tree is in use
+     * @return                  parsed BerTlv object, remaining bytes are ignored
+     * @throws ParsingException 
+     */
+    public static BerTlv parseBytesLazy(byte[] bytes)
+        throws ParsingException
+    {
+        return parseBytesLazy(bytes, DEFAULT_LIMITS);
+    }
+
+    /**
+     * Lazy version of parseBytes(byte[], Limits), see parseBytesLazy(byte[]).
+     */
+    public static BerTlv parseBytesLazy(byte[] bytes, Limits limits)
+        throws ParsingException
+    {
+        parse(bytes, null, 0, bytes.length, limits, null, false);
+        var header = new Header();
+        parseHeader(bytes, null, 0, bytes.length, header);
+        return createObject(bytes, null, 0, header, true);
+    }
+
+    /**
+     * Parse ONE BerTlv object located at src position directly from the buffer,
+     * e.g. direct buffer filled by CardChannel.transmit(ByteBuffer, ByteBuffer)
+     * or mapped capture file, without copying it to heap.
+     *
+     * Primitive values of the resulting tree are views into src, so its content
+     * must not be modified while the tree is in use. Position and limit of src
+     * are not changed, error offsets are buffer indexes.
+     * 
+     * @param  src              buffer, data between position and limit is parsed
+     * @return                  parsed BerTlv object, remaining bytes are ignored
+     * @throws ParsingException
+     */
+    public static BerTlv parseBuffer(ByteBuffer src)
+        throws ParsingException
+    {
+        return parseBuffer(src, DEFAULT_LIMITS);
+    }
+
+    /**
+     * Buffer version of parseBytes(byte[], Limits), see parseBuffer(ByteBuffer).
+     */
+    public static BerTlv parseBuffer(ByteBuffer src, Limits limits)
+        throws ParsingException
+    {
+        if (src.hasArray()) {
+            int offset = src.arrayOffset() + src.position();
+            try {
+                return parse(src.array(), null, offset, offset + src.remaining(), limits, null, true);
+            } catch (ParsingException e) {
+                throw toBufferOffset(e, src);
+            }
+        }
+        return parse(null, src.asReadOnlyBuffer(), src.position(), src.limit(), limits, null, true);
+    }
+
+    /**
+     * Lazy version of parseBuffer(ByteBuffer), see parseBytesLazy(byte[]).
+     * Large captures may be walked this way touching only needed objects.
+     */
+    public static BerTlv parseBufferLazy(ByteBuffer src)
+        throws ParsingException
+    {
+        return parseBufferLazy(src, DEFAULT_LIMITS);
+    }
+
+    /**
+     * Lazy version of parseBuffer(ByteBuffer, Limits), see parseBytesLazy(byte[]).
+     */
+    public static BerTlv parseBufferLazy(ByteBuffer src, Limits limits)
+        throws ParsingException
+    {
+        byte[] bytes = null;
+        ByteBuffer data = null;
+        int offset;
+        int limit;
+        if (src.hasArray()) {
+            bytes = src.array();
+            offset = src.arrayOffset() + src.position();
+            limit = offset + src.remaining();
+        } else {
+            data = src.asReadOnlyBuffer();
+            offset = src.position();
+            limit = src.limit();
+        }
+        try {
+            parse(bytes, data, offset, limit, limits, null, false);
+        } catch (ParsingException e) {
+            throw toBufferOffset(e, src);
+        }
+        var header = new Header();
+        parseHeader(bytes, data, offset, limit, header);
+        return createObject(bytes, data, offset, header, true);
+    }
+
+    // heap buffers are parsed through their backing array, report offset as buffer index
+    private static ParsingException toBufferOffset(ParsingException e, ByteBuffer src) {
+        if (!src.hasArray() || src.arrayOffset() == 0 || e.getOffset() == -1) {
+            return e;
+        }
+        return new ParsingException(e.getReason(), e.getOffset() - src.arrayOffset(), e.getTagPath());
     }
 
     /**
@@ -128,7 +655,11 @@ class BerTlv {
      * @return                     [description]
      */
     public BerTlv getPart(String tagBytesRepr) {
-        return getPart(Util.toByteArray(tagBytesRepr));
+        int t = tagFromHex(tagBytesRepr);
+        if (t == -1) {
+            return getPart(Util.toByteArray(tagBytesRepr));
+        }
+        return getPart(t);
     }
 
     /**
@@ -137,13 +668,16 @@ class BerTlv {
      * @return                     [description]
      */
     public BerTlv getPart(byte[] tag) {
+        if (tag.length <= 4) {
+            return getPart(packTag(tag));
+        }
         if (this.encoding != Encoding.CONSTRUCTED) {
             // "Only CONSTRUCTED objects have parts."
             return null;
         }
         BerTlv part = null;
-        for (var p : parts) {
-            if (java.util.Arrays.equals(p.getTag(), tag)) {
+        for (var p : parts()) {
+            if (java.util.Arrays.equals(p.tag, tag)) {
                 part = p;
                 break;
             }
@@ -151,6 +685,48 @@ class BerTlv {
         return part;
     }
 
+    /**
+     * Get first part tagged with packed tag, e.g. getPart(0x9F38).
+     * 
+     * Objects with many parts use hashed index, so lookup doesn't depend on
+     * parts number and doesn't allocate anything.
+     * 
+     * @param  tag packed tag, see getPackedTag()
+     * @return     part or null if not found
+     */
+    public BerTlv getPart(int tag) {
+        if (this.encoding != Encoding.CONSTRUCTED || tag == -1) {
+            // "Only CONSTRUCTED objects have parts."
+            return null;
+        }
+        var list = parts();
+        int size = list.size();
+        if (size < PARTS_INDEX_THRESHOLD) {
+            for (int i=0; i<size; i++) {
+                var p = list.get(i);
+                if (p.packedTag == tag) {
+                    return p;
+                }
+            }
+            return null;
+        }
+
+        var index = partsIndex;
+        if (index == null) {
+            index = buildPartsIndex(list);
+            partsIndex = index;
+        }
+        int mask = (index.length >> 1) - 1;
+        int slot = hashTag(tag) & mask;
+        while (index[2*slot + 1] != -1) {
+            if (index[2*slot] == tag) {
+                return list.get(index[2*slot + 1]);
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
 
     /**
      * Get all parts
@@ -161,95 +737,292 @@ class BerTlv {
             // "Only CONSTRUCTED objects have parts."
             return new BerTlv[0];
         }
-        var res = new BerTlv[parts.size()];
-        return parts.toArray(res);
+        var list = parts();
+        var res = new BerTlv[list.size()];
+        return list.toArray(res);
     }
 
+    /**
+     * Returns number of parts, 0 for PRIMITIVE objects.
+     */
+    public int getPartsCount() {
+        if (this.encoding != Encoding.CONSTRUCTED) {
+            return 0;
+        }
+        return parts().size();
+    }
 
     /**
-     * Parse one chunk of continuous data.
+     * Get part by its position, unlike getParts() no array is allocated.
      * 
-     * @param  bytes            bytes array to parse
-     * @return                  Pair structure that contains size of processed data and resulting BerTlv object
+     * @param  index part position, from 0 to getPartsCount()-1
+     * @return       part
+     * @throws IndexOutOfBoundsException if index is out of range, any index for PRIMITIVE object
+     */
+    public BerTlv getPartAt(int index) {
+        if (encoding != Encoding.CONSTRUCTED) {
+            throw new IndexOutOfBoundsException(String.format("PRIMITIVE object %s has no part %d", Util.hexify(tag), index));
+        }
+        return parts().get(index);
+    }
+
+    /**
+     * Returns 64-bit hash of tag and value of this subtree: objects with equal
+     * encodings have equal hashes, different ones practically never collide.
+     * Hash is computed on first call and cached in every subtree object, so
+     * identical subtrees of already hashed trees are compared in O(1).
+     *
+     * addPart() on any object invalidates cached hashes of all CONSTRUCTED
+     * objects, as ancestors of the modified one aren't known. Objects must not
+     * be modified while other threads compute their hashes.
+     * 
+     * @return subtree hash, never 0
+     */
+    public long contentHash() {
+        long h = contentHash;
+        // read before hashing parts, so modification in between makes the result stale
+        int stamp = MODIFICATIONS.get();
+        if (h != 0 && (encoding == Encoding.PRIMITIVE || hashStamp == stamp)) {
+            return h;
+        }
+        // FNV-1a over tag, value bytes or hashes of parts, then finalizer of MurmurHash3
+        h = 0xCBF29CE484222325L;
+        for (var b : tag) {
+            h = (h ^ (b & 0xFF)) * 0x100000001B3L;
+        }
+        int count;
+        if (encoding == Encoding.PRIMITIVE) {
+            for (int i=0; i<valueLength; i++) {
+                h = (h ^ (byteAt(buffer, data, valueOffset + i) & 0xFF)) * 0x100000001B3L;
+            }
+            count = valueLength;
+        } else {
+            var list = parts();
+            for (var p : list) {
+                h = (h ^ p.contentHash()) * 0x100000001B3L;
+            }
+            count = list.size();
+        }
+        h = (h ^ count) * 0x100000001B3L;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        h = (h != 0) ? h : 1;
+        hashStamp = stamp;
+        contentHash = h;
+        return h;
+    }
+
+
+    /**
+     * Parse object located in bytes[offset..limit) or data[offset..limit).
+     *
+     * Parser doesn't use recursion: open constructed objects are kept in an
+     * explicit stack, so nesting depth is limited by "limits" only.
+     * 
+     * @param  bytes            backing bytes array, null if data is used
+     * @param  data             backing buffer, null if bytes are used
+     * @param  offset           object start
+     * @param  limit            end of available data (exclusive)
+     * @param  limits           parser limits
+     * @param  cache            cache of shared PRIMITIVE objects, may be null
+     * @param  build            create objects; if false, encoding is only validated and null is returned
+     * @return                  parsed object
      * @throws ParsingException
      */
-    private static Pair parseChunk(byte[] bytes)
+    private static BerTlv parse(byte[] bytes, ByteBuffer data, int offset, int limit, Limits limits, ValueCache cache, boolean build)
         throws ParsingException
     {
-        // "bytes" MUST BE at least 2 bytes length
-        if (bytes.length < 2) {
-            throw new ParsingException("Bytes array is too short");
-        }
+        var header = new Header();
 
-        try {
-            int p = 0;
-
-            // extract tag bytes
-            byte[] tagBytes;
-            int v = bytes[0] & 0x1F;
-            if (v == 0x1F) {
-                // xxx1 1111, i.e. tag continues in later bytes
-                while (true) {
-                    p++;
-                    if (((bytes[p] >> 7) & 1) == 0) {
-                        break;
-                    }
-                }
+        // stack of open constructed objects
+        int capacity = Math.min(limits.maxDepth, 8);
+        var nodes = build ? new BerTlv[capacity] : null;
+        var ends = new int[capacity];
+        var tagOffsets = new int[capacity];
+        int depth = 0;
+        int nodesCount = 0;
+
+        BerTlv root = null;
+        int p = offset;
+        while (true) {
+            int end = (depth == 0) ? limit : ends[depth-1];
+            try {
+                parseHeader(bytes, data, p, end, header);
+            } catch (ParsingException e) {
+                throw new ParsingException(e.getReason(), e.getOffset(), buildTagPath(bytes, data, tagOffsets, depth));
+            }
+            int valueEnd = header.valueOffset + header.valueLength;
+            if (depth == 0 && valueEnd - offset > limits.maxLength) {
+                throw new ParsingException(String.format("Object is longer than %d bytes", limits.maxLength), p, null);
+            }
+            nodesCount++;
+            if (nodesCount > limits.maxNodes) {
+                throw new ParsingException(String.format("Number of objects exceeds %d", limits.maxNodes), p, buildTagPath(bytes, data, tagOffsets, depth));
             }
-            tagBytes = Util.copyArray(bytes, 0, p+1);
 
-            // extract length bytes and length
-            p++;
-            var lengthBytes = new byte[4];
-            int lengthBytesLen = 1;
-            int length = 0;
+            BerTlv t = null;
+            if (build) {
+                if (cache != null) {
+                    t = cache.get(bytes, data, p, header);
+                }
+                if (t == null) {
+                    t = createObject(bytes, data, p, header, false);
+                }
+                if (depth == 0) {
+                    root = t;
+                } else {
+                    nodes[depth-1].parts.add(t);
+                }
+            }
 
-            v = (bytes[p] >> 7) & 1;
-            if (v == 0) {
-                length = bytes[p] & 0x7F;
-            } else {
-                int localLen = bytes[p] & 0x7F;
-                lengthBytesLen += localLen;
-                if (lengthBytesLen > 4) {
-                    throw new ParsingException(String.format("Length value is too large: %d, byte: %02X", lengthBytesLen, bytes[p]));
+            if (((byteAt(bytes, data, p) >> 5) & 1) == 1) {
+                // CONSTRUCTED, parse its parts next
+                if (depth == limits.maxDepth) {
+                    throw new ParsingException(String.format("Nesting depth exceeds %d", limits.maxDepth), p, buildTagPath(bytes, data, tagOffsets, depth));
                 }
-                for (int i=0; i<localLen; i++) {
-                    int x = bytes[p+i+1];
-                    if (x < 0) {
-                        // we use this code because all Java types are signed
-                        x += 256;
+                if (depth == ends.length) {
+                    capacity = Math.min(limits.maxDepth, depth * 2);
+                    ends = java.util.Arrays.copyOf(ends, capacity);
+                    tagOffsets = java.util.Arrays.copyOf(tagOffsets, capacity);
+                    if (build) {
+                        nodes = java.util.Arrays.copyOf(nodes, capacity);
                     }
-                    length = length*256 + x;
                 }
+                if (build) {
+                    nodes[depth] = t;
+                }
+                ends[depth] = valueEnd;
+                tagOffsets[depth] = p;
+                depth++;
+                p = header.valueOffset;
+            } else {
+                p = valueEnd;
             }
-            p += lengthBytesLen;
 
-            BerTlv t = null;
-            if (((bytes[0] >> 5) & 1) == 1) {
-                // CONSTRUCTED
-                // parse chunks of data block until it depletes
-                ArrayList<BerTlv> parts = new ArrayList<BerTlv>(5);
-                byte[] remains = Util.copyArray(bytes, p, length);
-                while (true) {
-                    Pair chunk = parseChunk(remains);
-                    parts.add(chunk.value);
-                    if (remains.length == chunk.size) {
-                        break;
-                    }
-                    remains = Util.copyArray(remains, chunk.size, remains.length-chunk.size);
+            // close all constructed objects which values are depleted
+            while (depth > 0 && p == ends[depth-1]) {
+                depth--;
+            }
+            if (depth == 0) {
+                break;
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Create object described by header, constructed objects get no parts
+     * (lazy ones remember encoding of parts to decode them later).
+     */
+    private static BerTlv createObject(byte[] bytes, ByteBuffer data, int offset, Header header, boolean lazy) {
+        var tagBytes = (bytes != null)
+            ? BerTlvTags.intern(bytes, offset, header.tagLength)
+            : BerTlvTags.intern(data, offset, header.tagLength);
+        if (((byteAt(bytes, data, offset) >> 5) & 1) == 1) {
+            // CONSTRUCTED
+            if (lazy) {
+                return new BerTlv(tagBytes, Encoding.CONSTRUCTED, bytes, data, header.valueOffset, header.valueLength, null);
+            }
+            return new BerTlv(tagBytes, new ArrayList<BerTlv>(5));
+        }
+        // PRIMITIVE
+        return new BerTlv(tagBytes, Encoding.PRIMITIVE, bytes, data, header.valueOffset, header.valueLength, null);
+    }
+
+    // build path like "6F/A5" from tags of open constructed objects
+    private static String buildTagPath(byte[] bytes, ByteBuffer data, int[] tagOffsets, int depth) {
+        var header = new Header();
+        var path = new StringBuilder();
+        int limit = (bytes != null) ? bytes.length : data.limit();
+        for (int i=0; i<depth; i++) {
+            try {
+                parseHeader(bytes, data, tagOffsets[i], limit, header);
+            } catch (ParsingException e) {
+                break;
+            }
+            if (i > 0) {
+                path.append('/');
+            }
+            for (int j=0; j<header.tagLength; j++) {
+                int b = byteAt(bytes, data, tagOffsets[i] + j);
+                path.append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 16)));
+                path.append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+            }
+        }
+        return path.toString();
+    }
+
+    /**
+     * Parse tag and length of the chunk located in bytes[offset..limit) or data[offset..limit).
+     * 
+     * @param  header           structure to store results to
+     * @throws ParsingException
+     */
+    private static void parseHeader(byte[] bytes, ByteBuffer data, int offset, int limit, Header header)
+        throws ParsingException
+    {
+        // chunk MUST BE at least 2 bytes length
+        if (limit - offset < 2) {
+            throw new ParsingException("Bytes array is too short", offset, null);
+        }
+
+        int p = offset;
+
+        // extract tag bytes
+        int v = byteAt(bytes, data, p) & 0x1F;
+        if (v == 0x1F) {
+            // xxx1 1111, i.e. tag continues in later bytes
+            while (true) {
+                p++;
+                if (p >= limit) {
+                    throw new ParsingException("Premature end of bytes", p, null);
                 }
+                if (((byteAt(bytes, data, p) >> 7) & 1) == 0) {
+                    break;
+                }
+            }
+        }
+        header.tagLength = p-offset+1;
 
-                t = new BerTlv(tagBytes, parts);
-            } else {
-                // PRIMITIVE
-                t = new BerTlv(tagBytes, Util.copyArray(bytes, p, length));
+        // extract length bytes and length
+        p++;
+        if (p >= limit) {
+            throw new ParsingException("Premature end of bytes", p, null);
+        }
+        int lengthBytesLen = 1;
+        int length = 0;
+
+        v = (byteAt(bytes, data, p) >> 7) & 1;
+        if (v == 0) {
+            length = byteAt(bytes, data, p) & 0x7F;
+        } else {
+            int localLen = byteAt(bytes, data, p) & 0x7F;
+            lengthBytesLen += localLen;
+            if (lengthBytesLen > 4) {
+                throw new ParsingException(String.format("Length value is too large: %d, byte: %02X", lengthBytesLen, byteAt(bytes, data, p)), p, null);
             }
-            Pair pair = new Pair(p+length, t);
-            return pair;
+            if (p + localLen >= limit) {
+                throw new ParsingException("Premature end of bytes", limit, null);
+            }
+            for (int i=0; i<localLen; i++) {
+                length = length*256 + (byteAt(bytes, data, p+i+1) & 0xFF);
+            }
+        }
+        p += lengthBytesLen;
 
-        } catch (ArrayIndexOutOfBoundsException e) {
-            throw new ParsingException("Premature end of bytes");
+        if (p + length > limit) {
+            throw new ParsingException("Premature end of bytes", limit, null);
         }
+        header.valueOffset = p;
+        header.valueLength = length;
+    }
+
+    // byte of either backing array or backing buffer
+    private static byte byteAt(byte[] bytes, ByteBuffer data, int index) {
+        return (bytes != null) ? bytes[index] : data.get(index);
     }
 
     /**
@@ -258,37 +1031,346 @@ class BerTlv {
      * @return [description]
      */
     public String toString() {
-        String s;
+        var sb = new StringBuilder();
+        try {
+            writeTo(sb, 0, null);
+        } catch (IOException e) {
+            // StringBuilder doesn't throw IOException
+            throw new AssertionError(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Print annotated object content to out, same format as toString().
+     * 
+     * @param  out    target
+     * @param  indent number of spaces to prepend to every line
+     * @throws IOException
+     */
+    public void writeTo(Appendable out, int indent)
+        throws IOException
+    {
+        writeTo(out, indent, null);
+    }
+
+    /**
+     * Print annotated object content to out in one pass, without building
+     * intermediate strings for nested objects.
+     * 
+     * @param  out      target
+     * @param  indent   number of spaces to prepend to every line
+     * @param  tagNames dictionary that returns tag name by packed tag or null
+     *                  if name is unknown, e.g. Util::getTagName; may be null
+     * @throws IOException
+     * @throws IllegalArgumentException if indent is negative
+     */
+    public void writeTo(Appendable out, int indent, IntFunction<String> tagNames)
+        throws IOException
+    {
+        if (indent < 0) {
+            throw new IllegalArgumentException(String.format("Negative indent: %d", indent));
+        }
+        write(out, indent, tagNames);
+    }
 
+    private void write(Appendable out, int indent, IntFunction<String> tagNames)
+        throws IOException
+    {
+        writeIndent(out, indent);
+        out.append("TAG:   ");
+        appendHex(out, tag, null, 0, tag.length);
         if (encoding == Encoding.PRIMITIVE) {
-            s = String.format("TAG:   %s(PRIMITIVE)%nVALUE: %s", 
-                Util.hexify(tag), 
-                Util.hexify(value));
+            out.append("(PRIMITIVE)");
+            appendTagName(out, tagNames);
+            out.append(LINE_SEPARATOR);
+            writeIndent(out, indent);
+            out.append("VALUE: ");
+            appendHex(out, buffer, data, valueOffset, valueLength);
+        } else {
+            out.append("(CONSTRUCTED)");
+            appendTagName(out, tagNames);
+            out.append(LINE_SEPARATOR);
+            var list = parts();
+            for (int i=0; i<list.size(); i++) {
+                if (i > 0) {
+                    out.append(LINE_SEPARATOR);
+                }
+                list.get(i).write(out, indent + 2, tagNames);
+            }
+        }
+    }
+
+    /**
+     * Print annotated object content with EMV tag names and flush out.
+     * 
+     * @param  out target
+     * @throws IOException
+     */
+    public void prettyPrint(Writer out)
+        throws IOException
+    {
+        writeTo(out, 0, Util::getTagName);
+        out.append(LINE_SEPARATOR);
+        out.flush();
+    }
+
+    private void appendTagName(Appendable out, IntFunction<String> tagNames)
+        throws IOException
+    {
+        if (tagNames == null) {
+            return;
+        }
+        var name = tagNames.apply(packedTag);
+        if (name != null) {
+            out.append(' ').append(name);
+        }
+    }
+
+    private static void writeIndent(Appendable out, int indent)
+        throws IOException
+    {
+        while (indent > INDENT.length()) {
+            out.append(INDENT);
+            indent -= INDENT.length();
+        }
+        out.append(INDENT, 0, indent);
+    }
+
+    // write bytes as "AA BB CC"
+    private static void appendHex(Appendable out, byte[] bytes, ByteBuffer data, int offset, int length)
+        throws IOException
+    {
+        for (int i=0; i<length; i++) {
+            if (i > 0) {
+                out.append(' ');
+            }
+            int b = byteAt(bytes, data, offset + i);
+            out.append(HEX_DIGITS[(b >> 4) & 0xF]);
+            out.append(HEX_DIGITS[b & 0xF]);
+        }
+    }
+
+    // parts of constructed object, decoded on first access for lazy objects
+    private List<BerTlv> parts() {
+        var list = parts;
+        if (list == null && encoding == Encoding.CONSTRUCTED) {
+            list = decodeParts();
+        }
+        return list;
+    }
+
+    // one thread decodes, others wait and get the same parts
+    private synchronized List<BerTlv> decodeParts() {
+        if (parts == null) {
+            var decoded = new ArrayList<BerTlv>(5);
+            var header = new Header();
+            int p = valueOffset;
+            int end = valueOffset + valueLength;
+            try {
+                while (p < end) {
+                    parseHeader(buffer, data, p, end, header);
+                    decoded.add(createObject(buffer, data, p, header, true));
+                    p = header.valueOffset + header.valueLength;
+                }
+            } catch (ParsingException e) {
+                // encoding was validated by parseBytesLazy()
+                throw new IllegalStateException(e);
+            }
+            parts = decoded;
+        }
+        return parts;
+    }
+
+    // true if constructed object parts are not decoded yet
+    private boolean isPending() {
+        return parts == null && encoding == Encoding.CONSTRUCTED;
+    }
+
+    private int getEncodedValueLength() {
+        if (encoding == Encoding.PRIMITIVE || isPending()) {
+            return valueLength;
+        }
+        long length = 0;
+        for (BerTlv p : parts) {
+            length += p.getEncodedLength();
+        }
+        checkValueLength(length);
+        return (int)length;
+    }
+
+    // number of objects in this subtree
+    private int countNodes() {
+        int count = 1;
+        if (encoding == Encoding.CONSTRUCTED && !isPending()) {
+            for (BerTlv p : parts) {
+                count += p.countNodes();
+            }
+        }
+        return count;
+    }
+
+    // store value lengths of the subtree objects into "lengths" in pre-order,
+    // starting at index i; returns index next to the last subtree object
+    private int computeLengths(int[] lengths, int i) {
+        int next = i + 1;
+        if (encoding == Encoding.PRIMITIVE || isPending()) {
+            // not yet decoded parts are written as is
+            lengths[i] = valueLength;
+        } else {
+            long length = 0;
+            for (BerTlv p : parts) {
+                int partIndex = next;
+                next = p.computeLengths(lengths, partIndex);
+                length += p.tag.length + lengthFieldSize(lengths[partIndex]) + lengths[partIndex];
+            }
+            // checked before narrowing, int would overflow on many large parts
+            checkValueLength(length);
+            lengths[i] = (int)length;
+        }
+        return next;
+    }
+
+    // write subtree using value lengths computed by computeLengths()
+    private int writeEncoding(ByteBuffer dst, int[] lengths, int i) {
+        dst.put(tag);
+        writeLength(dst, lengths[i]);
+        int next = i + 1;
+        if (encoding == Encoding.PRIMITIVE || isPending()) {
+            if (data != null) {
+                dst.put(dst.position(), data, valueOffset, valueLength);
+                dst.position(dst.position() + valueLength);
+            } else {
+                dst.put(buffer, valueOffset, valueLength);
+            }
         } else {
-            // get representations of parts and indent them
-            ArrayList<String> partStrings = new ArrayList<String>(parts.size());
             for (BerTlv p : parts) {
-                partStrings.add(p.toString().replaceAll("(?m)^", "  "));
+                next = p.writeEncoding(dst, lengths, next);
+            }
+        }
+        return next;
+    }
+
+    // encoded length must be parseable back, parseHeader() accepts up to 3 length bytes
+    private static int lengthFieldSize(int length) {
+        if (length < 0x80) {
+            return 1;
+        } else if (length <= 0xFF) {
+            return 2;
+        } else if (length <= 0xFFFF) {
+            return 3;
+        } else {
+            checkValueLength(length);
+            return 4;
+        }
+    }
+
+    private static void checkValueLength(long length) {
+        if (length > MAX_VALUE_LENGTH) {
+            throw new IllegalStateException(String.format("Value of %d bytes exceeds %d bytes supported by the parser", length, MAX_VALUE_LENGTH));
+        }
+    }
+
+    private static void writeLength(ByteBuffer dst, int length) {
+        int size = lengthFieldSize(length);
+        if (size == 1) {
+            // short form
+            dst.put((byte)length);
+            return;
+        }
+        // long form: 0x80 + number of length bytes, then length bytes
+        dst.put((byte)(0x80 | (size - 1)));
+        for (int i=size-2; i>=0; i--) {
+            dst.put((byte)(length >> (i*8)));
+        }
+    }
+
+    private static int[] buildPartsIndex(List<BerTlv> list) {
+        int size = list.size();
+        int capacity = Integer.highestOneBit(size * 2 - 1) << 1;
+        var index = new int[capacity * 2];
+        for (int slot=0; slot<capacity; slot++) {
+            index[2*slot + 1] = -1;
+        }
+
+        int mask = capacity - 1;
+        for (int i=0; i<size; i++) {
+            int tag = list.get(i).packedTag;
+            if (tag == -1) {
+                continue;
+            }
+            int slot = hashTag(tag) & mask;
+            while (index[2*slot + 1] != -1 && index[2*slot] != tag) {
+                slot = (slot + 1) & mask;
+            }
+            if (index[2*slot + 1] == -1) {
+                // keep position of the first part with this tag
+                index[2*slot] = tag;
+                index[2*slot + 1] = i;
             }
-            String partStringsJoined = String.join("\n", partStrings);
+        }
+        return index;
+    }
+
+    private static int hashTag(int tag) {
+        int h = tag * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
 
-            s = String.format("TAG:   %s(CONSTRUCTED)%n%s", 
-                Util.hexify(tag), 
-                partStringsJoined);
+    /**
+     * Pack tag bytes into int, e.g. "9F 38" into 0x9F38.
+     * 
+     * @param  tag tag bytes
+     * @return     packed tag or -1 if tag is longer than 4 bytes
+     */
+    public static int packTag(byte[] tag) {
+        if (tag.length > 4) {
+            return -1;
         }
-        return s;
+        int res = 0;
+        for (var b : tag) {
+            res = (res << 8) | (b & 0xFF);
+        }
+        return res;
     }
 
     /**
-     * We use this class internally to return both BerTlv object and consumed bytes array size.
+     * Convert hex tag representation like "9F 38" into packed tag without
+     * intermediate allocations.
+     * 
+     * @param  tagHex hex string, spaces are ignored
+     * @return        packed tag or -1 if tag is longer than 4 bytes
+     * @throws IllegalArgumentException if input is empty, has non-hex char or odd number of digits
      */
-    private static class Pair {
-        public final BerTlv value;
-        public final int size;
-        public Pair(int size, BerTlv value) {
-            this.size = size;
-            this.value = value;
+    public static int tagFromHex(String tagHex) {
+        int res = 0;
+        int digits = 0;
+        int len = tagHex.length();
+        for (int i=0; i<len; i++) {
+            char c = tagHex.charAt(i);
+            if (c == ' ') {
+                continue;
+            }
+            int d = (c < 128) ? Character.digit(c, 16) : -1;
+            if (d == -1) {
+                throw new IllegalArgumentException(String.format("Incorrect input character at offset %d", i));
+            }
+            digits++;
+            res = (res << 4) | d;
+        }
+        if (digits == 0 || digits % 2 != 0) {
+            throw new IllegalArgumentException(String.format("Tag \"%s\" must have even number of hex digits", tagHex));
         }
+        return (digits > 8) ? -1 : res;
+    }
+
+    /**
+     * Tag and length of the chunk being parsed, reused while parsing to avoid allocations.
+     */
+    private static class Header {
+        public int tagLength;
+        public int valueOffset;
+        public int valueLength;
     }
 
 
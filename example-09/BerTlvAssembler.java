@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/**
+ * Incremental (push) BER-TLV parser for responses that arrive in pieces,
+ * e.g. 61xx GET RESPONSE continuations or a sequence of READ BINARY chunks.
+ *
+ * Fragments are fed as they come from the card, objects are created as soon as
+ * their bytes are available, so decoding overlaps with remaining card I/O and
+ * fragments are never concatenated. Fragments are kept, not copied: primitive
+ * values are views into the fragment they came in, only values split between
+ * fragments are copied. Fed arrays must not be modified afterwards.
+ *
+ *     var assembler = new BerTlvAssembler();
+ *     assembler.feed(answer.getData());
+ *     while (answer.getSW1() == 0x61) {
+ *         answer = channel.transmit(getResponseCommand);
+ *         assembler.feed(answer.getData());
+ *     }
+ *     var root = assembler.getRoot();
+ */
+class BerTlvAssembler {
+    /**
+     * Receives objects when they are complete: primitive ones when all value
+     * bytes are fed, constructed ones after their last part, i.e. in post-order.
+     */
+    public interface Listener {
+        void objectCompleted(BerTlv tlv, int depth);
+    }
+
+    private final BerTlv.Limits limits;
+    private final Listener listener;
+
+    // fed fragments and their positions in the whole encoding
+    private byte[][] fragments = new byte[4][];
+    private int[] fragmentOffsets = new int[4];
+    private int[] fragmentStarts = new int[5];
+    private int fragmentsCount = 0;
+    // total number of fed bytes
+    private int size = 0;
+    // fragment containing "position", see locate()
+    private int current = 0;
+
+    // position of the next object header
+    private int position = 0;
+    private int nodesCount = 0;
+
+    // open constructed objects and positions of their value ends
+    private BerTlv[] nodes = new BerTlv[8];
+    private int[] ends = new int[8];
+    private int depth = 0;
+
+    private BerTlv root;
+
+    // header of the object being parsed, tags longer than 4 bytes are rejected
+    private final byte[] tag = new byte[4];
+    private int tagLength;
+    private int valueOffset;
+    private int valueLength;
+
+
+    public BerTlvAssembler() {
+        this(BerTlv.DEFAULT_LIMITS, null);
+    }
+
+    /**
+     * @param limits   parser limits
+     * @param listener receives completed objects, may be null
+     */
+    public BerTlvAssembler(BerTlv.Limits limits, Listener listener) {
+        this.limits = limits;
+        this.listener = listener;
+    }
+
+
+    /**
+     * Feed next fragment, see feed(byte[], int, int).
+     */
+    public void feed(byte[] fragment)
+        throws BerTlv.ParsingException
+    {
+        feed(fragment, 0, fragment.length);
+    }
+
+    /**
+     * Feed next fragment and create all objects it completes. Bytes fed after
+     * the root object is complete are ignored.
+     * 
+     * @param  fragment         fragment bytes, kept by assembler
+     * @param  offset           fragment start
+     * @param  length           fragment length
+     * @throws BerTlv.ParsingException if data is malformed or exceeds limits, offset
+     *                                 is counted from the start of the whole encoding
+     */
+    public void feed(byte[] fragment, int offset, int length)
+        throws BerTlv.ParsingException
+    {
+        if (offset < 0 || length < 0 || length > fragment.length - offset) {
+            throw new IndexOutOfBoundsException(String.format("Range [%d, %d) is out of bounds of %d bytes", offset, offset + length, fragment.length));
+        }
+        if (root != null && depth == 0 || length == 0) {
+            return;
+        }
+        if (fragmentsCount == fragments.length) {
+            fragments = Arrays.copyOf(fragments, fragmentsCount * 2);
+            fragmentOffsets = Arrays.copyOf(fragmentOffsets, fragmentsCount * 2);
+            fragmentStarts = Arrays.copyOf(fragmentStarts, fragmentsCount * 2 + 1);
+        }
+        fragments[fragmentsCount] = fragment;
+        fragmentOffsets[fragmentsCount] = offset;
+        fragmentStarts[fragmentsCount] = size;
+        fragmentsCount++;
+        size += length;
+        fragmentStarts[fragmentsCount] = size;
+
+        while (parseNext()) {
+            if (root != null && depth == 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns true if root object is complete.
+     */
+    public boolean isComplete() {
+        return root != null && depth == 0;
+    }
+
+    /**
+     * Returns complete root object or null if more fragments are expected.
+     */
+    public BerTlv getRoot() {
+        return isComplete() ? root : null;
+    }
+
+    /**
+     * Returns number of fed bytes.
+     */
+    public int getFedLength() {
+        return size;
+    }
+
+
+    // create next object if its header (and value for primitive objects) is
+    // fed already; returns false if more bytes are needed
+    private boolean parseNext()
+        throws BerTlv.ParsingException
+    {
+        int end = (depth == 0) ? Integer.MAX_VALUE : ends[depth-1];
+        if (!parseHeader(end)) {
+            return false;
+        }
+        int valueEnd = valueOffset + valueLength;
+        // checked before waiting for the value, so fragments of too long root aren't kept
+        if (depth == 0 && valueEnd > limits.maxLength) {
+            throw new BerTlv.ParsingException(String.format("Object is longer than %d bytes", limits.maxLength), position, null);
+        }
+        boolean constructed = (tag[0] & 0x20) != 0;
+        if (!constructed && valueEnd > size) {
+            // wait for the rest of the value, header is parsed again then
+            return false;
+        }
+
+        nodesCount++;
+        if (nodesCount > limits.maxNodes) {
+            throw new BerTlv.ParsingException(String.format("Number of objects exceeds %d", limits.maxNodes), position, buildTagPath());
+        }
+
+        var tagBytes = BerTlvTags.intern(tag, 0, tagLength);
+        BerTlv t;
+        if (constructed) {
+            if (depth == limits.maxDepth) {
+                throw new BerTlv.ParsingException(String.format("Nesting depth exceeds %d", limits.maxDepth), position, buildTagPath());
+            }
+            t = new BerTlv(tagBytes, new ArrayList<BerTlv>(5));
+        } else {
+            int i = locate(valueOffset);
+            int start = valueOffset - fragmentStarts[i];
+            if (valueEnd <= fragmentStarts[i+1]) {
+                // value is a view into the fragment
+                t = new BerTlv(tagBytes, fragments[i], fragmentOffsets[i] + start, valueLength);
+            } else {
+                t = new BerTlv(tagBytes, copy(valueOffset, valueLength));
+            }
+        }
+        if (depth == 0) {
+            root = t;
+        } else {
+            try {
+                nodes[depth-1].addPart(t);
+            } catch (BerTlv.ConstraintException e) {
+                // open objects are always constructed
+                throw new IllegalStateException(e);
+            }
+        }
+
+        if (constructed) {
+            if (depth == nodes.length) {
+                nodes = Arrays.copyOf(nodes, depth * 2);
+                ends = Arrays.copyOf(ends, depth * 2);
+            }
+            nodes[depth] = t;
+            ends[depth] = valueEnd;
+            depth++;
+            position = valueOffset;
+        } else {
+            position = valueEnd;
+            if (listener != null) {
+                listener.objectCompleted(t, depth);
+            }
+        }
+
+        // close all constructed objects which values are depleted
+        while (depth > 0 && position == ends[depth-1]) {
+            depth--;
+            if (listener != null) {
+                listener.objectCompleted(nodes[depth], depth);
+            }
+            nodes[depth] = null;
+        }
+        return true;
+    }
+
+    // parse tag and length at "position", object must end before "end";
+    // returns false if header isn't fed completely
+    private boolean parseHeader(int end)
+        throws BerTlv.ParsingException
+    {
+        int limit = Math.min(end, size);
+        if (position == end) {
+            return false;
+        }
+        if (end - position < 2) {
+            throw new BerTlv.ParsingException("Bytes array is too short", position, buildTagPath());
+        }
+
+        int p = position;
+        tagLength = 0;
+        while (true) {
+            if (p >= limit) {
+                return needMore(p, end);
+            }
+            byte b = byteAt(p);
+            if (tagLength == tag.length) {
+                throw new BerTlv.ParsingException("Tag is too long", position, buildTagPath());
+            }
+            tag[tagLength++] = b;
+            p++;
+            if (tagLength == 1 ? (b & 0x1F) != 0x1F : (b & 0x80) == 0) {
+                break;
+            }
+        }
+
+        if (p >= limit) {
+            return needMore(p, end);
+        }
+        int first = byteAt(p) & 0xFF;
+        p++;
+        int length = first;
+        if (first > 0x7F) {
+            int lengthBytes = first & 0x7F;
+            if (lengthBytes + 1 > 4) {
+                throw new BerTlv.ParsingException(String.format("Length value is too large: %d, byte: %02X", lengthBytes + 1, first), p - 1, buildTagPath());
+            }
+            length = 0;
+            for (int i=0; i<lengthBytes; i++) {
+                if (p >= limit) {
+                    return needMore(p, end);
+                }
+                length = length*256 + (byteAt(p) & 0xFF);
+                p++;
+            }
+        }
+        if (length > end - p) {
+            throw new BerTlv.ParsingException("Premature end of bytes", end, buildTagPath());
+        }
+        valueOffset = p;
+        valueLength = length;
+        return true;
+    }
+
+    // header is cut at p: wait for more bytes unless enclosing object ends there
+    private boolean needMore(int p, int end)
+        throws BerTlv.ParsingException
+    {
+        if (p >= end) {
+            throw new BerTlv.ParsingException("Premature end of bytes", p, buildTagPath());
+        }
+        return false;
+    }
+
+    // index of the fragment containing position p
+    private int locate(int p) {
+        if (p < fragmentStarts[current]) {
+            current = 0;
+        }
+        while (p >= fragmentStarts[current+1]) {
+            current++;
+        }
+        return current;
+    }
+
+    private byte byteAt(int p) {
+        int i = locate(p);
+        return fragments[i][fragmentOffsets[i] + p - fragmentStarts[i]];
+    }
+
+    // copy bytes split between fragments
+    private byte[] copy(int p, int length) {
+        var res = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            int i = locate(p + copied);
+            int start = p + copied - fragmentStarts[i];
+            int n = Math.min(length - copied, fragmentStarts[i+1] - fragmentStarts[i] - start);
+            System.arraycopy(fragments[i], fragmentOffsets[i] + start, res, copied, n);
+            copied += n;
+        }
+        return res;
+    }
+
+    // build path like "6F/A5" from tags of open constructed objects
+    private String buildTagPath() {
+        var path = new StringBuilder();
+        for (int i=0; i<depth; i++) {
+            if (i > 0) {
+                path.append('/');
+            }
+            for (var b : nodes[i].getTag()) {
+                path.append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 16)));
+                path.append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+            }
+        }
+        return path.toString();
+    }
+}
@@ -0,0 +1,727 @@
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+
+/**
+ * Simple benchmarks for BER-TLV code, run with "make bench-ber-tlv".
+ *
+ * Every task is warmed up first, then throughput and bytes allocated per call
+ * are measured in a loop and latency of single calls is sampled to get 99th
+ * percentile and maximum. Sections may be selected by arguments, e.g.
+ * "java BerTlvBench parse lookup".
+ */
+class BerTlvBench {
+    interface Task {
+        Object run() throws Exception;
+    }
+
+    private static final long WARMUP_NANOS = 500_000_000L;
+    private static final long MEASURE_NANOS = 1_000_000_000L;
+    private static final int LATENCY_SAMPLES = 20_000;
+
+    // results are stored here so JIT cannot drop benchmarked code
+    static volatile Object sink;
+
+    // parser limits that never stop benchmarked inputs
+    static final BerTlv.Limits UNLIMITED = new BerTlv.Limits(100_000, 1_000_000, Integer.MAX_VALUE);
+
+    /**
+     * Run all benchmark sections or only the ones given in args:
+     * parse, lookup, print, hex, assemble, diff, footprint, corpus.
+     */
+    public static void main(String[] args)
+        throws Exception
+    {
+        var sections = Arrays.asList(args);
+        boolean all = sections.isEmpty();
+        var corpus = new Corpus();
+
+        if (all || sections.contains("parse")) {
+            benchParse(corpus);
+        }
+        if (all || sections.contains("lookup")) {
+            benchLookup(corpus);
+        }
+        if (all || sections.contains("print")) {
+            benchPrint(corpus);
+        }
+        if (all || sections.contains("hex")) {
+            benchHexify();
+        }
+        if (all || sections.contains("assemble")) {
+            benchAssemble(corpus);
+        }
+        if (all || sections.contains("diff")) {
+            benchDiff();
+        }
+        if (all || sections.contains("footprint")) {
+            measureFootprint(20_000);
+        }
+        if (all || sections.contains("corpus")) {
+            benchCorpus(1_000_000);
+        }
+    }
+
+    /**
+     * Test vectors of BerTlvTest, EMV responses recorded from cards and
+     * synthetic worst cases.
+     */
+    static class Corpus {
+        final ArrayList<String> names = new ArrayList<String>();
+        final ArrayList<byte[]> inputs = new ArrayList<byte[]>();
+
+        Corpus()
+            throws BerTlv.ConstraintException
+        {
+            add("PSE FCI (44 bytes)", "6F 28 84 0E 31 50 41 59 2E 53 59 53 2E 44 44 46 30 31 A5 16 88 01 01 5F 2D 08 72 75 65 6E 66 72 64 65 BF 0C 05 9F 4D 02 0B 0A");
+            add("ADF FCI (54 bytes)", "6F 34 84 07 A0 00 00 00 03 10 10 A5 29 50 0B 56 49 53 41 20 43 52 45 44 49 54 87 01 01 9F 38 06 9F 1A 02 5F 2A 02 5F 2D 02 65 6E BF 0C 08 9F 5A 05 31 08 40 08 40");
+            add("GPO response (42 bytes)", "77 28 82 02 19 80 94 08 08 01 01 00 10 01 03 01 9F 36 02 00 3A 9F 26 08 11 22 33 44 55 66 77 88 9F 10 07 06 01 0A 03 A0 00 00");
+            add("PSE record (27 bytes)", "70 19 61 07 4F 02 A0 01 50 01 41 61 04 4F 02 A0 02 9F 38 01 91 61 04 50 02 42 43");
+            add("record 70 (46 bytes)", "70 2C 57 01 01 5A 01 02 5F 20 01 03 5F 24 01 04 5F 25 01 05 5F 28 01 06 "
+                + "5F 34 01 07 8C 01 08 8D 01 09 57 01 0A 9F B8 D3 71 01 0B 9F 38 00");
+            names.add("card record (106 bytes)");
+            inputs.add(randomRecord(new java.util.Random(1)));
+            add("record 70 (150 bytes)", "70 81 93 90 81 90 1D 6B AA 1D 94 B6 2B 5E 88 A9 22 49 BF B5 3C CA A8 30 6E 99 6C C9 F1 DB BB E3 1B EE 04 70 37 00 FC 44 A8 B6 B3 57 45 51 F9 E6 A0 A3 1F 9A D6 DC EB F5 A6 17 4A 65 7F 2C 43 F7 CE 44 7C D5 71 82 8D 0D 14 E1 F9 5C 09 E9 29 93 3F C7 2B DD F7 8C 6E BD 18 1F 49 6D EF 78 C9 E4 88 BF 62 F7 3F B2 28 CE 4A 9F 28 F6 13 1E BA 0D 40 B9 77 35 58 A5 EE 13 BB 3B 76 0D B6 31 52 68 4E 8D CC B8 9D 06 80 2F 0E 1A BC 23 22 B5 FA 51 C6 07 96 40 F4 A4");
+
+            // worst cases: many objects in one template and deep nesting
+            var wide = new BerTlv(Util.toByteArray("70"), new ArrayList<BerTlv>());
+            for (int i=0; i<2000; i++) {
+                wide.addPart(new BerTlv(Util.toByteArray("9F 36"), new byte[2]));
+            }
+            names.add("2000 parts (10 KB)");
+            inputs.add(wide.toBytes());
+
+            var deep = new BerTlv(Util.toByteArray("9F 36"), new byte[2]);
+            for (int i=0; i<1000; i++) {
+                deep = new BerTlv(Util.toByteArray("A0"), new ArrayList<BerTlv>()).addPart(deep);
+            }
+            names.add("1000 levels (3 KB)");
+            inputs.add(deep.toBytes());
+        }
+
+        private void add(String name, String hex) {
+            names.add(name);
+            inputs.add(Util.toByteArray(hex));
+        }
+
+        byte[] get(String name) {
+            return inputs.get(names.indexOf(name));
+        }
+    }
+
+    static void benchParse(Corpus corpus)
+        throws Exception
+    {
+        printHeader("Parser throughput and latency");
+        for (int i=0; i<corpus.inputs.size(); i++) {
+            final var bytes = corpus.inputs.get(i);
+            measure(corpus.names.get(i) + ", recursive", () -> RecursiveParser.parseBytes(bytes));
+            measure(corpus.names.get(i) + ", iterative", () -> BerTlv.parseBytes(bytes, UNLIMITED));
+        }
+
+        // responses in direct buffers: copy to heap first or parse in place
+        for (var name : new String[]{"PSE FCI (44 bytes)", "record 70 (150 bytes)", "2000 parts (10 KB)"}) {
+            var bytes = corpus.get(name);
+            final var direct = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+            measure(name + ", direct, copy", () -> {
+                var copy = new byte[direct.remaining()];
+                direct.get(direct.position(), copy);
+                return BerTlv.parseBytes(copy, UNLIMITED);
+            });
+            measure(name + ", direct, parseBuffer", () -> BerTlv.parseBuffer(direct, UNLIMITED));
+        }
+
+        // hostile input is rejected by default limits without walking it all
+        final var deepBytes = corpus.get("1000 levels (3 KB)");
+        measure("1000 levels, default limits", () -> {
+            try {
+                return BerTlv.parseBytes(deepBytes);
+            } catch (BerTlv.ParsingException e) {
+                return e;
+            }
+        });
+    }
+
+    static void benchLookup(Corpus corpus)
+        throws Exception
+    {
+        printHeader("Lookup in parsed objects");
+        final var fci = BerTlv.parseBytes(corpus.get("PSE FCI (44 bytes)"));
+        measure("FCI A5/BF0C/9F4D, getPart(String)", () -> fci.getPart("A5").getPart("BF 0C").getPart("9F 4D"));
+        measure("FCI A5/BF0C/9F4D, getPart(int)", () -> fci.getPart(0xA5).getPart(0xBF0C).getPart(0x9F4D));
+        final var path = TlvPath.compile("6F/A5/BF0C/9F4D");
+        measure("FCI A5/BF0C/9F4D, TlvPath", () -> path.find(fci));
+
+        final var record = BerTlv.parseBytes(corpus.get("record 70 (46 bytes)"));
+        measure("record 70, getParts()", () -> record.getParts());
+        measure("record 70, getPartAt() loop", () -> {
+            int n = 0;
+            for (int i=0; i<record.getPartsCount(); i++) {
+                n += record.getPartAt(i).getValueLength();
+            }
+            return n;
+        });
+        final var cardRecord = BerTlv.parseBytes(corpus.get("card record (106 bytes)"));
+        final var cardRecordParts = Arrays.asList(cardRecord.getParts());
+        measure("card record, Util.mapDataObjects", () -> Util.mapDataObjects(cardRecordParts));
+
+        // what Example does with SELECT response: label, language and PDOL
+        final var adf = BerTlv.parseBytes(corpus.get("ADF FCI (54 bytes)"));
+        final var labelPath = TlvPath.compile("6F/A5/50");
+        final var langPath = TlvPath.compile("6F/A5/5F2D");
+        final var pdolPath = TlvPath.compile("6F/A5/9F38");
+        measure("ADF FCI 3 values, TlvPath", () -> new Object[]{
+            Util.bytesToString(labelPath.find(adf).getValue()),
+            Util.bytesToString(langPath.find(adf).getValue()),
+            pdolPath.find(adf).getValue()});
+        measure("ADF FCI 3 values, getPart(int)", () -> {
+            var pi = adf.getPart(0xA5);
+            return new Object[]{
+                Util.bytesToString(pi.getPart(0x50).getValue()),
+                Util.bytesToString(pi.getPart(0x5F2D).getValue()),
+                pi.getPart(0x9F38).getValue()};
+        });
+        measure("ADF FCI 3 values, EmvTemplates", () -> {
+            var pi = EmvTemplates.FciTemplate.from(adf).getFciProprietaryTemplate();
+            return new Object[]{pi.getApplicationLabel(), pi.getLanguagePreference(), pi.getPdol()};
+        });
+
+        // values of card record, converted the same way
+        measure("card record 5 values, getPart(int)", () -> new Object[]{
+            Util.bytesToString(cardRecord.getPart(0x5F20).getValue()),
+            cardRecord.getPart(0x8C).getValue(),
+            cardRecord.getPart(0x8E).getValue(),
+            cardRecord.getPart(0x9F07).getValue(),
+            cardRecord.getPart(0x9F08).getValue()});
+        measure("card record 5 values, EmvTemplates", () -> {
+            var r = EmvTemplates.RecordTemplate.from(cardRecord);
+            return new Object[]{
+                r.getCardholderName(),
+                r.getCdol1(),
+                r.getCvmList(),
+                r.getApplicationUsageControl(),
+                r.getApplicationVersionNumber()};
+        });
+
+        final var wide = BerTlv.parseBytes(corpus.get("2000 parts (10 KB)"), UNLIMITED);
+        measure("2000 parts, getPart(int) of absent tag", () -> wide.getPart(0x9F37));
+    }
+
+    static void benchPrint(Corpus corpus)
+        throws Exception
+    {
+        printHeader("Printing");
+        for (var name : new String[]{"PSE FCI (44 bytes)", "record 70 (150 bytes)", "2000 parts (10 KB)"}) {
+            final var tlv = BerTlv.parseBytes(corpus.get(name), UNLIMITED);
+            measure(name + ", regex indent", () -> RegexPrinter.toString(tlv));
+            measure(name + ", writeTo", () -> tlv.toString());
+        }
+    }
+
+    /**
+     * Hex formatting: previous String.format based Util.hexify against lookup
+     * table encoder with different sinks; validating parsers.
+     */
+    static void benchHexify()
+        throws Exception
+    {
+        printHeader("Hex formatting and parsing");
+        var random = new java.util.Random(1);
+        for (int size : new int[]{16, 256, 10240}) {
+            final var bytes = new byte[size];
+            random.nextBytes(bytes);
+            final var chars = new char[Util.hexifiedLength(size, " ")];
+            final var builder = new StringBuilder(chars.length);
+            measure(size + " bytes, String.format", () -> FormatHexify.hexify(bytes));
+            measure(size + " bytes, hexify", () -> Util.hexify(bytes));
+            measure(size + " bytes, hexify to char[]", () -> Util.hexify(bytes, 0, size, " ", chars, 0));
+            measure(size + " bytes, hexify to StringBuilder", () -> {
+                builder.setLength(0);
+                return Util.hexify(bytes, 0, size, " ", builder);
+            });
+        }
+
+        // parsing APDU template and long dump back
+        for (int size : new int[]{16, 10240}) {
+            var bytes = new byte[size];
+            random.nextBytes(bytes);
+            final var hex = Util.hexify(bytes);
+            measure(size + " bytes, parse, lowercase + indexOf", () -> LowercaseHexParser.toByteArray(hex));
+            measure(size + " bytes, parse, toByteArray", () -> Util.toByteArray(hex));
+        }
+    }
+
+    /**
+     * Responses received in fragments (GET RESPONSE or READ BINARY chunks):
+     * concatenate and parse compared to feeding fragments to BerTlvAssembler.
+     */
+    static void benchAssemble(Corpus corpus)
+        throws Exception
+    {
+        printHeader("Assembling fragmented responses");
+        for (var name : new String[]{"record 70 (150 bytes)", "2000 parts (10 KB)"}) {
+            var bytes = corpus.get(name);
+            for (int chunk : new int[]{256, 32}) {
+                final var fragments = new ArrayList<byte[]>();
+                for (int i=0; i<bytes.length; i+=chunk) {
+                    fragments.add(Arrays.copyOfRange(bytes, i, Math.min(bytes.length, i + chunk)));
+                }
+                var label = String.format("%s, %d fragments", name.substring(0, name.indexOf(" (")), fragments.size());
+                measure(label + ", concatenate", () -> {
+                    var out = new ByteArrayOutputStream();
+                    for (var f : fragments) {
+                        out.write(f);
+                    }
+                    return BerTlv.parseBytes(out.toByteArray(), UNLIMITED);
+                });
+                measure(label + ", BerTlvAssembler", () -> {
+                    var assembler = new BerTlvAssembler(UNLIMITED, null);
+                    for (var f : fragments) {
+                        assembler.feed(f);
+                    }
+                    return assembler.getRoot();
+                });
+            }
+        }
+    }
+
+    /**
+     * Change detection between two reads of 20 card records with one changed
+     * value: comparing toString() of records against BerTlvDiff.
+     */
+    static void benchDiff()
+        throws Exception
+    {
+        printHeader("Change detection in 20 records");
+        var random = new java.util.Random(1);
+        final var oldBytes = new ArrayList<byte[]>();
+        for (int i=0; i<20; i++) {
+            oldBytes.add(randomRecord(random));
+        }
+        final var newBytes = new ArrayList<byte[]>(oldBytes);
+        var changed = newBytes.get(7).clone();
+        changed[changed.length - 1] ^= 1;
+        newBytes.set(7, changed);
+
+        final var before = new ArrayList<BerTlv>();
+        final var after = new ArrayList<BerTlv>();
+        for (int i=0; i<20; i++) {
+            before.add(BerTlv.parseBytes(oldBytes.get(i)));
+            after.add(BerTlv.parseBytes(newBytes.get(i)));
+        }
+        BerTlvDiff.compare(before, after);
+
+        measure("parsed records, toString().equals", () -> {
+            int n = 0;
+            for (int i=0; i<20; i++) {
+                if (!before.get(i).toString().equals(after.get(i).toString())) {
+                    n++;
+                }
+            }
+            return n;
+        });
+        measure("parsed records, BerTlvDiff, hashed", () -> BerTlvDiff.compare(before, after));
+        measure("new read, parse + toString().equals", () -> {
+            int n = 0;
+            for (int i=0; i<20; i++) {
+                if (!before.get(i).toString().equals(BerTlv.parseBytes(newBytes.get(i)).toString())) {
+                    n++;
+                }
+            }
+            return n;
+        });
+        measure("new read, parse + BerTlvDiff", () -> {
+            var read = new ArrayList<BerTlv>(20);
+            for (var bytes : newBytes) {
+                read.add(BerTlv.parseBytes(bytes));
+            }
+            return BerTlvDiff.compare(before, read);
+        });
+    }
+
+    /**
+     * Bulk decoding of corpus file with different number of worker threads
+     * compared to reading and parsing records one by one.
+     */
+    static void benchCorpus(int count)
+        throws Exception
+    {
+        var random = new java.util.Random(1);
+        var file = Files.createTempFile("corpus", ".bin");
+        try {
+            try (var out = new BufferedOutputStream(Files.newOutputStream(file))) {
+                for (int i=0; i<count; i++) {
+                    BerTlvCorpus.writeRecord(out, randomRecord(random));
+                }
+            }
+            System.out.printf("%nBulk decoding of %d records (%d MB)%n", count, Files.size(file) >> 20);
+            System.out.printf("%-46s %14s%n", "mode", "records/s");
+
+            // warm up both ways, then take the best of 3 runs
+            for (int round=0; round<2; round++) {
+                long best = Long.MAX_VALUE;
+                for (int run=0; run<3; run++) {
+                    long start = System.nanoTime();
+                    var stats = new BerTlvCorpus.Stats();
+                    try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                        for (int i=0; i<count; i++) {
+                            var record = new byte[in.readInt()];
+                            in.readFully(record);
+                            stats.addRecord(BerTlv.parseBytes(record));
+                        }
+                    }
+                    sink = stats;
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                if (round == 1) {
+                    System.out.printf("%-46s %14.0f%n", "one by one, 1 thread", count * 1e9 / best);
+                }
+
+                var corpus = BerTlvCorpus.open(file);
+                for (int threads=1; threads<=Runtime.getRuntime().availableProcessors(); threads*=2) {
+                    var pool = new ForkJoinPool(threads);
+                    best = Long.MAX_VALUE;
+                    for (int run=0; run<3; run++) {
+                        long start = System.nanoTime();
+                        sink = corpus.analyze(pool);
+                        best = Math.min(best, System.nanoTime() - start);
+                    }
+                    pool.shutdown();
+                    if (round == 1) {
+                        System.out.printf("%-46s %14.0f%n", String.format("BerTlvCorpus, %d threads", threads), count * 1e9 / best);
+                    }
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Retained heap of parsed corpus of card records, every record has its own
+     * bytes array like records read from an archive.
+     */
+    static void measureFootprint(int count)
+        throws Exception
+    {
+        var random = new java.util.Random(1);
+        var corpus = new byte[count][];
+        for (int i=0; i<count; i++) {
+            corpus[i] = randomRecord(random);
+        }
+
+        System.out.printf("%nRetained heap of %d parsed records (%d bytes each, not included)%n", count, corpus[0].length);
+        System.out.printf("%-46s %14s%n", "mode", "bytes/record");
+
+        var trees = new BerTlv[count];
+        long base = usedMemory();
+        for (int i=0; i<count; i++) {
+            trees[i] = copyTags(BerTlvIndex.parseBytes(corpus[i]), 0);
+        }
+        System.out.printf("%-46s %14d%n", "own tag copies", (usedMemory() - base) / count);
+
+        Arrays.fill(trees, null);
+        base = usedMemory();
+        for (int i=0; i<count; i++) {
+            trees[i] = BerTlv.parseBytes(corpus[i]);
+        }
+        System.out.printf("%-46s %14d%n", "interned tags", (usedMemory() - base) / count);
+
+        Arrays.fill(trees, null);
+        base = usedMemory();
+        var cache = new BerTlv.ValueCache(1024);
+        for (int i=0; i<count; i++) {
+            trees[i] = BerTlv.parseBytes(corpus[i], BerTlv.DEFAULT_LIMITS, cache);
+        }
+        System.out.printf("%-46s %14d%n", "interned tags, shared tiny values", (usedMemory() - base) / count);
+        sink = trees;
+    }
+
+    // EMV record with card specific PAN, name and dates and mostly common small values
+    static byte[] randomRecord(java.util.Random random)
+        throws BerTlv.ConstraintException
+    {
+        var pan = new byte[8];
+        random.nextBytes(pan);
+        var name = new byte[12];
+        random.nextBytes(name);
+        var record = new BerTlv(Util.toByteArray("70"), new ArrayList<BerTlv>());
+        record.addPart(new BerTlv(Util.toByteArray("5A"), pan));
+        record.addPart(new BerTlv(Util.toByteArray("5F 20"), name));
+        record.addPart(new BerTlv(Util.toByteArray("5F 24"), new byte[]{0x27, (byte)(1 + random.nextInt(12)), 0x31}));
+        record.addPart(new BerTlv(Util.toByteArray("5F 25"), new byte[]{0x23, (byte)(1 + random.nextInt(12)), 0x01}));
+        record.addPart(new BerTlv(Util.toByteArray("5F 28"), Util.toByteArray("06 43")));
+        record.addPart(new BerTlv(Util.toByteArray("5F 34"), new byte[]{(byte)random.nextInt(2)}));
+        record.addPart(new BerTlv(Util.toByteArray("9F 07"), Util.toByteArray("FF 00")));
+        record.addPart(new BerTlv(Util.toByteArray("9F 08"), Util.toByteArray("00 02")));
+        record.addPart(new BerTlv(Util.toByteArray("9F 42"), Util.toByteArray("06 43")));
+        record.addPart(new BerTlv(Util.toByteArray("9F 44"), Util.toByteArray("02")));
+        record.addPart(new BerTlv(Util.toByteArray("8C"), Util.toByteArray("9F 02 06 9F 03 06 9F 1A 02 95 05 5F 2A 02 9A 03 9C 01 9F 37 04")));
+        record.addPart(new BerTlv(Util.toByteArray("8E"), Util.toByteArray("00 00 00 00 00 00 00 00 42 03 1E 03 1F 03")));
+        return record.toBytes();
+    }
+
+    // rebuild tree like the parser did before tags were interned
+    static BerTlv copyTags(BerTlvIndex index, int node) {
+        int packed = index.getTag(node);
+        var tag = new byte[packed > 0xFFFF ? (packed > 0xFFFFFF ? 4 : 3) : (packed > 0xFF ? 2 : 1)];
+        for (int i=0; i<tag.length; i++) {
+            tag[tag.length - 1 - i] = (byte)(packed >> (i * 8));
+        }
+        if (!index.isConstructed(node)) {
+            return new BerTlv(tag, index.getBuffer(), index.getValueOffset(node), index.getValueLength(node));
+        }
+        var parts = new ArrayList<BerTlv>(5);
+        for (int c = index.getFirstChild(node); c != -1; c = index.getNextSibling(c)) {
+            parts.add(copyTags(index, c));
+        }
+        return new BerTlv(tag, parts);
+    }
+
+    static long usedMemory()
+        throws InterruptedException
+    {
+        var runtime = Runtime.getRuntime();
+        for (int i=0; i<4; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static void printHeader(String title) {
+        System.out.printf("%n%s%n", title);
+        System.out.printf("%-46s %14s %12s %12s %12s%n", "task", "ops/s", "B/op", "p99, ns", "max, ns");
+    }
+
+    // bytes allocated by current thread so far, -1 if JVM can't tell
+    static long allocatedBytes() {
+        var bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    static void measure(String name, Task task)
+        throws Exception
+    {
+        // warm up
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < WARMUP_NANOS) {
+            sink = task.run();
+        }
+
+        // throughput and allocations
+        long ops = 0;
+        long allocated = allocatedBytes();
+        start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i=0; i<100; i++) {
+                sink = task.run();
+            }
+            ops += 100;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < MEASURE_NANOS);
+        if (allocated != -1) {
+            allocated = (allocatedBytes() - allocated) / ops;
+        }
+
+        // latency of single calls, slow tasks get fewer samples
+        var samples = new long[LATENCY_SAMPLES];
+        int count = 0;
+        start = System.nanoTime();
+        while (count < samples.length && (count < 100 || System.nanoTime() - start < MEASURE_NANOS)) {
+            long t = System.nanoTime();
+            sink = task.run();
+            samples[count++] = System.nanoTime() - t;
+        }
+        Arrays.sort(samples, 0, count);
+
+        System.out.printf("%-46s %14.0f %12d %12d %12d%n", name, ops * 1e9 / elapsed, allocated,
+            samples[count * 99 / 100], samples[count - 1]);
+    }
+
+    /**
+     * Previous recursive BerTlv parser, kept here as a baseline: it recursed once
+     * per nesting level and copied the remaining buffer for every constructed
+     * object and after every part.
+     */
+    static class RecursiveParser {
+        static BerTlv parseBytes(byte[] bytes)
+            throws BerTlv.ParsingException
+        {
+            return parseChunk(bytes).value;
+        }
+
+        private static Chunk parseChunk(byte[] bytes)
+            throws BerTlv.ParsingException
+        {
+            if (bytes.length < 2) {
+                throw new BerTlv.ParsingException("Bytes array is too short");
+            }
+
+            try {
+                int p = 0;
+
+                // extract tag bytes
+                if ((bytes[0] & 0x1F) == 0x1F) {
+                    while (true) {
+                        p++;
+                        if (((bytes[p] >> 7) & 1) == 0) {
+                            break;
+                        }
+                    }
+                }
+                var tagBytes = Util.copyArray(bytes, 0, p+1);
+
+                // extract length bytes and length
+                p++;
+                int lengthBytesLen = 1;
+                int length = 0;
+                if (((bytes[p] >> 7) & 1) == 0) {
+                    length = bytes[p] & 0x7F;
+                } else {
+                    int localLen = bytes[p] & 0x7F;
+                    lengthBytesLen += localLen;
+                    if (lengthBytesLen > 4) {
+                        throw new BerTlv.ParsingException("Length value is too large");
+                    }
+                    for (int i=0; i<localLen; i++) {
+                        length = length*256 + (bytes[p+i+1] & 0xFF);
+                    }
+                }
+                p += lengthBytesLen;
+
+                BerTlv t;
+                if (((bytes[0] >> 5) & 1) == 1) {
+                    var parts = new ArrayList<BerTlv>(5);
+                    var remains = Util.copyArray(bytes, p, length);
+                    while (true) {
+                        var chunk = parseChunk(remains);
+                        parts.add(chunk.value);
+                        if (remains.length == chunk.size) {
+                            break;
+                        }
+                        remains = Util.copyArray(remains, chunk.size, remains.length-chunk.size);
+                    }
+                    t = new BerTlv(tagBytes, parts);
+                } else {
+                    t = new BerTlv(tagBytes, Util.copyArray(bytes, p, length));
+                }
+                return new Chunk(p+length, t);
+
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new BerTlv.ParsingException("Premature end of bytes");
+            }
+        }
+
+        private static class Chunk {
+            final int size;
+            final BerTlv value;
+            Chunk(int size, BerTlv value) {
+                this.size = size;
+                this.value = value;
+            }
+        }
+    }
+
+    /**
+     * Previous Util.hexify, kept here as a baseline.
+     */
+    static class FormatHexify {
+        static String hexify(byte[] bytes) {
+            var bytesStrings = new ArrayList<String>(bytes.length);
+            for (var b : bytes) {
+                bytesStrings.add(String.format("%02X", b));
+            }
+            return String.join(" ", bytesStrings);
+        }
+    }
+
+    /**
+     * Validating hex parser of example-08 before lookup table, kept here as a baseline.
+     */
+    static class LowercaseHexParser {
+        static byte[] toByteArray(String s) {
+            s = s.toLowerCase();
+            int len = s.length();
+            var buf = new byte[len/2];
+            int bufLen = 0;
+            int i = 0;
+            while (i < len) {
+                var c1 = s.charAt(i);
+                i++;
+                if (c1 == ' ') {
+                    continue;
+                }
+                var c2 = s.charAt(i);
+                if ("0123456789abcdef".indexOf(c1) == -1 || "0123456789abcdef".indexOf(c2) == -1) {
+                    throw new IllegalArgumentException("Incorrect input character");
+                }
+                buf[bufLen] = (byte)((Character.digit(c1, 16) << 4) + (Character.digit(c2, 16)));
+                ++bufLen;
+                i++;
+            }
+            return Arrays.copyOfRange(buf, 0, bufLen);
+        }
+    }
+
+    /**
+     * Previous BerTlv.toString, kept here as a baseline: it built the string of
+     * every part separately and indented it with a regex at every level.
+     */
+    static class RegexPrinter {
+        static String toString(BerTlv t) {
+            if (t.getEncoding() == BerTlv.Encoding.PRIMITIVE) {
+                return String.format("TAG:   %s(PRIMITIVE)%nVALUE: %s", 
+                    Util.hexify(t.getTag()), 
+                    Util.hexify(t.getValue()));
+            }
+            var list = t.getParts();
+            var partStrings = new ArrayList<String>(list.length);
+            for (BerTlv p : list) {
+                partStrings.add(toString(p).replaceAll("(?m)^", "  "));
+            }
+            return String.format("TAG:   %s(CONSTRUCTED)%n%s", 
+                Util.hexify(t.getTag()), 
+                String.join("\n", partStrings));
+        }
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+
+/**
+ * Bulk decoder of recorded card responses.
+ *
+ * Corpus file is a sequence of records, every record is a 4 bytes big-endian
+ * length followed by that many bytes of BER-TLV encoding (see writeRecord()).
+ * The file is memory mapped, record boundaries are found in one sequential
+ * pass, then ranges of records are parsed by fork/join tasks. Every task
+ * collects its own Stats which are merged when tasks are joined, so workers
+ * never share mutable state or locks.
+ */
+class BerTlvCorpus {
+    // leaf tasks parse at most this number of records
+    private static final int LEAF_RECORDS = 512;
+
+    private final ByteBuffer buffer;
+    // offsets of length prefixes of records, plus file size at the end
+    private final int[] offsets;
+    private final int count;
+
+
+    private BerTlvCorpus(ByteBuffer buffer, int[] offsets, int count) {
+        this.buffer = buffer;
+        this.offsets = offsets;
+        this.count = count;
+    }
+
+
+    /**
+     * Map corpus file into memory and find its records.
+     * 
+     * @param  file        corpus file, up to 2 GB
+     * @return             opened corpus
+     * @throws IOException if file can't be read, is too large or its last record is truncated
+     */
+    public static BerTlvCorpus open(Path file)
+        throws IOException
+    {
+        ByteBuffer buffer;
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(String.format("Corpus file is larger than %d bytes", Integer.MAX_VALUE));
+            }
+            // mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        var offsets = new int[1024];
+        int count = 0;
+        int p = 0;
+        int size = buffer.limit();
+        while (p < size) {
+            if (size - p < 4) {
+                throw new IOException(String.format("Truncated record length at offset %d", p));
+            }
+            int length = buffer.getInt(p);
+            if (length < 0 || length > size - p - 4) {
+                throw new IOException(String.format("Truncated record at offset %d", p));
+            }
+            if (count == offsets.length - 1) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[count++] = p;
+            p += 4 + length;
+        }
+        offsets[count] = p;
+        return new BerTlvCorpus(buffer, offsets, count);
+    }
+
+    /**
+     * Append record to corpus.
+     * 
+     * @param  out         corpus file stream
+     * @param  record      BER-TLV encoding of the record
+     * @throws IOException
+     */
+    public static void writeRecord(OutputStream out, byte[] record)
+        throws IOException
+    {
+        int length = record.length;
+        out.write(new byte[]{(byte)(length >> 24), (byte)(length >> 16), (byte)(length >> 8), (byte)length});
+        out.write(record);
+    }
+
+    /**
+     * Returns number of records.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Parse all records using common fork/join pool.
+     * 
+     * @return merged statistics
+     */
+    public Stats analyze() {
+        return analyze(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Parse all records using given fork/join pool, malformed records are
+     * counted and skipped.
+     * 
+     * @param  pool pool to run tasks in
+     * @return      merged statistics
+     */
+    public Stats analyze(ForkJoinPool pool) {
+        return pool.invoke(new AnalyzeTask(0, count));
+    }
+
+
+    /**
+     * Parses records [from, to) or splits them between two subtasks.
+     */
+    private class AnalyzeTask extends RecursiveTask<Stats> {
+        private final int from;
+        private final int to;
+
+        AnalyzeTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Stats compute() {
+            if (to - from > LEAF_RECORDS) {
+                int middle = (from + to) >>> 1;
+                var left = new AnalyzeTask(from, middle);
+                left.fork();
+                var stats = new AnalyzeTask(middle, to).compute();
+                stats.merge(left.join());
+                return stats;
+            }
+
+            // copy whole range at once, parsed records are views into it
+            int start = offsets[from];
+            var bytes = new byte[offsets[to] - start];
+            buffer.get(start, bytes);
+
+            var stats = new Stats();
+            for (int i=from; i<to; i++) {
+                int offset = offsets[i] - start + 4;
+                int length = offsets[i+1] - start - offset;
+                try {
+                    stats.addRecord(BerTlv.parseBytes(bytes, offset, length, BerTlv.DEFAULT_LIMITS));
+                } catch (BerTlv.ParsingException e) {
+                    stats.errors++;
+                }
+            }
+            return stats;
+        }
+    }
+
+
+    /**
+     * Number of parsed records and objects of every tag with value length
+     * statistics. Tags longer than 4 bytes are counted as tag -1. Value length
+     * of CONSTRUCTED objects is the size of their parts encoding.
+     */
+    public static class Stats {
+        private long records;
+        private long errors;
+
+        // open addressing table: packed tag => counters, free slots have zero count
+        private int[] tags = new int[64];
+        private long[] counts = new long[64];
+        private long[] totalLengths = new long[64];
+        private int[] minLengths = new int[64];
+        private int[] maxLengths = new int[64];
+        private int size;
+
+        /**
+         * Returns number of successfully parsed records.
+         */
+        public long getRecords() {
+            return records;
+        }
+
+        /**
+         * Returns number of malformed records.
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * Returns all met tags in ascending order.
+         */
+        public int[] getTags() {
+            var res = new int[size];
+            int n = 0;
+            for (int i=0; i<tags.length; i++) {
+                if (counts[i] != 0) {
+                    res[n++] = tags[i];
+                }
+            }
+            Arrays.sort(res);
+            return res;
+        }
+
+        /**
+         * Returns number of objects with tag.
+         */
+        public long getCount(int tag) {
+            int slot = find(tag);
+            return counts[slot];
+        }
+
+        /**
+         * Returns minimum value length of objects with tag, -1 if there are no such objects.
+         */
+        public int getMinLength(int tag) {
+            int slot = find(tag);
+            return counts[slot] == 0 ? -1 : minLengths[slot];
+        }
+
+        /**
+         * Returns maximum value length of objects with tag, -1 if there are no such objects.
+         */
+        public int getMaxLength(int tag) {
+            int slot = find(tag);
+            return counts[slot] == 0 ? -1 : maxLengths[slot];
+        }
+
+        /**
+         * Returns average value length of objects with tag, 0 if there are no such objects.
+         */
+        public double getAverageLength(int tag) {
+            int slot = find(tag);
+            return counts[slot] == 0 ? 0 : (double)totalLengths[slot] / counts[slot];
+        }
+
+        /**
+         * Count parsed record and all its objects.
+         * 
+         * @param record parsed record
+         */
+        public void addRecord(BerTlv record) {
+            records++;
+            add(record);
+        }
+
+        // walk parsed tree, value length of CONSTRUCTED object is size of its parts
+        // encoding as toBytes() would write it; returns encoding size of the object
+        private int add(BerTlv tlv) {
+            int length;
+            if (tlv.getEncoding() == BerTlv.Encoding.PRIMITIVE) {
+                length = tlv.getValueLength();
+            } else {
+                length = 0;
+                int n = tlv.getPartsCount();
+                for (int i=0; i<n; i++) {
+                    length += add(tlv.getPartAt(i));
+                }
+            }
+            add(tlv.getPackedTag(), 1, length, length, length);
+            int lengthFieldSize = (length < 0x80) ? 1 : (length < 0x100) ? 2 : (length < 0x10000) ? 3 : 4;
+            return tlv.getTagLength() + lengthFieldSize + length;
+        }
+
+        private void add(int tag, long count, long totalLength, int minLength, int maxLength) {
+            int slot = find(tag);
+            if (counts[slot] == 0) {
+                tags[slot] = tag;
+                minLengths[slot] = minLength;
+                maxLengths[slot] = maxLength;
+                size++;
+            } else {
+                minLengths[slot] = Math.min(minLengths[slot], minLength);
+                maxLengths[slot] = Math.max(maxLengths[slot], maxLength);
+            }
+            counts[slot] += count;
+            totalLengths[slot] += totalLength;
+            if (size * 2 > tags.length) {
+                grow();
+            }
+        }
+
+        private void merge(Stats other) {
+            records += other.records;
+            errors += other.errors;
+            for (int i=0; i<other.tags.length; i++) {
+                if (other.counts[i] != 0) {
+                    add(other.tags[i], other.counts[i], other.totalLengths[i], other.minLengths[i], other.maxLengths[i]);
+                }
+            }
+        }
+
+        // slot of tag or free slot where it should be added
+        private int find(int tag) {
+            int mask = tags.length - 1;
+            int h = tag * 0x9E3779B9;
+            int slot = (h ^ (h >>> 16)) & mask;
+            while (counts[slot] != 0 && tags[slot] != tag) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            var oldTags = tags;
+            var oldCounts = counts;
+            var oldTotalLengths = totalLengths;
+            var oldMinLengths = minLengths;
+            var oldMaxLengths = maxLengths;
+            int capacity = oldTags.length * 2;
+            tags = new int[capacity];
+            counts = new long[capacity];
+            totalLengths = new long[capacity];
+            minLengths = new int[capacity];
+            maxLengths = new int[capacity];
+            size = 0;
+            for (int i=0; i<oldTags.length; i++) {
+                if (oldCounts[i] != 0) {
+                    add(oldTags[i], oldCounts[i], oldTotalLengths[i], oldMinLengths[i], oldMaxLengths[i]);
+                }
+            }
+        }
+    }
+}
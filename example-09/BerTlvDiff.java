@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+
+/**
+ * Structural difference between two BerTlv trees, e.g. data objects read from
+ * the card on two taps.
+ *
+ * Parts of constructed objects are matched by tag, repeated tags by their
+ * occurrence. Subtrees with equal contentHash() are skipped without walking
+ * them, so comparing a tree with its slightly changed copy costs about the
+ * size of the changed paths once hashes are computed. Values of PRIMITIVE
+ * objects with equal hashes are still compared, so a hash collision can't hide
+ * a changed value.
+ *
+ * Results are tag paths like "70/61[1]/4F": tags are hex as in TlvPath,
+ * repeated tags get "[n]" suffix counting from 0 on all but the first
+ * occurrence. Added and removed objects are reported by their subtree root
+ * only, changed ones are PRIMITIVE objects with different values.
+ */
+class BerTlvDiff {
+    private final ArrayList<String> added = new ArrayList<String>();
+    private final ArrayList<String> removed = new ArrayList<String>();
+    private final ArrayList<String> changed = new ArrayList<String>();
+
+    // path of objects being compared
+    private final StringBuilder path = new StringBuilder();
+
+
+    private BerTlvDiff() {
+    }
+
+
+    /**
+     * Compare two trees.
+     * 
+     * @param  before old tree
+     * @param  after  new tree
+     * @return        difference
+     */
+    public static BerTlvDiff compare(BerTlv before, BerTlv after) {
+        var diff = new BerTlvDiff();
+        diff.compareObjects(before, after);
+        return diff;
+    }
+
+    /**
+     * Compare two lists of objects, e.g. all records read from the card; root
+     * objects are matched the same way as parts of constructed objects.
+     * 
+     * @param  before old objects
+     * @param  after  new objects
+     * @return        difference
+     */
+    public static BerTlvDiff compare(List<BerTlv> before, List<BerTlv> after) {
+        var diff = new BerTlvDiff();
+        diff.compareLists(before, after);
+        return diff;
+    }
+
+    /**
+     * Returns true if trees are equal.
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    /**
+     * Returns paths of objects present in "after" only.
+     */
+    public List<String> getAdded() {
+        return added;
+    }
+
+    /**
+     * Returns paths of objects present in "before" only.
+     */
+    public List<String> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Returns paths of PRIMITIVE objects with different values.
+     */
+    public List<String> getChanged() {
+        return changed;
+    }
+
+    /**
+     * Returns one line per path prefixed with "+" (added), "-" (removed) or "*" (changed).
+     */
+    @Override
+    public String toString() {
+        var res = new StringBuilder();
+        for (var p : added) {
+            res.append("+ ").append(p).append(System.lineSeparator());
+        }
+        for (var p : removed) {
+            res.append("- ").append(p).append(System.lineSeparator());
+        }
+        for (var p : changed) {
+            res.append("* ").append(p).append(System.lineSeparator());
+        }
+        return res.toString();
+    }
+
+
+    // compare objects at the same path
+    private void compareObjects(BerTlv before, BerTlv after) {
+        if (!before.tagEquals(after)) {
+            int length = path.length();
+            appendStep(before, 0);
+            removed.add(path.toString());
+            path.setLength(length);
+            appendStep(after, 0);
+            added.add(path.toString());
+            path.setLength(length);
+            return;
+        }
+        int length = path.length();
+        appendStep(before, 0);
+        compareMatched(before, after);
+        path.setLength(length);
+    }
+
+    // compare objects with equal tags, their path is appended already
+    private void compareMatched(BerTlv before, BerTlv after) {
+        if (sameContent(before, after)) {
+            return;
+        }
+        if (before.getEncoding() == BerTlv.Encoding.PRIMITIVE) {
+            changed.add(path.toString());
+            return;
+        }
+        int length = path.length();
+        path.append('/');
+        compareLists(Arrays.asList(before.getParts()), Arrays.asList(after.getParts()));
+        path.setLength(length);
+    }
+
+    // match siblings by tag and occurrence, path of their parent with trailing "/" is appended already
+    private void compareLists(List<BerTlv> before, List<BerTlv> after) {
+        int length = path.length();
+        if (before.size() == after.size() && sameTags(before, after)) {
+            // usual case: the same objects in the same order
+            for (int i=0; i<before.size(); i++) {
+                var b = before.get(i);
+                var a = after.get(i);
+                if (!sameContent(b, a)) {
+                    appendStep(b, occurrence(before, i));
+                    compareMatched(b, a);
+                    path.setLength(length);
+                }
+            }
+            return;
+        }
+
+        // k-th occurrence of a tag in "before" matches k-th occurrence in "after"
+        var pending = new HashMap<String, ArrayDeque<Integer>>();
+        for (int i=0; i<after.size(); i++) {
+            pending.computeIfAbsent(tagKey(after.get(i)), k -> new ArrayDeque<Integer>()).add(i);
+        }
+        var matched = new boolean[after.size()];
+        var occurrences = new HashMap<String, Integer>();
+        for (int i=0; i<before.size(); i++) {
+            var b = before.get(i);
+            var key = tagKey(b);
+            var candidates = pending.get(key);
+            Integer j = (candidates != null) ? candidates.poll() : null;
+            appendStep(b, occurrences.merge(key, 1, Integer::sum) - 1);
+            if (j == null) {
+                removed.add(path.toString());
+            } else {
+                matched[j] = true;
+                compareMatched(b, after.get(j));
+            }
+            path.setLength(length);
+        }
+        occurrences.clear();
+        for (int j=0; j<after.size(); j++) {
+            int n = occurrences.merge(tagKey(after.get(j)), 1, Integer::sum) - 1;
+            if (!matched[j]) {
+                appendStep(after.get(j), n);
+                added.add(path.toString());
+                path.setLength(length);
+            }
+        }
+    }
+
+    // equal hashes of PRIMITIVE objects are confirmed by their values
+    private static boolean sameContent(BerTlv before, BerTlv after) {
+        if (before.contentHash() != after.contentHash()) {
+            return false;
+        }
+        return before.getEncoding() != BerTlv.Encoding.PRIMITIVE || before.valueEquals(after);
+    }
+
+    private static boolean sameTags(List<BerTlv> before, List<BerTlv> after) {
+        for (int i=0; i<before.size(); i++) {
+            if (!before.get(i).tagEquals(after.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // number of objects with the same tag preceding i-th one
+    private static int occurrence(List<BerTlv> objects, int i) {
+        var object = objects.get(i);
+        int n = 0;
+        for (int j=0; j<i; j++) {
+            if (objects.get(j).tagEquals(object)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static String tagKey(BerTlv tlv) {
+        return Util.hexify(tlv.getTag());
+    }
+
+    private void appendStep(BerTlv tlv, int occurrence) {
+        for (var b : tlv.getTag()) {
+            path.append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 16)));
+            path.append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+        }
+        if (occurrence > 0) {
+            path.append('[').append(occurrence).append(']');
+        }
+    }
+}
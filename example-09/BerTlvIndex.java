@@ -0,0 +1,380 @@
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.Arrays;
+
+
+/**
+ * Compact representation of a parsed BER-TLV object.
+ *
+ * All nodes of the tree are stored in parallel int arrays over the original
+ * bytes array, so a whole response costs a few ints per node instead of
+ * a BerTlv object with its own tag, value and parts list. Nodes are referenced
+ * by their index, root node always has index 0, -1 means "no node".
+ */
+class BerTlvIndex {
+    private final byte[] buffer;
+    private int size;
+
+    // tag bytes packed into int, e.g. "9F 38" is 0x9F38
+    private int[] tags;
+    private int[] valueOffsets;
+    private int[] valueLengths;
+    private int[] parents;
+    private int[] firstChildren;
+    private int[] nextSiblings;
+
+    // header of the last parsed object, see parseHeader()
+    private int headerOffset;
+    private int headerTag;
+    private int headerValueOffset;
+    private int headerValueLength;
+
+
+    private BerTlvIndex(byte[] buffer, int capacity) {
+        this.buffer = buffer;
+        this.size = 0;
+        tags = new int[capacity];
+        valueOffsets = new int[capacity];
+        valueLengths = new int[capacity];
+        parents = new int[capacity];
+        firstChildren = new int[capacity];
+        nextSiblings = new int[capacity];
+    }
+
+
+    /**
+     * Parse bytes into index of ONE BER-TLV object with default limits, see
+     * parseBytes(byte[], BerTlv.Limits).
+     */
+    public static BerTlvIndex parseBytes(byte[] bytes)
+        throws BerTlv.ParsingException
+    {
+        return parseBytes(bytes, BerTlv.DEFAULT_LIMITS);
+    }
+
+    /**
+     * Parse bytes into index of ONE BER-TLV object ignoring remaining data if there are any.
+     *
+     * Index refers to "bytes" directly, so the array must not be modified while
+     * the index is in use. Limits and error offsets and tag paths are the same
+     * as of BerTlv.parseBytes(byte[], BerTlv.Limits).
+     * 
+     * @param  bytes            bytes array to parse
+     * @param  limits           parser limits
+     * @return                  index, root object has node index 0
+     * @throws BerTlv.ParsingException
+     */
+    public static BerTlvIndex parseBytes(byte[] bytes, BerTlv.Limits limits)
+        throws BerTlv.ParsingException
+    {
+        if (bytes.length < 2) {
+            throw new BerTlv.ParsingException("Bytes array is too short", 0, null);
+        }
+
+        var index = new BerTlvIndex(bytes, bytes.length / 4 + 1);
+
+        // stack of open constructed nodes, their value ends and last added children
+        var openNodes = new int[8];
+        var openEnds = new int[8];
+        var lastChildren = new int[8];
+        int depth = 0;
+
+        int p = index.parseHeader(0, bytes.length);
+        if (p + index.headerValueLength > limits.maxLength) {
+            throw new BerTlv.ParsingException(String.format("Object is longer than %d bytes", limits.maxLength), 0, null);
+        }
+        int node = index.addNode(-1);
+        while (true) {
+            if (index.isConstructed(node) && depth == limits.maxDepth) {
+                throw new BerTlv.ParsingException(String.format("Nesting depth exceeds %d", limits.maxDepth),
+                    index.headerOffset, index.buildTagPath(openNodes, depth));
+            }
+            if (index.isConstructed(node) && index.headerValueLength > 0) {
+                if (depth == openNodes.length) {
+                    openNodes = Arrays.copyOf(openNodes, depth * 2);
+                    openEnds = Arrays.copyOf(openEnds, depth * 2);
+                    lastChildren = Arrays.copyOf(lastChildren, depth * 2);
+                }
+                openNodes[depth] = node;
+                openEnds[depth] = p + index.headerValueLength;
+                lastChildren[depth] = -1;
+                depth++;
+            } else {
+                p += index.headerValueLength;
+            }
+
+            // close all constructed nodes which values are depleted
+            while (depth > 0 && p == openEnds[depth-1]) {
+                depth--;
+            }
+            if (depth == 0) {
+                break;
+            }
+
+            try {
+                p = index.parseHeader(p, openEnds[depth-1]);
+            } catch (BerTlv.ParsingException e) {
+                throw new BerTlv.ParsingException(e.getReason(), e.getOffset(), index.buildTagPath(openNodes, depth));
+            }
+            if (index.size == limits.maxNodes) {
+                throw new BerTlv.ParsingException(String.format("Number of objects exceeds %d", limits.maxNodes),
+                    index.headerOffset, index.buildTagPath(openNodes, depth));
+            }
+            node = index.addNode(openNodes[depth-1]);
+            if (lastChildren[depth-1] == -1) {
+                index.firstChildren[openNodes[depth-1]] = node;
+            } else {
+                index.nextSiblings[lastChildren[depth-1]] = node;
+            }
+            lastChildren[depth-1] = node;
+        }
+
+        index.trim();
+        return index;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns number of nodes in the index.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getRoot() {
+        return 0;
+    }
+
+    /**
+     * Returns tag of the node packed into int, e.g. tag "9F 38" is returned as 0x9F38.
+     */
+    public int getTag(int node) {
+        return tags[node];
+    }
+
+    public boolean tagEquals(int node, String tagHex) {
+        return tags[node] == BerTlv.tagFromHex(tagHex);
+    }
+
+    public boolean isConstructed(int node) {
+        return (firstTagByte(tags[node]) & 0x20) != 0;
+    }
+
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    public int getFirstChild(int node) {
+        return firstChildren[node];
+    }
+
+    public int getNextSibling(int node) {
+        return nextSiblings[node];
+    }
+
+    public int getValueOffset(int node) {
+        return valueOffsets[node];
+    }
+
+    public int getValueLength(int node) {
+        return valueLengths[node];
+    }
+
+    /**
+     * Returns copy of the primitive value, null for CONSTRUCTED nodes.
+     */
+    public byte[] getValue(int node) {
+        if (isConstructed(node)) {
+            return null;
+        }
+        return Util.copyArray(buffer, valueOffsets[node], valueLengths[node]);
+    }
+
+    /**
+     * Get first part of node tagged with tag that has binary representation tagBytesRepr.
+     * 
+     * @return part node index or -1 if not found
+     */
+    public int getPart(int node, String tagBytesRepr) {
+        return getPart(node, BerTlv.tagFromHex(tagBytesRepr));
+    }
+
+    /**
+     * Get first part of node tagged with packed tag.
+     * 
+     * @return part node index or -1 if not found
+     */
+    public int getPart(int node, int tag) {
+        for (int c = firstChildren[node]; c != -1; c = nextSiblings[c]) {
+            if (tags[c] == tag) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get all parts of node.
+     * 
+     * @return node indexes of parts, empty array for PRIMITIVE nodes
+     */
+    public int[] getParts(int node) {
+        int count = 0;
+        for (int c = firstChildren[node]; c != -1; c = nextSiblings[c]) {
+            count++;
+        }
+        var res = new int[count];
+        count = 0;
+        for (int c = firstChildren[node]; c != -1; c = nextSiblings[c]) {
+            res[count++] = c;
+        }
+        return res;
+    }
+
+    // first tag byte is the most significant non-zero byte of packed tag
+    private static int firstTagByte(int tag) {
+        while ((tag & 0xFFFFFF00) != 0) {
+            tag >>>= 8;
+        }
+        return tag;
+    }
+
+    /**
+     * Parse tag and length of the object at bytes[p..limit), result is stored
+     * into header* fields.
+     *
+     * @return offset of the object value
+     */
+    private int parseHeader(int p, int limit)
+        throws BerTlv.ParsingException
+    {
+        if (limit - p < 2) {
+            throw new BerTlv.ParsingException("Premature end of bytes", p, null);
+        }
+        headerOffset = p;
+
+        // extract tag
+        int tag = buffer[p] & 0xFF;
+        if ((tag & 0x1F) == 0x1F) {
+            // xxx1 1111, i.e. tag continues in later bytes
+            int tagLength = 1;
+            while (true) {
+                p++;
+                if (p >= limit) {
+                    throw new BerTlv.ParsingException("Premature end of bytes", p, null);
+                }
+                tagLength++;
+                if (tagLength > 4) {
+                    throw new BerTlv.ParsingException("Tag is too long", headerOffset, null);
+                }
+                tag = (tag << 8) | (buffer[p] & 0xFF);
+                if ((buffer[p] & 0x80) == 0) {
+                    break;
+                }
+            }
+        }
+
+        // extract length
+        p++;
+        if (p >= limit) {
+            throw new BerTlv.ParsingException("Premature end of bytes", p, null);
+        }
+        int length = buffer[p] & 0xFF;
+        p++;
+        if (length > 0x7F) {
+            int lengthBytesLen = length & 0x7F;
+            if (lengthBytesLen > 3) {
+                throw new BerTlv.ParsingException(String.format("Length value is too large: %d, byte: %02X", lengthBytesLen+1, length), p - 1, null);
+            }
+            if (p + lengthBytesLen > limit) {
+                throw new BerTlv.ParsingException("Premature end of bytes", limit, null);
+            }
+            length = 0;
+            for (int i=0; i<lengthBytesLen; i++) {
+                length = length*256 + (buffer[p] & 0xFF);
+                p++;
+            }
+        }
+        if (p + length > limit) {
+            throw new BerTlv.ParsingException("Premature end of bytes", limit, null);
+        }
+
+        headerTag = tag;
+        headerValueOffset = p;
+        headerValueLength = length;
+        return p;
+    }
+
+    // tags of open nodes like "6F/A5", see BerTlv.ParsingException.getTagPath()
+    private String buildTagPath(int[] openNodes, int depth) {
+        var path = new StringBuilder();
+        for (int i=0; i<depth; i++) {
+            if (i > 0) {
+                path.append('/');
+            }
+            var hex = Integer.toHexString(tags[openNodes[i]]).toUpperCase();
+            if (hex.length() % 2 != 0) {
+                path.append('0');
+            }
+            path.append(hex);
+        }
+        return path.toString();
+    }
+
+    // append node described by header* fields
+    private int addNode(int parent) {
+        if (size == tags.length) {
+            grow(size * 2);
+        }
+        tags[size] = headerTag;
+        valueOffsets[size] = headerValueOffset;
+        valueLengths[size] = headerValueLength;
+        parents[size] = parent;
+        firstChildren[size] = -1;
+        nextSiblings[size] = -1;
+        return size++;
+    }
+
+    private void trim() {
+        if (size != tags.length) {
+            grow(size);
+        }
+    }
+
+    private void grow(int capacity) {
+        tags = Arrays.copyOf(tags, capacity);
+        valueOffsets = Arrays.copyOf(valueOffsets, capacity);
+        valueLengths = Arrays.copyOf(valueLengths, capacity);
+        parents = Arrays.copyOf(parents, capacity);
+        firstChildren = Arrays.copyOf(firstChildren, capacity);
+        nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.util.Arrays;
+
+
+/**
+ * Event based (pull) BER-TLV reader.
+ *
+ * Unlike BerTlv.parseBytes() reader doesn't need the whole encoding in memory,
+ * it pulls bytes from the stream or channel on demand and keeps only the state of
+ * currently open constructed objects, so memory usage depends on nesting depth
+ * only. Length fields up to 8 bytes and indefinite length form (0x80) of
+ * constructed objects are supported. Tags are limited to 4 bytes and nesting
+ * to maxDepth levels, so hostile input can't make the reader grow its state.
+ * Channel must be blocking.
+ *
+ * Typical usage:
+ *
+ *     var reader = new BerTlvReader(in);
+ *     BerTlvReader.Event e;
+ *     while ((e = reader.next()) != null) {
+ *         if (e == BerTlvReader.Event.PRIMITIVE && reader.tagEquals("5A")) {
+ *             var pan = reader.getValue();
+ *         }
+ *     }
+ */
+class BerTlvReader implements Closeable {
+    public enum Event {
+        START_CONSTRUCTED,
+        PRIMITIVE,
+        END_CONSTRUCTED
+    }
+
+    // marks indefinite length
+    public static final long INDEFINITE = -1;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private boolean eof = false;
+
+    // absolute position in the input
+    private long position = 0;
+
+    // longest supported tag
+    public static final int MAX_TAG_LENGTH = 4;
+
+    private final int maxDepth;
+
+    // current object header
+    private final byte[] tag = new byte[MAX_TAG_LENGTH];
+    private int tagLength = 0;
+    private long length = 0;
+    private long headerOffset = 0;
+
+    // remaining bytes of the current primitive value
+    private long valueRemaining = 0;
+
+    // open constructed objects: value end positions (or INDEFINITE) and tags
+    private long[] ends = new long[8];
+    // nearest definite end among the object and its parents, Long.MAX_VALUE if none
+    private long[] bounds = new long[8];
+    private byte[][] tags = new byte[8][];
+    private int[] tagLengths = new int[8];
+    private int depth = 0;
+
+
+    public BerTlvReader(InputStream in) {
+        this(Channels.newChannel(in));
+    }
+
+    public BerTlvReader(ReadableByteChannel channel) {
+        this(channel, BerTlv.DEFAULT_LIMITS.maxDepth);
+    }
+
+    /**
+     * @param channel  blocking channel to read from
+     * @param maxDepth maximum nesting level of objects, root object has level 1
+     * @throws IllegalArgumentException if channel is in non-blocking mode
+     */
+    public BerTlvReader(ReadableByteChannel channel, int maxDepth) {
+        if (channel instanceof SelectableChannel && !((SelectableChannel)channel).isBlocking()) {
+            throw new IllegalArgumentException("Channel must be in blocking mode");
+        }
+        this.channel = channel;
+        this.maxDepth = maxDepth;
+        this.buffer = ByteBuffer.allocate(4096);
+        this.buffer.flip();
+    }
+
+
+    /**
+     * Advance to the next object.
+     *
+     * Unread part of the current primitive value is skipped.
+     * 
+     * @return next event or null if input is depleted
+     * @throws IOException
+     * @throws BerTlv.ParsingException
+     */
+    public Event next()
+        throws IOException, BerTlv.ParsingException
+    {
+        skipValue();
+
+        long bound = (depth > 0) ? bounds[depth-1] : Long.MAX_VALUE;
+        if (depth > 0) {
+            long end = ends[depth-1];
+            if (end == position) {
+                return closeConstructed();
+            }
+            if (bound == position) {
+                // indefinite length object isn't closed within its definite length parent
+                throw error("Missing end-of-contents", position);
+            }
+        }
+
+        headerOffset = position;
+        int b = readByte();
+        if (b == -1) {
+            if (depth > 0) {
+                throw prematureEnd();
+            }
+            return null;
+        }
+
+        // end-of-contents octets "00 00" close indefinite length object
+        if (b == 0 && depth > 0 && ends[depth-1] == INDEFINITE) {
+            if (readByte() != 0) {
+                throw error("Malformed end-of-contents", headerOffset);
+            }
+            if (position > bound) {
+                throw error("End-of-contents exceeds its parent", headerOffset);
+            }
+            return closeConstructed();
+        }
+
+        // extract tag bytes
+        tagLength = 0;
+        appendTagByte(b);
+        if ((b & 0x1F) == 0x1F) {
+            // xxx1 1111, i.e. tag continues in later bytes
+            while (true) {
+                b = readByte();
+                if (b == -1) {
+                    throw prematureEnd();
+                }
+                appendTagByte(b);
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+        }
+        boolean constructed = (tag[0] & 0x20) != 0;
+
+        // extract length
+        b = readByte();
+        if (b == -1) {
+            throw prematureEnd();
+        }
+        if (b < 0x80) {
+            length = b;
+        } else if (b == 0x80) {
+            if (!constructed) {
+                throw error("Indefinite length of PRIMITIVE object", headerOffset);
+            }
+            length = INDEFINITE;
+        } else {
+            int lengthBytesLen = b & 0x7F;
+            if (lengthBytesLen > 8) {
+                throw error(String.format("Length value is too large: %d, byte: %02X", lengthBytesLen+1, b), position - 1);
+            }
+            length = 0;
+            for (int i=0; i<lengthBytesLen; i++) {
+                b = readByte();
+                if (b == -1) {
+                    throw prematureEnd();
+                }
+                length = (length << 8) | b;
+            }
+            if (length < 0) {
+                throw error("Length value is too large", headerOffset);
+            }
+        }
+
+        // object must fit into its parent, indefinite length one is checked when closed
+        if (position > bound || (length != INDEFINITE && position + length > bound)) {
+            throw error("Object exceeds its parent", headerOffset);
+        }
+
+        if (constructed) {
+            if (depth == maxDepth) {
+                throw error(String.format("Nesting depth exceeds %d", maxDepth), headerOffset);
+            }
+            if (depth == ends.length) {
+                int capacity = Math.min(maxDepth, depth * 2);
+                ends = Arrays.copyOf(ends, capacity);
+                bounds = Arrays.copyOf(bounds, capacity);
+                tags = Arrays.copyOf(tags, capacity);
+                tagLengths = Arrays.copyOf(tagLengths, capacity);
+            }
+            ends[depth] = (length == INDEFINITE) ? INDEFINITE : position + length;
+            bounds[depth] = (length == INDEFINITE) ? bound : position + length;
+            if (tags[depth] == null) {
+                tags[depth] = new byte[MAX_TAG_LENGTH];
+            }
+            System.arraycopy(tag, 0, tags[depth], 0, tagLength);
+            tagLengths[depth] = tagLength;
+            depth++;
+            return Event.START_CONSTRUCTED;
+        }
+
+        valueRemaining = length;
+        return Event.PRIMITIVE;
+    }
+
+    /**
+     * Returns copy of the current object tag. For END_CONSTRUCTED event it's
+     * the tag of the closed object.
+     */
+    public byte[] getTag() {
+        return Arrays.copyOf(tag, tagLength);
+    }
+
+    /**
+     * Compare the current object tag with hex tag like "9F 38" without allocations.
+     * 
+     * @throws IllegalArgumentException if input is empty, has non-hex char or odd number of digits
+     */
+    public boolean tagEquals(String tagHex) {
+        int t = BerTlv.tagFromHex(tagHex);
+        if (t == -1) {
+            // longer than MAX_TAG_LENGTH
+            return false;
+        }
+        int packed = 0;
+        for (int i=0; i<tagLength; i++) {
+            packed = (packed << 8) | (tag[i] & 0xFF);
+        }
+        return packed == t;
+    }
+
+    /**
+     * Returns value length of the current object or INDEFINITE.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns offset of the current object header in the input.
+     */
+    public long getOffset() {
+        return headerOffset;
+    }
+
+    /**
+     * Returns number of currently open constructed objects.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Read next portion of the current primitive value.
+     * 
+     * @return number of bytes read or -1 if value is depleted
+     * @throws IOException
+     * @throws BerTlv.ParsingException
+     */
+    public int readValue(byte[] dst, int off, int len)
+        throws IOException, BerTlv.ParsingException
+    {
+        if (valueRemaining == 0) {
+            return -1;
+        }
+        if (!buffer.hasRemaining() && !fill()) {
+            throw prematureEnd();
+        }
+        int n = (int)Math.min(Math.min(len, valueRemaining), buffer.remaining());
+        buffer.get(dst, off, n);
+        position += n;
+        valueRemaining -= n;
+        return n;
+    }
+
+    /**
+     * Read the rest of the current primitive value into a new array.
+     * 
+     * @return value bytes
+     * @throws IOException
+     * @throws BerTlv.ParsingException
+     */
+    public byte[] getValue()
+        throws IOException, BerTlv.ParsingException
+    {
+        if (valueRemaining > Integer.MAX_VALUE - 8) {
+            throw error("Value is too large to fit into array", headerOffset);
+        }
+        var res = new byte[(int)valueRemaining];
+        int p = 0;
+        while (p < res.length) {
+            p += readValue(res, p, res.length - p);
+        }
+        return res;
+    }
+
+    public void close()
+        throws IOException
+    {
+        channel.close();
+    }
+
+    private Event closeConstructed() {
+        depth--;
+        tagLength = tagLengths[depth];
+        System.arraycopy(tags[depth], 0, tag, 0, tagLength);
+        length = (ends[depth] == INDEFINITE) ? INDEFINITE : 0;
+        return Event.END_CONSTRUCTED;
+    }
+
+    private void skipValue()
+        throws IOException, BerTlv.ParsingException
+    {
+        while (valueRemaining > 0) {
+            if (!buffer.hasRemaining() && !fill()) {
+                throw prematureEnd();
+            }
+            int n = (int)Math.min(valueRemaining, buffer.remaining());
+            buffer.position(buffer.position() + n);
+            position += n;
+            valueRemaining -= n;
+        }
+    }
+
+    private void appendTagByte(int b)
+        throws BerTlv.ParsingException
+    {
+        if (tagLength == MAX_TAG_LENGTH) {
+            throw error("Tag is too long", headerOffset);
+        }
+        tag[tagLength++] = (byte)b;
+    }
+
+    private int readByte()
+        throws IOException
+    {
+        if (!buffer.hasRemaining() && !fill()) {
+            return -1;
+        }
+        position++;
+        return buffer.get() & 0xFF;
+    }
+
+    private boolean fill()
+        throws IOException
+    {
+        if (eof) {
+            return false;
+        }
+        buffer.clear();
+        int n = channel.read(buffer);
+        buffer.flip();
+        if (n == 0) {
+            // blocking channel reads at least one byte, see constructor
+            throw new IOException("Channel returned no data, non-blocking channels are not supported");
+        }
+        if (n == -1) {
+            eof = true;
+            return false;
+        }
+        return true;
+    }
+
+    private BerTlv.ParsingException prematureEnd() {
+        return error("Premature end of input", position);
+    }
+
+    // error inside currently open objects, offsets beyond int range are reported as unknown (-1)
+    private BerTlv.ParsingException error(String reason, long offset) {
+        var path = new StringBuilder();
+        for (int i=0; i<depth; i++) {
+            if (i > 0) {
+                path.append('/');
+            }
+            for (int j=0; j<tagLengths[i]; j++) {
+                int b = tags[i][j];
+                path.append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xF, 16)));
+                path.append(Character.toUpperCase(Character.forDigit(b & 0xF, 16)));
+            }
+        }
+        return new BerTlv.ParsingException(reason, (offset <= Integer.MAX_VALUE) ? (int)offset : -1, path.toString());
+    }
+}
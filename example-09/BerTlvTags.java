@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+
+/**
+ * Registry of canonical tag byte arrays of known EMV data objects, i.e. the
+ * ones Util.getTagName() has names for.
+ *
+ * Parser takes tags of known objects from here instead of copying them from
+ * the parsed bytes, so all parsed records share a single "9F 38" or "70"
+ * array. Registry is filled once on class loading and is read-only after
+ * that, so it's safe to use from any thread. Canonical arrays are handed
+ * to BerTlv only, which never modifies or exposes them; get() returns copies.
+ */
+class BerTlvTags {
+    // open addressing table: packed tag => canonical tag bytes,
+    // free slots have null bytes
+    private static final int[] tags;
+    private static final byte[][] bytes;
+    private static final int mask;
+    private static final int count;
+
+    static {
+        // every known tag is one or two bytes long, so probe them all
+        var known = new ArrayList<Integer>();
+        for (int b1=0; b1<0x100; b1++) {
+            if (Util.getTagName(b1) != null) {
+                known.add(b1);
+            }
+            if ((b1 & 0x1F) != 0x1F) {
+                continue;
+            }
+            for (int b2=0; b2<0x80; b2++) {
+                int tag = (b1 << 8) | b2;
+                if (Util.getTagName(tag) != null) {
+                    known.add(tag);
+                }
+            }
+        }
+
+        int size = Integer.highestOneBit(Math.max(known.size(), 1) * 4 - 1) << 1;
+        tags = new int[size];
+        bytes = new byte[size][];
+        mask = size - 1;
+        count = known.size();
+        for (int tag : known) {
+            int slot = hash(tag) & mask;
+            while (bytes[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            tags[slot] = tag;
+            bytes[slot] = (tag > 0xFF)
+                ? new byte[]{(byte)(tag >> 8), (byte)tag}
+                : new byte[]{(byte)tag};
+        }
+    }
+
+
+    private BerTlvTags() {
+    }
+
+
+    /**
+     * Get tag bytes array for tag located in src[offset..offset+length).
+     * 
+     * @param  src    source bytes
+     * @param  offset tag start
+     * @param  length tag length
+     * @return        canonical array for known tags, new copy otherwise
+     */
+    static byte[] intern(byte[] src, int offset, int length) {
+        if (length <= 2) {
+            int tag = src[offset] & 0xFF;
+            if (length == 2) {
+                tag = (tag << 8) | (src[offset + 1] & 0xFF);
+            }
+            var res = get(tag, length);
+            if (res != null) {
+                return res;
+            }
+        }
+        return Util.copyArray(src, offset, length);
+    }
+
+    /**
+     * Buffer version of intern(byte[], int, int), offset is buffer index.
+     */
+    static byte[] intern(ByteBuffer src, int offset, int length) {
+        if (length <= 2) {
+            int tag = src.get(offset) & 0xFF;
+            if (length == 2) {
+                tag = (tag << 8) | (src.get(offset + 1) & 0xFF);
+            }
+            var res = get(tag, length);
+            if (res != null) {
+                return res;
+            }
+        }
+        var res = new byte[length];
+        src.get(offset, res);
+        return res;
+    }
+
+    /**
+     * Get copy of canonical tag bytes array.
+     * 
+     * @param  tag packed tag, e.g. 0x9F38
+     * @return     tag bytes or null if tag is unknown
+     */
+    public static byte[] get(int tag) {
+        var res = get(tag, (tag & ~0xFF) != 0 ? 2 : 1);
+        return (res != null) ? res.clone() : null;
+    }
+
+    // true if "tag" is canonical array itself, not its copy
+    static boolean isCanonical(byte[] tag) {
+        if (tag.length > 2) {
+            return false;
+        }
+        int packed = (tag.length == 2) ? ((tag[0] & 0xFF) << 8) | (tag[1] & 0xFF) : tag[0] & 0xFF;
+        return get(packed, tag.length) == tag;
+    }
+
+    /**
+     * Returns number of known tags.
+     */
+    public static int size() {
+        return count;
+    }
+
+    private static byte[] get(int tag, int length) {
+        int slot = hash(tag) & mask;
+        while (bytes[slot] != null) {
+            if (tags[slot] == tag && bytes[slot].length == length) {
+                return bytes[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    private static int hash(int tag) {
+        int h = tag * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -25,6 +25,21 @@
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordingFile;
+
 
 class BerTlvTest {
     public static void main(String[] args) {
@@ -32,8 +47,7 @@ class BerTlvTest {
 
         byte[] data;
 
-        System.out.println("--------------------");
-        System.out.println("Test 1");
+        startTest(1);
         data = Util.toByteArray("6F");
         try {
             BerTlv d = BerTlv.parseBytes(data);
@@ -42,8 +56,7 @@ class BerTlvTest {
             System.out.printf("PASSED: Parse failed: %s%n", e.getMessage());
         }
 
-        System.out.println("--------------------");
-        System.out.println("Test 2");
+        startTest(2);
         data = Util.toByteArray("9F 38 01 91");
         try {
             BerTlv d = BerTlv.parseBytes(data);
@@ -53,8 +66,7 @@ class BerTlvTest {
             System.out.printf("Parse failed: %s%n", e.getMessage());
         }
 
-        System.out.println("--------------------");
-        System.out.println("Test 3");
+        startTest(3);
         data = Util.toByteArray("9F B8 D3 71 01 59");
         try {
             BerTlv d = BerTlv.parseBytes(data);
@@ -64,8 +76,7 @@ class BerTlvTest {
             System.out.printf("Parse failed: %s%n", e.getMessage());
         }
 
-        System.out.println("--------------------");
-        System.out.println("Test 4");
+        startTest(4);
         data = Util.toByteArray("6F 28 84 0E 31 50 41 59 2E 53 59 53 2E 44 44 46 30 31 A5 16 88 01 01 5F 2D 08 72 75 65 6E 66 72 64 65 BF 0C 05 9F 4D 02 0B 0A");
         try {
             BerTlv d = BerTlv.parseBytes(data);
@@ -75,8 +86,7 @@ class BerTlvTest {
             System.out.printf("Parse failed: %s%n", e.getMessage());
         }
 
-        System.out.println("--------------------");
-        System.out.println("Test 5");
+        startTest(5);
         data = Util.toByteArray("70 81 93 90 81 90 1D 6B AA 1D 94 B6 2B 5E 88 A9 22 49 BF B5 3C CA A8 30 6E 99 6C C9 F1 DB BB E3 1B EE 04 70 37 00 FC 44 A8 B6 B3 57 45 51 F9 E6 A0 A3 1F 9A D6 DC EB F5 A6 17 4A 65 7F 2C 43 F7 CE 44 7C D5 71 82 8D 0D 14 E1 F9 5C 09 E9 29 93 3F C7 2B DD F7 8C 6E BD 18 1F 49 6D EF 78 C9 E4 88 BF 62 F7 3F B2 28 CE 4A 9F 28 F6 13 1E BA 0D 40 B9 77 35 58 A5 EE 13 BB 3B 76 0D B6 31 52 68 4E 8D CC B8 9D 06 80 2F 0E 1A BC 23 22 B5 FA 51 C6 07 96 40 F4 A4");
         try {
             BerTlv d = BerTlv.parseBytes(data);
@@ -86,6 +96,760 @@ class BerTlvTest {
             System.out.printf("Parse failed: %s%n", e.getMessage());
         }
 
+        startTest(6);
+        // inner object length exceeds its parent
+        data = Util.toByteArray("6F 05 84 05 01 02 03");
+        try {
+            BerTlv d = BerTlv.parseBytes(data);
+            System.out.println("FAILED");
+        } catch (BerTlv.ParsingException e) {
+            System.out.printf("PASSED: Parse failed: %s%n", e.getMessage());
+        }
+
+        startTest(7);
+        // values are views into the parsed array, getValue() returns a copy
+        data = Util.toByteArray("A5 08 88 01 01 5F 2D 02 72 75");
+        try {
+            BerTlv d = BerTlv.parseBytes(data);
+            BerTlv lang = d.getPart("5F 2D");
+            var view = lang.getValueView();
+            var value = lang.getValue();
+            value[0] = 0;
+            if (view.remaining() == 2 && view.get(0) == 0x72 && lang.getValue()[0] == 0x72) {
+                System.out.println("PASSED");
+            } else {
+                System.out.println("FAILED");
+            }
+        } catch (BerTlv.ParsingException e) {
+            System.out.printf("Parse failed: %s%n", e.getMessage());
+        }
+
+        startTest(8);
+        // flat index answers the same queries as BerTlv tree
+        data = Util.toByteArray("6F 28 84 0E 31 50 41 59 2E 53 59 53 2E 44 44 46 30 31 A5 16 88 01 01 5F 2D 08 72 75 65 6E 66 72 64 65 BF 0C 05 9F 4D 02 0B 0A");
+        try {
+            BerTlvIndex index = BerTlvIndex.parseBytes(data);
+            int pi = index.getPart(index.getRoot(), "A5");
+            int lang = index.getPart(pi, "5F 2D");
+            int logEntry = index.getPart(index.getPart(pi, 0xBF0C), 0x9F4D);
+            if (index.size() == 7 && index.getParts(pi).length == 3
+                    && Util.bytesToString(index.getValue(lang)).equals("ruenfrde")
+                    && index.getParent(lang) == pi
+                    && Util.hexify(index.getValue(logEntry)).equals("0B 0A")
+                    && index.getPart(pi, "9F 38") == -1) {
+                System.out.println("PASSED");
+            } else {
+                System.out.println("FAILED");
+            }
+        } catch (BerTlv.ParsingException e) {
+            System.out.printf("Parse failed: %s%n", e.getMessage());
+        }
+
+        startTest(9);
+        // streaming reader: indefinite length, long length form and skipped values
+        data = Util.toByteArray("6F 80 84 84 00 00 00 02 AA BB A5 80 88 01 02 00 00 00 00 9F 38 01 91");
+        try {
+            var reader = new BerTlvReader(new java.io.ByteArrayInputStream(data));
+            var events = new StringBuilder();
+            BerTlvReader.Event e;
+            while ((e = reader.next()) != null) {
+                events.append(String.format("%s %s %d;", e, Util.hexify(reader.getTag()), reader.getDepth()));
+                if (reader.tagEquals("88")) {
+                    events.append(Util.hexify(reader.getValue())).append(";");
+                }
+            }
+            var expected = "START_CONSTRUCTED 6F 1;PRIMITIVE 84 1;START_CONSTRUCTED A5 2;PRIMITIVE 88 2;02;"
+                + "END_CONSTRUCTED A5 1;END_CONSTRUCTED 6F 0;PRIMITIVE 9F 38 0;";
+            if (events.toString().equals(expected)) {
+                System.out.println("PASSED");
+            } else {
+                System.out.printf("FAILED: %s%n", events);
+            }
+        } catch (java.io.IOException | BerTlv.ParsingException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(10);
+        // streaming reader: truncated input
+        data = Util.toByteArray("70 81 93 90 81 90 1D 6B");
+        try {
+            var reader = new BerTlvReader(new java.io.ByteArrayInputStream(data));
+            while (reader.next() != null) {
+            }
+            System.out.println("FAILED");
+        } catch (java.io.IOException | BerTlv.ParsingException e) {
+            System.out.printf("PASSED: Parse failed: %s%n", e.getMessage());
+        }
+
+        startTest(11);
+        // build object and encode it back, both short and long length forms
+        try {
+            var pi = new BerTlv(Util.toByteArray("A5"), new ArrayList<BerTlv>());
+            pi.addPart(new BerTlv(Util.toByteArray("88"), Util.toByteArray("01")));
+            pi.addPart(new BerTlv(Util.toByteArray("5F 2D"), "ruenfrde".getBytes()));
+            var bytes = pi.toBytes();
+            var large = new BerTlv(Util.toByteArray("70"), new ArrayList<BerTlv>())
+                .addPart(new BerTlv(Util.toByteArray("90"), new byte[0x90]))
+                .addPart(new BerTlv(Util.toByteArray("9F 46"), new byte[0x100]));
+            var buffer = new byte[large.getEncodedLength() + 2];
+            int n = large.encode(buffer, 2);
+            var parsed = BerTlv.parseBytes(Util.copyArray(buffer, 2, n));
+            if (Util.hexify(bytes).equals("A5 0E 88 01 01 5F 2D 08 72 75 65 6E 66 72 64 65")
+                    && Util.hexify(Util.copyArray(buffer, 2, 6)).equals("70 82 01 98 90 81")
+                    && parsed.getPart("9F 46").getValueLength() == 0x100) {
+                System.out.println("PASSED");
+            } else {
+                System.out.println("FAILED");
+            }
+        } catch (BerTlv.ConstraintException | BerTlv.ParsingException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(12);
+        try {
+            new BerTlv(Util.toByteArray("88"), Util.toByteArray("01")).addPart(null);
+            System.out.println("FAILED");
+        } catch (BerTlv.ConstraintException e) {
+            System.out.printf("PASSED: %s%n", e.getMessage());
+        }
+
+        startTest(13);
+        // packed tag lookups, object with many parts uses hashed index
+        data = Util.toByteArray("70 2C 57 01 01 5A 01 02 5F 20 01 03 5F 24 01 04 5F 25 01 05 5F 28 01 06 "
+            + "5F 34 01 07 8C 01 08 8D 01 09 57 01 0A 9F B8 D3 71 01 0B 9F 38 00");
+        try {
+            BerTlv d = BerTlv.parseBytes(data);
+            if (d.getParts().length == 12
+                    && d.getPart(0x57).getValue()[0] == 1
+                    && d.getPart("8D").getValue()[0] == 9
+                    && d.getPart(0x9FB8D371).tagEquals("9F B8 D3 71")
+                    && d.getPart(0x9F38).getValueLength() == 0
+                    && d.getPart(0x9F37) == null
+                    && d.getPart(0x57).tagEquals(0x57)
+                    && BerTlv.tagFromHex("9F 38") == 0x9F38) {
+                System.out.println("PASSED");
+            } else {
+                System.out.println("FAILED");
+            }
+        } catch (BerTlv.ParsingException e) {
+            System.out.printf("Parse failed: %s%n", e.getMessage());
+        }
+
+        startTest(14);
+        // compiled TLV paths
+        data = Util.toByteArray("70 19 61 07 4F 02 A0 01 50 01 41 61 04 4F 02 A0 02 9F 38 01 91 61 04 50 02 42 43");
+        try {
+            BerTlv d = BerTlv.parseBytes(data);
+            var aids = new ArrayList<String>();
+            TlvPath.compile("70/61*/4F").forEach(d, p -> aids.add(Util.hexify(p.getValue())));
+            if (String.join(",", aids).equals("A0 01,A0 02")
+                    && TlvPath.compile("70/61/50").find(d).getValue()[0] == 0x41
+                    && TlvPath.compile("70/61/50") == TlvPath.compile("70/61/50")
+                    && TlvPath.compile("70/*").findAll(d).size() == 4
+                    && TlvPath.compile("70/9F 38").find(d).getValueLength() == 1
+                    && TlvPath.compile("6F/9F38").find(d) == null
+                    && TlvPath.compile("70/61/5F2D").find(d) == null) {
+                System.out.println("PASSED");
+            } else {
+                System.out.println("FAILED");
+            }
+        } catch (BerTlv.ParsingException e) {
+            System.out.printf("Parse failed: %s%n", e.getMessage());
+        }
+
+        startTest(15);
+        // lazy parsing gives the same tree, encoding is validated upfront
+        try {
+            data = Util.toByteArray("6F 28 84 0E 31 50 41 59 2E 53 59 53 2E 44 44 46 30 31 A5 16 88 01 01 5F 2D 08 72 75 65 6E 66 72 64 65 BF 0C 05 9F 4D 02 0B 0A");
+            BerTlv lazy = BerTlv.parseBytesLazy(data);
+            var encoded = Util.hexify(lazy.toBytes());
+            var lang = TlvPath.compile("6F/A5/5F2D").find(lazy);
+            boolean same = Util.bytesToString(lang.getValue()).equals("ruenfrde")
+                && lazy.toString().equals(BerTlv.parseBytes(data).toString())
+                && encoded.equals(Util.hexify(data));
+            try {
+                BerTlv.parseBytesLazy(Util.toByteArray("70 06 A5 04 88 03 01 02"));
+                same = false;
+            } catch (BerTlv.ParsingException e) {
+            }
+            System.out.println(same ? "PASSED" : "FAILED");
+        } catch (BerTlv.ParsingException e) {
+            System.out.printf("Parse failed: %s%n", e.getMessage());
+        }
+
+        startTest(16);
+        // parser limits: nesting depth and number of objects
+        try {
+            var nested = new BerTlv(Util.toByteArray("9F 38"), Util.toByteArray("91"));
+            for (int i=0; i<40; i++) {
+                nested = new BerTlv(Util.toByteArray("A0"), new ArrayList<BerTlv>()).addPart(nested);
+            }
+            data = nested.toBytes();
+            boolean passed = false;
+            try {
+                BerTlv.parseBytes(data);
+            } catch (BerTlv.ParsingException e) {
+                System.out.printf("Parse failed: %s%n", e.getReason());
+                passed = e.getOffset() == 64 && e.getTagPath().startsWith("A0/A0/");
+            }
+            var d = BerTlv.parseBytes(data, new BerTlv.Limits(64, 100, 1000));
+            try {
+                BerTlv.parseBytesLazy(data, new BerTlv.Limits(64, 20, 1000));
+                passed = false;
+            } catch (BerTlv.ParsingException e) {
+                System.out.printf("Parse failed: %s%n", e.getReason());
+            }
+            System.out.println(passed && d.getEncodedLength() == data.length ? "PASSED" : "FAILED");
+        } catch (BerTlv.ConstraintException | BerTlv.ParsingException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(17);
+        // error offset and tag path
+        data = Util.toByteArray("6F 0A A5 08 88 01 01 5F 2D 05 72 75");
+        try {
+            BerTlv.parseBytes(data);
+            System.out.println("FAILED");
+        } catch (BerTlv.ParsingException e) {
+            if (e.getOffset() == 12 && e.getTagPath().equals("6F/A5")) {
+                System.out.printf("PASSED: Parse failed: %s%n", e.getMessage());
+            } else {
+                System.out.printf("FAILED: %s%n", e.getMessage());
+            }
+        }
+
+        startTest(18);
+        // streaming pretty-printer with indent and tag names
+        data = Util.toByteArray("6F 0D 84 01 01 A5 08 88 01 01 5F 2D 02 72 75");
+        try {
+            var d = BerTlv.parseBytes(data);
+            var sb = new StringBuilder();
+            d.writeTo(sb, 4, Util::getTagName);
+            var out = sb.toString();
+            System.out.println(out);
+            boolean passed = out.startsWith("    TAG:   6F(CONSTRUCTED) ")
+                && out.contains("      TAG:   A5(CONSTRUCTED) ")
+                && out.contains("Language Preference")
+                && d.toString().equals(BerTlv.parseBytesLazy(data).toString());
+            try {
+                d.writeTo(new StringBuilder(), -1);
+                passed = false;
+            } catch (IllegalArgumentException e) {
+                passed = passed && e.getMessage().equals("Negative indent: -1");
+            }
+            System.out.println(passed ? "PASSED" : "FAILED");
+        } catch (BerTlv.ParsingException | IOException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(19);
+        // interned tags and shared objects with tiny values
+        try {
+            var cache = new BerTlv.ValueCache(64);
+            var d1 = BerTlv.parseBytes(Util.toByteArray("70 0B 88 01 01 5F 2D 02 72 75 DF 01 00"), BerTlv.DEFAULT_LIMITS, cache);
+            var d2 = BerTlv.parseBytes(Util.toByteArray("70 0B 88 01 01 5F 2D 02 65 6E DF 01 00"), BerTlv.DEFAULT_LIMITS, cache);
+            var d3 = BerTlv.parseBytes(Util.toByteArray("70 0B 88 01 01 5F 2D 02 72 75 DF 01 00"));
+            boolean passed = d1.sharesTag(d2)
+                && d1.getPart(0x5F2D).sharesTag(d3.getPart(0x5F2D))
+                && d1.getPart(0x5F2D).isTagInterned()
+                && !d1.getPart(0xDF01).sharesTag(d3.getPart(0xDF01))
+                && !d1.getPart(0xDF01).isTagInterned()
+                && d1.getPart(0x88) == d2.getPart(0x88)
+                && d1.getPart(0x88) != d3.getPart(0x88)
+                && d1.getPart(0x5F2D) != d2.getPart(0x5F2D)
+                && d2.getPart(0x5F2D).getValue()[0] == 0x65
+                && d1.getPart(0xDF01) == d2.getPart(0xDF01)
+                && Util.hexify(d1.toBytes()).equals("70 0B 88 01 01 5F 2D 02 72 75 DF 01 00");
+
+            // shared tag can't be modified through getTag()
+            d1.getPart(0x5F2D).getTag()[0] = 0x00;
+            BerTlvTags.get(0x5F2D)[0] = 0x00;
+            passed = passed && d3.getPart(0x5F2D).tagEquals(0x5F2D) && Util.hexify(BerTlvTags.get(0x5F2D)).equals("5F 2D");
+            System.out.println(passed ? "PASSED" : "FAILED");
+        } catch (BerTlv.ParsingException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(20);
+        // bulk decoding of corpus file
+        try {
+            var file = Files.createTempFile("corpus", ".bin");
+            try (var out = Files.newOutputStream(file)) {
+                for (int i=0; i<2000; i++) {
+                    BerTlvCorpus.writeRecord(out, Util.toByteArray("70 0B 88 01 01 5F 2D 02 72 75 DF 01 00"));
+                    BerTlvCorpus.writeRecord(out, Util.toByteArray("70 07 5F 2D 04 65 6E 66 72"));
+                }
+                BerTlvCorpus.writeRecord(out, Util.toByteArray("70 07 5F 2D 05 65 6E 66 72"));
+            }
+            var corpus = BerTlvCorpus.open(file);
+            var stats = corpus.analyze();
+            Files.delete(file);
+            System.out.printf("records: %d, errors: %d, tags: %d%n", stats.getRecords(), stats.getErrors(), stats.getTags().length);
+            boolean passed = corpus.size() == 4001
+                && stats.getRecords() == 4000
+                && stats.getErrors() == 1
+                && stats.getTags().length == 4
+                && stats.getCount(0x70) == 4000
+                && stats.getCount(0x5F2D) == 4000
+                && stats.getMinLength(0x5F2D) == 2
+                && stats.getMaxLength(0x5F2D) == 4
+                && stats.getAverageLength(0x5F2D) == 3.0
+                && stats.getMaxLength(0x70) == 11
+                && stats.getCount(0x9F38) == 0;
+            System.out.println(passed ? "PASSED" : "FAILED");
+        } catch (IOException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(21);
+        // parsing off-heap buffer
+        data = Util.toByteArray("6F 28 84 0E 31 50 41 59 2E 53 59 53 2E 44 44 46 30 31 A5 16 88 01 01 5F 2D 08 72 75 65 6E 66 72 64 65 BF 0C 05 9F 4D 02 0B 0A");
+        try {
+            var direct = ByteBuffer.allocateDirect(data.length + 10);
+            direct.put(new byte[3]).put(data).flip().position(3);
+            var d = BerTlv.parseBuffer(direct);
+            var lazy = BerTlv.parseBufferLazy(direct);
+            var lang = TlvPath.compile("6F/A5/5F2D").find(lazy);
+            boolean passed = direct.position() == 3
+                && d.toString().equals(BerTlv.parseBytes(data).toString())
+                && Util.hexify(d.toBytes()).equals(Util.hexify(data))
+                && Util.bytesToString(lang.getValue()).equals("ruenfrde")
+                && lang.getValueView().isDirect()
+                && d.getPart(0xA5).getPart(0xBF0C).getPart(0x9F4D).getValueLength() == 2
+                && d.getPart(0x84).isTagInterned();
+            direct.limit(20);
+            try {
+                BerTlv.parseBuffer(direct);
+                passed = false;
+            } catch (BerTlv.ParsingException e) {
+                System.out.printf("Parse failed: %s%n", e.getMessage());
+                passed = passed && e.getOffset() == 20;
+            }
+
+            // heap buffer with non-zero array offset reports buffer index too
+            var padded = new byte[data.length + 5];
+            System.arraycopy(data, 0, padded, 5, data.length);
+            var heap = ByteBuffer.wrap(padded, 5, data.length).slice().limit(17);
+            try {
+                BerTlv.parseBuffer(heap);
+                passed = false;
+            } catch (BerTlv.ParsingException e) {
+                passed = passed && heap.arrayOffset() == 5 && e.getOffset() == 17;
+            }
+            try {
+                BerTlv.parseBufferLazy(heap);
+                passed = false;
+            } catch (BerTlv.ParsingException e) {
+                passed = passed && e.getOffset() == 17;
+            }
+            System.out.println(passed ? "PASSED" : "FAILED");
+        } catch (BerTlv.ParsingException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(22);
+        // generated template accessors
+        try {
+            var fci = EmvTemplates.FciTemplate.from(BerTlv.parseBytes(Util.toByteArray(
+                "6F 34 84 07 A0 00 00 00 03 10 10 A5 29 50 0B 56 49 53 41 20 43 52 45 44 49 54 87 01 01 "
+                + "9F 38 06 9F 1A 02 5F 2A 02 5F 2D 02 65 6E BF 0C 08 9F 5A 05 31 08 40 08 40")));
+            var pi = fci.getFciProprietaryTemplate();
+            var psd = EmvTemplates.RecordTemplate.from(BerTlv.parseBytes(Util.toByteArray(
+                "70 1C 61 07 4F 02 A0 01 50 01 41 61 04 4F 02 A0 02 5A 05 12 34 56 78 9F 5F 24 03 27 12 31")));
+            var apps = psd.getApplicationTemplateList();
+            boolean passed = Util.hexify(fci.getDedicatedFileName()).equals("A0 00 00 00 03 10 10")
+                && pi.getApplicationLabel().equals("VISA CREDIT")
+                && pi.getLanguagePreference().equals("en")
+                && Util.hexify(pi.getPdol()).equals("9F 1A 02 5F 2A 02")
+                && pi.getFciIssuerDiscretionaryData().getLogEntry() == null
+                && pi.getSfi() == null
+                && apps.size() == 2
+                && apps.get(0).getApplicationLabel().equals("A")
+                && Util.hexify(apps.get(1).getApplicationIdentifier()).equals("A0 02")
+                && psd.getPan().equals("123456789")
+                && psd.getApplicationExpirationDate().equals("2027-12-31")
+                && EmvTemplates.FciTemplate.from(psd.getTlv()) == null;
+            System.out.println(passed ? "PASSED" : "FAILED");
+        } catch (BerTlv.ParsingException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(23);
+        // incremental assembly of response fragments
+        try {
+            var fci = Util.toByteArray(
+                "6F 34 84 07 A0 00 00 00 03 10 10 A5 29 50 0B 56 49 53 41 20 43 52 45 44 49 54 87 01 01 "
+                + "9F 38 06 9F 1A 02 5F 2A 02 5F 2D 02 65 6E BF 0C 08 9F 5A 05 31 08 40 08 40");
+            var expected = Util.hexify(fci);
+            var completed = new StringBuilder();
+            var assembler = new BerTlvAssembler(BerTlv.DEFAULT_LIMITS, (t, depth) ->
+                completed.append(Util.hexify(t.getTag())).append('@').append(depth).append(' '));
+            // cuts inside tag, length and value
+            assembler.feed(Arrays.copyOfRange(fci, 0, 12));
+            boolean passed = completed.toString().equals("84@1 ") && !assembler.isComplete();
+            assembler.feed(Arrays.copyOfRange(fci, 12, 32));
+            assembler.feed(Arrays.copyOfRange(fci, 32, 33));
+            assembler.feed(Arrays.copyOfRange(fci, 33, fci.length));
+            passed = passed && assembler.isComplete()
+                && Util.hexify(assembler.getRoot().toBytes()).equals(expected)
+                && completed.toString().equals("84@1 50@2 87@2 9F 38@2 5F 2D@2 9F 5A@3 BF 0C@2 A5@1 6F@0 ");
+
+            // byte by byte
+            var bytewise = new BerTlvAssembler();
+            for (int i=0; i<fci.length; i++) {
+                passed = passed && bytewise.getRoot() == null;
+                bytewise.feed(fci, i, 1);
+            }
+            passed = passed && Util.hexify(bytewise.getRoot().toBytes()).equals(expected);
+
+            // child exceeding its parent
+            try {
+                var broken = new BerTlvAssembler();
+                broken.feed(Util.toByteArray("6F 05 A5 03 50"));
+                broken.feed(Util.toByteArray("04 41 42 43 44"));
+                passed = false;
+            } catch (BerTlv.ParsingException e) {
+                passed = passed && e.getMessage().equals("Premature end of bytes at offset 7 in 6F/A5");
+            }
+
+            // too long primitive root is rejected by its header, value isn't awaited
+            try {
+                var tooLong = new BerTlvAssembler(new BerTlv.Limits(32, 10000, 0x1000), null);
+                tooLong.feed(Util.toByteArray("50 83 FF FF FF 01 02"));
+                passed = false;
+            } catch (BerTlv.ParsingException e) {
+                passed = passed && e.getMessage().equals("Object is longer than 4096 bytes at offset 0");
+            }
+
+            // tag continued forever doesn't grow the buffer
+            try {
+                var longTag = new BerTlvAssembler();
+                longTag.feed(Util.toByteArray("6F 07 DF 81 82"));
+                longTag.feed(Util.toByteArray("83 84 01 00"));
+                passed = false;
+            } catch (BerTlv.ParsingException e) {
+                passed = passed && e.getMessage().equals("Tag is too long at offset 2 in 6F");
+            }
+            System.out.println(passed ? "PASSED" : "FAILED");
+        } catch (BerTlv.ParsingException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(24);
+        // structural diff
+        try {
+            var before = BerTlv.parseBytes(Util.toByteArray(
+                "70 1C 61 07 4F 02 A0 01 50 01 41 61 04 4F 02 A0 02 5A 05 12 34 56 78 9F 5F 24 03 27 12 31"));
+            var after = BerTlv.parseBytes(Util.toByteArray(
+                "70 1A 61 07 4F 02 A0 01 50 01 41 61 04 4F 02 A0 03 5F 24 03 27 12 31 9F 08 02 00 02"));
+            var diff = BerTlvDiff.compare(before, after);
+            var same = BerTlvDiff.compare(Arrays.asList(before, after),
+                Arrays.asList(BerTlv.parseBytesLazy(before.toBytes()), BerTlv.parseBytesLazy(after.toBytes())));
+            var roots = BerTlvDiff.compare(before, BerTlv.parseBytes(Util.toByteArray("77 00")));
+            boolean passed = diff.getAdded().equals(Arrays.asList("70/9F08"))
+                && diff.getRemoved().equals(Arrays.asList("70/5A"))
+                && diff.getChanged().equals(Arrays.asList("70/61[1]/4F"))
+                && same.isEmpty()
+                && roots.getRemoved().equals(Arrays.asList("70"))
+                && roots.getAdded().equals(Arrays.asList("77"))
+                && before.getPart(0x61).contentHash() == after.getPart(0x61).contentHash()
+                && before.contentHash() != after.contentHash();
+            System.out.println(passed ? "PASSED" : "FAILED");
+        } catch (BerTlv.ParsingException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(25);
+        // hexify sinks and separators
+        try {
+            var bytes = Util.toByteArray("00 7F 80 9F 38 FF");
+            var chars = new char[Util.hexifiedLength(4, ":") + 1];
+            chars[0] = '>';
+            int end = Util.hexify(bytes, 1, 4, ":", chars, 1);
+            var writer = new StringWriter();
+            Util.hexify(bytes, 4, 2, ", ", writer);
+            boolean passed = Util.hexify(bytes).equals("00 7F 80 9F 38 FF")
+                && Util.hexify(bytes, "").equals("007F809F38FF")
+                && Util.hexify(bytes, 0, 0, " ").equals("")
+                && end == chars.length && new String(chars).equals(">7F:80:9F:38")
+                && Util.hexify(bytes, 0, 2, "-", new StringBuilder("x")).toString().equals("x00-7F")
+                && writer.toString().equals("38, FF");
+            System.out.println(passed ? "PASSED" : "FAILED");
+        } catch (IOException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(26);
+        // 61xx and 6Cxx resolved by channel decorator
+        try {
+            var card = new ScriptedChannel("6C 05", "01 02 61 03", "03 04 05 90 00", "6A 82");
+            var channel = new GetResponseChannel(card);
+            var answer = channel.transmit(new CommandAPDU(Util.toByteArray("00 B2 01 0C 00")));
+            var response = ByteBuffer.allocate(16);
+            int length = channel.transmit(ByteBuffer.wrap(Util.toByteArray("00 A4 04 00 02 A0 00 00")), response);
+            boolean passed = Util.hexify(answer.getBytes()).equals("01 02 03 04 05 90 00")
+                && card.sent.equals(Arrays.asList("00 B2 01 0C 00", "00 B2 01 0C 05", "00 C0 00 00 03", "00 A4 04 00 02 A0 00 00"))
+                && length == 2 && response.position() == 2 && response.getShort(0) == 0x6A82
+                && channel.getCommands() == 2
+                && channel.getExtraExchanges() == 2
+                && channel.getExtraExchanges(0xB2) == 2 && channel.getExtraExchanges(0xA4) == 0;
+
+            // GET RESPONSE on logical channels 1 and 5
+            card = new ScriptedChannel("61 01", "01 90 00", "61 01", "02 90 00");
+            channel = new GetResponseChannel(card);
+            channel.transmit(new CommandAPDU(Util.toByteArray("01 B0 00 00 00")));
+            channel.transmit(new CommandAPDU(Util.toByteArray("61 B0 00 00 00")));
+            passed = passed && card.sent.equals(Arrays.asList("01 B0 00 00 00", "01 C0 00 00 01", "61 B0 00 00 00", "41 C0 00 00 01"));
+
+            // extended length response longer than short one
+            var longData = new byte[300];
+            card = new ScriptedChannel(Util.hexify(longData) + " 90 00");
+            channel = new GetResponseChannel(card);
+            answer = channel.transmit(new CommandAPDU(Util.toByteArray("00 B0 00 00 00 01 2C")));
+            passed = passed && answer.getData().length == 300 && answer.getSW() == 0x9000;
+            System.out.println(passed ? "PASSED" : "FAILED");
+        } catch (CardException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(27);
+        // streaming reader: tag and depth limits, indefinite length object inside definite length one
+        try {
+            var errors = new StringBuilder();
+            var inputs = new String[] {
+                "9F FF FF FF 01 01 00",
+                "6F 06 A5 04 A5 02 88 00",
+                "6F 04 A5 80 88 00 00 00",
+                "6F 05 A5 80 88 00 00 00",
+                "6F 06 A5 80 88 05 00 00",
+                "6F 06 A5 80 88 00 00 00",
+            };
+            for (var input : inputs) {
+                var reader = new BerTlvReader(java.nio.channels.Channels.newChannel(
+                    new java.io.ByteArrayInputStream(Util.toByteArray(input))), 2);
+                try {
+                    while (reader.next() != null) {
+                    }
+                    errors.append("OK;");
+                } catch (BerTlv.ParsingException e) {
+                    errors.append(e.getMessage()).append(";");
+                }
+            }
+            var expected = "Tag is too long at offset 0;Nesting depth exceeds 2 at offset 4 in 6F/A5;"
+                + "Missing end-of-contents at offset 6 in 6F/A5;End-of-contents exceeds its parent at offset 6 in 6F/A5;"
+                + "Object exceeds its parent at offset 4 in 6F/A5;OK;";
+
+            // structured error fields, tags compared in place
+            var reader = new BerTlvReader(new java.io.ByteArrayInputStream(Util.toByteArray("6F 05 9F 38 01 00 88 01 00")));
+            boolean tagMatched = reader.next() == BerTlvReader.Event.START_CONSTRUCTED && reader.tagEquals("6F")
+                && reader.next() == BerTlvReader.Event.PRIMITIVE && reader.tagEquals("9F 38")
+                && !reader.tagEquals("9F") && !reader.tagEquals("9F 38 01 02 03");
+            try {
+                reader.next();
+                tagMatched = false;
+            } catch (BerTlv.ParsingException e) {
+                tagMatched = tagMatched && e.getReason().equals("Object exceeds its parent")
+                    && e.getOffset() == 6 && e.getTagPath().equals("6F");
+            }
+            if (errors.toString().equals(expected) && tagMatched) {
+                System.out.println("PASSED");
+            } else {
+                System.out.printf("FAILED: %s%n", errors);
+            }
+        } catch (java.io.IOException | BerTlv.ParsingException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(28);
+        // values longer than the parser accepts are not encoded
+        try {
+            var large = new BerTlv(Util.toByteArray("70"), new ArrayList<BerTlv>())
+                .addPart(new BerTlv(Util.toByteArray("9F 46"), new byte[0x800000]))
+                .addPart(new BerTlv(Util.toByteArray("9F 47"), new byte[0x800000]));
+            var messages = new StringBuilder();
+            for (var t : Arrays.asList(new BerTlv(Util.toByteArray("90"), new byte[BerTlv.MAX_VALUE_LENGTH + 1]), large)) {
+                try {
+                    t.toBytes();
+                } catch (IllegalStateException e) {
+                    messages.append(e.getMessage()).append(';');
+                }
+                try {
+                    t.getEncodedLength();
+                } catch (IllegalStateException e) {
+                    messages.append(e.getMessage()).append(';');
+                }
+            }
+            var expected = "Value of 16777216 bytes exceeds 16777215 bytes supported by the parser;".repeat(2)
+                + "Value of 16777228 bytes exceeds 16777215 bytes supported by the parser;".repeat(2);
+            if (messages.toString().equals(expected)) {
+                System.out.println("PASSED");
+            } else {
+                System.out.printf("FAILED: %s%n", messages);
+            }
+        } catch (BerTlv.ConstraintException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(29);
+        // malformed hex tags and parts of PRIMITIVE object
+        try {
+            var messages = new StringBuilder();
+            for (var tagHex : new String[] {"9G", "9F 3", "", "9F 38 01 02 03"}) {
+                try {
+                    messages.append(BerTlv.tagFromHex(tagHex)).append(';');
+                } catch (IllegalArgumentException e) {
+                    messages.append(e.getMessage()).append(';');
+                }
+            }
+            try {
+                BerTlv.parseBytes(Util.toByteArray("9F 38 01 91")).getPartAt(0);
+            } catch (IndexOutOfBoundsException e) {
+                messages.append(e.getMessage()).append(';');
+            }
+            var expected = "Incorrect input character at offset 1;Tag \"9F 3\" must have even number of hex digits;"
+                + "Tag \"\" must have even number of hex digits;-1;PRIMITIVE object 9F 38 has no part 0;";
+            if (messages.toString().equals(expected)) {
+                System.out.println("PASSED");
+            } else {
+                System.out.printf("FAILED: %s%n", messages);
+            }
+        } catch (BerTlv.ParsingException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(30);
+        // lazy tree shared between threads decodes every object once
+        try {
+            var bytes = new BerTlv(Util.toByteArray("70"), new ArrayList<BerTlv>());
+            for (int i=0; i<64; i++) {
+                bytes.addPart(new BerTlv(Util.toByteArray("A5"), new ArrayList<BerTlv>())
+                    .addPart(new BerTlv(new byte[] {(byte)0x9F, (byte)(0x01 + i)}, new byte[] {(byte)i})));
+            }
+            var encoded = bytes.toBytes();
+            boolean passed = true;
+            for (int round=0; round<20 && passed; round++) {
+                var tree = BerTlv.parseBytesLazy(encoded);
+                var found = new BerTlv[4][64];
+                var threads = new Thread[found.length];
+                for (int t=0; t<threads.length; t++) {
+                    var res = found[t];
+                    threads[t] = new Thread(() -> {
+                        for (int i=0; i<res.length; i++) {
+                            res[i] = tree.getPartAt(i).getPart(0x9F01 + i);
+                        }
+                    });
+                    threads[t].start();
+                }
+                for (var thread : threads) {
+                    thread.join();
+                }
+                for (int t=0; t<found.length; t++) {
+                    for (int i=0; i<64; i++) {
+                        passed = passed && found[t][i] == found[0][i] && found[t][i].getValue()[0] == i;
+                    }
+                }
+            }
+            System.out.println(passed ? "PASSED" : "FAILED");
+        } catch (BerTlv.ConstraintException | BerTlv.ParsingException | InterruptedException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(31);
+        // failed exchange is still recorded as JFR event, with SW 0
+        try (var recording = new Recording()) {
+            recording.enable("pcsc.ApduExchange");
+            recording.start();
+            var channel = new GetResponseChannel(new ScriptedChannel("90 00"), "stub");
+            channel.transmit(new CommandAPDU(Util.toByteArray("00 B0 00 00 00")));
+            boolean thrown = false;
+            try {
+                channel.transmit(new CommandAPDU(Util.toByteArray("00 B0 00 01 00")));
+            } catch (CardException e) {
+                thrown = true;
+            }
+            recording.stop();
+            var file = Files.createTempFile("pcsc", ".jfr");
+            recording.dump(file);
+            var sws = new ArrayList<Integer>();
+            for (var e : RecordingFile.readAllEvents(file)) {
+                sws.add(e.getInt("sw"));
+            }
+            Files.delete(file);
+            System.out.println((thrown && sws.equals(Arrays.asList(0x9000, 0))) ? "PASSED" : "FAILED");
+        } catch (CardException | IOException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(32);
+        // modified subtree makes hashes of its ancestors stale, values of equal hashes are compared
+        try {
+            var before = BerTlv.parseBytes(Util.toByteArray("70 08 61 03 4F 01 A0 50 01 41"));
+            var after = BerTlv.parseBytes(before.toBytes());
+            long hash = after.contentHash();
+            var noChanges = BerTlvDiff.compare(before, after);
+            after.getPart(0x61).addPart(new BerTlv(Util.toByteArray("9F 08"), Util.toByteArray("00 02")));
+            var diff = BerTlvDiff.compare(before, after);
+            var value = BerTlv.parseBytes(Util.toByteArray("50 01 41"));
+            boolean passed = noChanges.isEmpty()
+                && after.contentHash() != hash
+                && diff.getAdded().equals(Arrays.asList("70/61/9F08"))
+                && value.valueEquals(before.getPart(0x50))
+                && !value.valueEquals(before.getPart(0x61).getPart(0x4F))
+                && !before.valueEquals(after);
+            System.out.println(passed ? "PASSED" : "FAILED");
+        } catch (BerTlv.ConstraintException | BerTlv.ParsingException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(33);
+        // flat index applies the same limits and reports the same errors as BerTlv
+        {
+            var limits = new BerTlv.Limits(2, 4, 0x0A);
+            var inputs = new String[] {
+                "6F 04 A5 02 E0 00",
+                "6F 08 88 00 88 00 88 00 88 00",
+                "6F 04 A5 02 88 05",
+                "6F 04 A5 84 00 00",
+                "50 0A 00 00 00 00 00 00 00 00 00 00",
+                "6F 03 9F",
+                "6F 02 88 00",
+            };
+            var mismatches = new StringBuilder();
+            for (var input : inputs) {
+                var bytes = Util.toByteArray(input);
+                String tree = "OK";
+                String index = "OK";
+                try {
+                    BerTlv.parseBytes(bytes, limits);
+                } catch (BerTlv.ParsingException e) {
+                    tree = e.getMessage();
+                }
+                try {
+                    BerTlvIndex.parseBytes(bytes, limits);
+                } catch (BerTlv.ParsingException e) {
+                    index = e.getMessage();
+                }
+                if (!tree.equals(index)) {
+                    mismatches.append(String.format("%s: %s != %s;", input, tree, index));
+                }
+            }
+
+            // packed tags of the index are limited to 4 bytes
+            try {
+                BerTlvIndex.parseBytes(Util.toByteArray("6F 07 9F FF FF FF 01 01 00"), limits);
+                mismatches.append("long tag accepted;");
+            } catch (BerTlv.ParsingException e) {
+                if (!e.getMessage().equals("Tag is too long at offset 2 in 6F")) {
+                    mismatches.append(e.getMessage()).append(';');
+                }
+            }
+            if (mismatches.length() == 0) {
+                System.out.println("PASSED");
+            } else {
+                System.out.printf("FAILED: %s%n", mismatches);
+            }
+        }
+
         // System.out.println("Test 5");
         // // 0xE329=58153 bytes
         // data = Util.toByteArray("50 82 E3 29 00 00");
@@ -97,4 +861,61 @@ class BerTlvTest {
         // }
     }
 
-}
\ No newline at end of file
+    // every test starts with separator and its number
+    private static void startTest(int number) {
+        System.out.println("--------------------");
+        System.out.printf("Test %d%n", number);
+    }
+
+
+    /**
+     * Channel replaying recorded responses and recording sent commands.
+     */
+    static class ScriptedChannel extends CardChannel {
+        final ArrayList<String> sent = new ArrayList<String>();
+        private final ArrayDeque<byte[]> responses = new ArrayDeque<byte[]>();
+
+        ScriptedChannel(String... responses) {
+            for (var r : responses) {
+                this.responses.add(Util.toByteArray(r));
+            }
+        }
+
+        @Override
+        public Card getCard() {
+            return null;
+        }
+
+        @Override
+        public int getChannelNumber() {
+            return 0;
+        }
+
+        @Override
+        public ResponseAPDU transmit(CommandAPDU command)
+            throws CardException
+        {
+            sent.add(Util.hexify(command.getBytes()));
+            if (responses.isEmpty()) {
+                // card removed
+                throw new CardException("No more responses");
+            }
+            return new ResponseAPDU(responses.remove());
+        }
+
+        @Override
+        public int transmit(ByteBuffer command, ByteBuffer response)
+            throws CardException
+        {
+            var bytes = new byte[command.remaining()];
+            command.get(bytes);
+            var r = transmit(new CommandAPDU(bytes)).getBytes();
+            response.put(r);
+            return r.length;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,622 @@
+// Generated by TemplateGenerator from emv-templates.schema, do not edit.
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Typed views of EMV templates, every template is bound to parsed object
+ * with from() in a single pass over its parts. Getters return null (or empty
+ * lists for repeated objects) if object is missing.
+ */
+class EmvTemplates {
+    private EmvTemplates() {
+    }
+
+    /**
+     * Template 6F.
+     */
+    public static class FciTemplate {
+        private final BerTlv tlv;
+        private BerTlv dedicatedFileName;
+        private FciProprietaryTemplate fciProprietaryTemplate;
+
+        private FciTemplate(BerTlv tlv) {
+            this.tlv = tlv;
+        }
+
+        /**
+         * Bind template to parsed object.
+         * 
+         * @param  tlv parsed object, may be null
+         * @return     template or null if tlv is null or has other tag
+         */
+        public static FciTemplate from(BerTlv tlv) {
+            if (tlv == null || !tlv.tagEquals(0x6F)) {
+                return null;
+            }
+            var res = new FciTemplate(tlv);
+            int count = tlv.getPartsCount();
+            for (int i=0; i<count; i++) {
+                var part = tlv.getPartAt(i);
+                switch (part.getPackedTag()) {
+                case 0x84:
+                    if (res.dedicatedFileName == null) {
+                        res.dedicatedFileName = part;
+                    }
+                    break;
+                case 0xA5:
+                    if (res.fciProprietaryTemplate == null) {
+                        res.fciProprietaryTemplate = FciProprietaryTemplate.from(part);
+                    }
+                    break;
+                }
+            }
+            return res;
+        }
+
+        public BerTlv getTlv() {
+            return tlv;
+        }
+
+        // 84, b
+        public byte[] getDedicatedFileName() {
+            return (dedicatedFileName == null) ? null : dedicatedFileName.getValue();
+        }
+
+        // A5, template
+        public FciProprietaryTemplate getFciProprietaryTemplate() {
+            return fciProprietaryTemplate;
+        }
+    }
+
+    /**
+     * Template A5, part of 6F.
+     */
+    public static class FciProprietaryTemplate {
+        private final BerTlv tlv;
+        private BerTlv applicationLabel;
+        private BerTlv applicationPriorityIndicator;
+        private BerTlv sfi;
+        private BerTlv pdol;
+        private BerTlv languagePreference;
+        private BerTlv issuerCodeTableIndex;
+        private BerTlv applicationPreferredName;
+        private FciIssuerDiscretionaryData fciIssuerDiscretionaryData;
+
+        private FciProprietaryTemplate(BerTlv tlv) {
+            this.tlv = tlv;
+        }
+
+        /**
+         * Bind template to parsed object.
+         * 
+         * @param  tlv parsed object, may be null
+         * @return     template or null if tlv is null or has other tag
+         */
+        public static FciProprietaryTemplate from(BerTlv tlv) {
+            if (tlv == null || !tlv.tagEquals(0xA5)) {
+                return null;
+            }
+            var res = new FciProprietaryTemplate(tlv);
+            int count = tlv.getPartsCount();
+            for (int i=0; i<count; i++) {
+                var part = tlv.getPartAt(i);
+                switch (part.getPackedTag()) {
+                case 0x50:
+                    if (res.applicationLabel == null) {
+                        res.applicationLabel = part;
+                    }
+                    break;
+                case 0x87:
+                    if (res.applicationPriorityIndicator == null) {
+                        res.applicationPriorityIndicator = part;
+                    }
+                    break;
+                case 0x88:
+                    if (res.sfi == null) {
+                        res.sfi = part;
+                    }
+                    break;
+                case 0x9F38:
+                    if (res.pdol == null) {
+                        res.pdol = part;
+                    }
+                    break;
+                case 0x5F2D:
+                    if (res.languagePreference == null) {
+                        res.languagePreference = part;
+                    }
+                    break;
+                case 0x9F11:
+                    if (res.issuerCodeTableIndex == null) {
+                        res.issuerCodeTableIndex = part;
+                    }
+                    break;
+                case 0x9F12:
+                    if (res.applicationPreferredName == null) {
+                        res.applicationPreferredName = part;
+                    }
+                    break;
+                case 0xBF0C:
+                    if (res.fciIssuerDiscretionaryData == null) {
+                        res.fciIssuerDiscretionaryData = FciIssuerDiscretionaryData.from(part);
+                    }
+                    break;
+                }
+            }
+            return res;
+        }
+
+        public BerTlv getTlv() {
+            return tlv;
+        }
+
+        // 50, ans
+        public String getApplicationLabel() {
+            return (applicationLabel == null) ? null : Util.bytesToString(applicationLabel.getValue());
+        }
+
+        // 87, b
+        public byte[] getApplicationPriorityIndicator() {
+            return (applicationPriorityIndicator == null) ? null : applicationPriorityIndicator.getValue();
+        }
+
+        // 88, b
+        public byte[] getSfi() {
+            return (sfi == null) ? null : sfi.getValue();
+        }
+
+        // 9F38, b
+        public byte[] getPdol() {
+            return (pdol == null) ? null : pdol.getValue();
+        }
+
+        // 5F2D, an
+        public String getLanguagePreference() {
+            return (languagePreference == null) ? null : Util.bytesToString(languagePreference.getValue());
+        }
+
+        // 9F11, b
+        public byte[] getIssuerCodeTableIndex() {
+            return (issuerCodeTableIndex == null) ? null : issuerCodeTableIndex.getValue();
+        }
+
+        // 9F12, ans
+        public String getApplicationPreferredName() {
+            return (applicationPreferredName == null) ? null : Util.bytesToString(applicationPreferredName.getValue());
+        }
+
+        // BF0C, template
+        public FciIssuerDiscretionaryData getFciIssuerDiscretionaryData() {
+            return fciIssuerDiscretionaryData;
+        }
+    }
+
+    /**
+     * Template BF0C, part of A5.
+     */
+    public static class FciIssuerDiscretionaryData {
+        private final BerTlv tlv;
+        private BerTlv logEntry;
+
+        private FciIssuerDiscretionaryData(BerTlv tlv) {
+            this.tlv = tlv;
+        }
+
+        /**
+         * Bind template to parsed object.
+         * 
+         * @param  tlv parsed object, may be null
+         * @return     template or null if tlv is null or has other tag
+         */
+        public static FciIssuerDiscretionaryData from(BerTlv tlv) {
+            if (tlv == null || !tlv.tagEquals(0xBF0C)) {
+                return null;
+            }
+            var res = new FciIssuerDiscretionaryData(tlv);
+            int count = tlv.getPartsCount();
+            for (int i=0; i<count; i++) {
+                var part = tlv.getPartAt(i);
+                switch (part.getPackedTag()) {
+                case 0x9F4D:
+                    if (res.logEntry == null) {
+                        res.logEntry = part;
+                    }
+                    break;
+                }
+            }
+            return res;
+        }
+
+        public BerTlv getTlv() {
+            return tlv;
+        }
+
+        // 9F4D, b
+        public byte[] getLogEntry() {
+            return (logEntry == null) ? null : logEntry.getValue();
+        }
+    }
+
+    /**
+     * Template 77.
+     */
+    public static class ResponseMessageTemplateFormat2 {
+        private final BerTlv tlv;
+        private BerTlv applicationInterchangeProfile;
+        private BerTlv applicationFileLocator;
+        private BerTlv applicationTransactionCounter;
+        private BerTlv applicationCryptogram;
+        private BerTlv issuerApplicationData;
+
+        private ResponseMessageTemplateFormat2(BerTlv tlv) {
+            this.tlv = tlv;
+        }
+
+        /**
+         * Bind template to parsed object.
+         * 
+         * @param  tlv parsed object, may be null
+         * @return     template or null if tlv is null or has other tag
+         */
+        public static ResponseMessageTemplateFormat2 from(BerTlv tlv) {
+            if (tlv == null || !tlv.tagEquals(0x77)) {
+                return null;
+            }
+            var res = new ResponseMessageTemplateFormat2(tlv);
+            int count = tlv.getPartsCount();
+            for (int i=0; i<count; i++) {
+                var part = tlv.getPartAt(i);
+                switch (part.getPackedTag()) {
+                case 0x82:
+                    if (res.applicationInterchangeProfile == null) {
+                        res.applicationInterchangeProfile = part;
+                    }
+                    break;
+                case 0x94:
+                    if (res.applicationFileLocator == null) {
+                        res.applicationFileLocator = part;
+                    }
+                    break;
+                case 0x9F36:
+                    if (res.applicationTransactionCounter == null) {
+                        res.applicationTransactionCounter = part;
+                    }
+                    break;
+                case 0x9F26:
+                    if (res.applicationCryptogram == null) {
+                        res.applicationCryptogram = part;
+                    }
+                    break;
+                case 0x9F10:
+                    if (res.issuerApplicationData == null) {
+                        res.issuerApplicationData = part;
+                    }
+                    break;
+                }
+            }
+            return res;
+        }
+
+        public BerTlv getTlv() {
+            return tlv;
+        }
+
+        // 82, b
+        public byte[] getApplicationInterchangeProfile() {
+            return (applicationInterchangeProfile == null) ? null : applicationInterchangeProfile.getValue();
+        }
+
+        // 94, b
+        public byte[] getApplicationFileLocator() {
+            return (applicationFileLocator == null) ? null : applicationFileLocator.getValue();
+        }
+
+        // 9F36, b
+        public byte[] getApplicationTransactionCounter() {
+            return (applicationTransactionCounter == null) ? null : applicationTransactionCounter.getValue();
+        }
+
+        // 9F26, b
+        public byte[] getApplicationCryptogram() {
+            return (applicationCryptogram == null) ? null : applicationCryptogram.getValue();
+        }
+
+        // 9F10, b
+        public byte[] getIssuerApplicationData() {
+            return (issuerApplicationData == null) ? null : issuerApplicationData.getValue();
+        }
+    }
+
+    /**
+     * Template 70.
+     */
+    public static class RecordTemplate {
+        private final BerTlv tlv;
+        private ArrayList<ApplicationTemplate> applicationTemplate;
+        private BerTlv track2EquivalentData;
+        private BerTlv pan;
+        private BerTlv cardholderName;
+        private BerTlv applicationExpirationDate;
+        private BerTlv applicationEffectiveDate;
+        private BerTlv issuerCountryCode;
+        private BerTlv panSequenceNumber;
+        private BerTlv cdol1;
+        private BerTlv cdol2;
+        private BerTlv cvmList;
+        private BerTlv applicationUsageControl;
+        private BerTlv applicationVersionNumber;
+        private BerTlv applicationCurrencyCode;
+        private BerTlv applicationCurrencyExponent;
+
+        private RecordTemplate(BerTlv tlv) {
+            this.tlv = tlv;
+        }
+
+        /**
+         * Bind template to parsed object.
+         * 
+         * @param  tlv parsed object, may be null
+         * @return     template or null if tlv is null or has other tag
+         */
+        public static RecordTemplate from(BerTlv tlv) {
+            if (tlv == null || !tlv.tagEquals(0x70)) {
+                return null;
+            }
+            var res = new RecordTemplate(tlv);
+            int count = tlv.getPartsCount();
+            for (int i=0; i<count; i++) {
+                var part = tlv.getPartAt(i);
+                switch (part.getPackedTag()) {
+                case 0x61:
+                    if (res.applicationTemplate == null) {
+                        res.applicationTemplate = new ArrayList<ApplicationTemplate>();
+                    }
+                    res.applicationTemplate.add(ApplicationTemplate.from(part));
+                    break;
+                case 0x57:
+                    if (res.track2EquivalentData == null) {
+                        res.track2EquivalentData = part;
+                    }
+                    break;
+                case 0x5A:
+                    if (res.pan == null) {
+                        res.pan = part;
+                    }
+                    break;
+                case 0x5F20:
+                    if (res.cardholderName == null) {
+                        res.cardholderName = part;
+                    }
+                    break;
+                case 0x5F24:
+                    if (res.applicationExpirationDate == null) {
+                        res.applicationExpirationDate = part;
+                    }
+                    break;
+                case 0x5F25:
+                    if (res.applicationEffectiveDate == null) {
+                        res.applicationEffectiveDate = part;
+                    }
+                    break;
+                case 0x5F28:
+                    if (res.issuerCountryCode == null) {
+                        res.issuerCountryCode = part;
+                    }
+                    break;
+                case 0x5F34:
+                    if (res.panSequenceNumber == null) {
+                        res.panSequenceNumber = part;
+                    }
+                    break;
+                case 0x8C:
+                    if (res.cdol1 == null) {
+                        res.cdol1 = part;
+                    }
+                    break;
+                case 0x8D:
+                    if (res.cdol2 == null) {
+                        res.cdol2 = part;
+                    }
+                    break;
+                case 0x8E:
+                    if (res.cvmList == null) {
+                        res.cvmList = part;
+                    }
+                    break;
+                case 0x9F07:
+                    if (res.applicationUsageControl == null) {
+                        res.applicationUsageControl = part;
+                    }
+                    break;
+                case 0x9F08:
+                    if (res.applicationVersionNumber == null) {
+                        res.applicationVersionNumber = part;
+                    }
+                    break;
+                case 0x9F42:
+                    if (res.applicationCurrencyCode == null) {
+                        res.applicationCurrencyCode = part;
+                    }
+                    break;
+                case 0x9F44:
+                    if (res.applicationCurrencyExponent == null) {
+                        res.applicationCurrencyExponent = part;
+                    }
+                    break;
+                }
+            }
+            return res;
+        }
+
+        public BerTlv getTlv() {
+            return tlv;
+        }
+
+        // 61, template, repeated
+        public List<ApplicationTemplate> getApplicationTemplateList() {
+            var res = new ArrayList<ApplicationTemplate>();
+            if (applicationTemplate != null) {
+                for (var x : applicationTemplate) {
+                    res.add(x);
+                }
+            }
+            return res;
+        }
+
+        // 57, b
+        public byte[] getTrack2EquivalentData() {
+            return (track2EquivalentData == null) ? null : track2EquivalentData.getValue();
+        }
+
+        // 5A, cn
+        public String getPan() {
+            return (pan == null) ? null : digits(pan, true);
+        }
+
+        // 5F20, ans
+        public String getCardholderName() {
+            return (cardholderName == null) ? null : Util.bytesToString(cardholderName.getValue());
+        }
+
+        // 5F24, date
+        public String getApplicationExpirationDate() {
+            return (applicationExpirationDate == null) ? null : Util.bytesToDate(applicationExpirationDate.getValue());
+        }
+
+        // 5F25, date
+        public String getApplicationEffectiveDate() {
+            return (applicationEffectiveDate == null) ? null : Util.bytesToDate(applicationEffectiveDate.getValue());
+        }
+
+        // 5F28, n
+        public String getIssuerCountryCode() {
+            return (issuerCountryCode == null) ? null : digits(issuerCountryCode, false);
+        }
+
+        // 5F34, n
+        public String getPanSequenceNumber() {
+            return (panSequenceNumber == null) ? null : digits(panSequenceNumber, false);
+        }
+
+        // 8C, b
+        public byte[] getCdol1() {
+            return (cdol1 == null) ? null : cdol1.getValue();
+        }
+
+        // 8D, b
+        public byte[] getCdol2() {
+            return (cdol2 == null) ? null : cdol2.getValue();
+        }
+
+        // 8E, b
+        public byte[] getCvmList() {
+            return (cvmList == null) ? null : cvmList.getValue();
+        }
+
+        // 9F07, b
+        public byte[] getApplicationUsageControl() {
+            return (applicationUsageControl == null) ? null : applicationUsageControl.getValue();
+        }
+
+        // 9F08, b
+        public byte[] getApplicationVersionNumber() {
+            return (applicationVersionNumber == null) ? null : applicationVersionNumber.getValue();
+        }
+
+        // 9F42, n
+        public String getApplicationCurrencyCode() {
+            return (applicationCurrencyCode == null) ? null : digits(applicationCurrencyCode, false);
+        }
+
+        // 9F44, n
+        public String getApplicationCurrencyExponent() {
+            return (applicationCurrencyExponent == null) ? null : digits(applicationCurrencyExponent, false);
+        }
+    }
+
+    /**
+     * Template 61, part of 70.
+     */
+    public static class ApplicationTemplate {
+        private final BerTlv tlv;
+        private BerTlv applicationIdentifier;
+        private BerTlv applicationLabel;
+        private BerTlv applicationPriorityIndicator;
+
+        private ApplicationTemplate(BerTlv tlv) {
+            this.tlv = tlv;
+        }
+
+        /**
+         * Bind template to parsed object.
+         * 
+         * @param  tlv parsed object, may be null
+         * @return     template or null if tlv is null or has other tag
+         */
+        public static ApplicationTemplate from(BerTlv tlv) {
+            if (tlv == null || !tlv.tagEquals(0x61)) {
+                return null;
+            }
+            var res = new ApplicationTemplate(tlv);
+            int count = tlv.getPartsCount();
+            for (int i=0; i<count; i++) {
+                var part = tlv.getPartAt(i);
+                switch (part.getPackedTag()) {
+                case 0x4F:
+                    if (res.applicationIdentifier == null) {
+                        res.applicationIdentifier = part;
+                    }
+                    break;
+                case 0x50:
+                    if (res.applicationLabel == null) {
+                        res.applicationLabel = part;
+                    }
+                    break;
+                case 0x87:
+                    if (res.applicationPriorityIndicator == null) {
+                        res.applicationPriorityIndicator = part;
+                    }
+                    break;
+                }
+            }
+            return res;
+        }
+
+        public BerTlv getTlv() {
+            return tlv;
+        }
+
+        // 4F, b
+        public byte[] getApplicationIdentifier() {
+            return (applicationIdentifier == null) ? null : applicationIdentifier.getValue();
+        }
+
+        // 50, ans
+        public String getApplicationLabel() {
+            return (applicationLabel == null) ? null : Util.bytesToString(applicationLabel.getValue());
+        }
+
+        // 87, b
+        public byte[] getApplicationPriorityIndicator() {
+            return (applicationPriorityIndicator == null) ? null : applicationPriorityIndicator.getValue();
+        }
+    }
+
+    // BCD digits of the value, padded values end with F nibbles
+    private static String digits(BerTlv tlv, boolean padded) {
+        var value = tlv.getValueView();
+        var res = new char[value.remaining() * 2];
+        int n = 0;
+        for (; n<res.length; n++) {
+            // high nibble first
+            int d = (value.get(n >> 1) >> (((n & 1) == 0) ? 4 : 0)) & 0xF;
+            if (padded && d == 0xF) {
+                break;
+            }
+            res[n] = "0123456789ABCDEF".charAt(d);
+        }
+        return new String(res, 0, n);
+    }
+}
@@ -46,14 +46,14 @@ public class Example {
 
             System.out.printf("Using terminal %s%n", terminal.toString());
 
-            // wait for card, indefinitely until card appears
-            terminal.waitForCardPresent(0);
+            // wait for card, indefinitely until card appears (card operations are JFR events, see PcscEvents)
+            PcscEvents.waitForCardPresent(terminal, 0);
 
             // establish a connection to the card using autoselected protocol
-            var card = terminal.connect("*");
+            var card = PcscEvents.connect(terminal, "*");
 
-            // obtain logical channel
-            var channel = card.getBasicChannel();
+            // obtain logical channel, 61xx and 6Cxx status words are resolved by the channel
+            var channel = new GetResponseChannel(card.getBasicChannel(), terminal.getName());
 
             ResponseAPDU answer;
             int sw;
@@ -101,17 +101,17 @@ public class Example {
             var data = answer.getData();
             byte[] pdolData = null;
             try {
-                var fciTlv = BerTlv.parseBytes(data);
-                var piTlv = fciTlv.getPart("A5");
-                var labelTlv = piTlv.getPart("50");
-                System.out.printf("Application name: %s%n", Util.bytesToString(labelTlv.getValue()));
-                var langTlv = piTlv.getPart("5F 2D");
-                if (langTlv != null) {
-                    System.out.printf("Language preference: %s%n", Util.bytesToString(langTlv.getValue()));
-                }
-                var pdolTlv = piTlv.getPart("9F 38");
-                if (pdolTlv != null) {
-                    pdolData = pdolTlv.getValue();
+                // template binds every object, so the tree is parsed eagerly
+                var fci = EmvTemplates.FciTemplate.from(PcscEvents.parseBytes(data));
+                var pi = (fci == null) ? null : fci.getFciProprietaryTemplate();
+                if (pi != null) {
+                    if (pi.getApplicationLabel() != null) {
+                        System.out.printf("Application name: %s%n", pi.getApplicationLabel());
+                    }
+                    if (pi.getLanguagePreference() != null) {
+                        System.out.printf("Language preference: %s%n", pi.getLanguagePreference());
+                    }
+                    pdolData = pi.getPdol();
                 }
 //            } catch (BerTlv.ConstraintException e) {
 //                card.disconnect(false);
@@ -123,12 +123,11 @@ public class Example {
             
             // Start financial transaction
             // prepare dolData
-            var dolData = Util.toByteArray("83 00");
+            int totalLength = 0;
             if (pdolData != null) {
                 // parse pdol data and extract total fields length
                 // ignore tags
                 var lengthByte = false;
-                int totalLength = 0;
                 for (var b : pdolData) {
                     if (lengthByte) {
                         int x = b;
@@ -145,16 +144,17 @@ public class Example {
                         lengthByte = true;
                     }
                 }
-                var t = new byte[totalLength];
-                dolData[1] = (byte)totalLength;  // remember, dolData = "83 00"
-                dolData = Util.concatArrays(dolData, t);
             }
+            // command template "83" with zero-filled PDOL values
+            var dolTlv = new BerTlv(Util.toByteArray("83"), new byte[totalLength]);
+            int dolLength = dolTlv.getEncodedLength();
 
             // Send command "GET PROCESSING OPTIONS"
-            var gpoCommand = Util.toByteArray("80 A8 00 00 00");
-            gpoCommand[4] = (byte)dolData.length;
-            gpoCommand = Util.concatArrays(gpoCommand, dolData);
-            gpoCommand = Util.concatArrays(gpoCommand, Util.toByteArray("00"));
+            // encode DATA directly into the command, last byte is Le=00
+            //                                               CLA INS P1 P2 Lc
+            var gpoCommand = Arrays.copyOf(Util.toByteArray("80  A8  00 00 00"), 5 + dolLength + 1);
+            gpoCommand[4] = (byte)dolLength;
+            dolTlv.encode(gpoCommand, 5);
             answer = channel.transmit(new CommandAPDU(gpoCommand));
             if (answer.getSW() != 0x9000) {
                 card.disconnect(false);
@@ -165,11 +165,15 @@ public class Example {
             byte[] aipData = null;
             byte[] aflData = null;
             try {
-                var gpoTlv = BerTlv.parseBytes(data);
-                if (gpoTlv.tagEquals("77")) {
-                    aipData = gpoTlv.getPart("82").getValue();
-                    aflData = gpoTlv.getPart("94").getValue();
-                } else if (gpoTlv.tagEquals("80")) {
+                var gpoTlv = PcscEvents.parseBytes(data);
+                var format2 = EmvTemplates.ResponseMessageTemplateFormat2.from(gpoTlv);
+                if (format2 != null) {
+                    aipData = format2.getApplicationInterchangeProfile();
+                    aflData = format2.getApplicationFileLocator();
+                    if (aipData == null || aflData == null) {
+                        throw new Util.CardOperationFailedException("No AIP or AFL in response from GET PROCESSING OPTIONS command");
+                    }
+                } else if (gpoTlv.tagEquals(0x80)) {
                     var gpoData = gpoTlv.getValue();
                     aipData = Util.copyArray(gpoData, 0, 2);
                     aflData = Util.copyArray(gpoData, 2, gpoData.length-2);
@@ -190,8 +194,9 @@ public class Example {
             System.out.printf("  Issuer authentication is supported: %s%n", (aipData[0] & 0x4)==0 ? "no" : "yes");
             System.out.printf("  CDA supported: %s%n", (aipData[0] & 0x1)==0 ? "no" : "yes");
 
-            // now read AFL points to
+            // now read AFL points to, collect all objects of record templates "70"
             var readObjects = new ArrayList<BerTlv>(10);
+            var recordObjects = TlvPath.compile("70/*");
             int aflPartsCount = aflData.length / 4;
             for (int i=0; i<aflPartsCount; i++) {
                 int startByte = i*4;
@@ -204,18 +209,11 @@ public class Example {
                 //                                           CLA INS P1 P2 Le
                 var readRecordCommand = Util.toByteArray("00  B2  00 00 00");
                 for (int j=firstSfiRec; j<=lastSfiRec; j++) {
-                    // set Le=0
-                    readRecordCommand[4] = 0;
                     // set P1
                     readRecordCommand[2] = (byte)j;
                     var p2 = (byte)((sfi << 3) | 4);
                     readRecordCommand[3] = p2;
                     answer = channel.transmit(new CommandAPDU(readRecordCommand));
-                    if (answer.getSW1() == 0x6C) {
-                        // set new Le and repeat
-                        readRecordCommand[4] = (byte)answer.getSW2();
-                        answer = channel.transmit(new CommandAPDU(readRecordCommand));
-                    }
                     if (answer.getSW() != 0x9000) {
                         // real terminal must terminate transaction if any read fails
                         System.out.printf("Failed to read record %d from SFI=%d", j, sfi);
@@ -223,14 +221,7 @@ public class Example {
                     }
                     var recordData = answer.getData();
                     try {
-                        var recordTlv = BerTlv.parseBytes(recordData);
-                        if (!recordTlv.tagEquals("70")) {
-                            continue;
-                        }
-						for (BerTlv p : recordTlv.getParts()) {
-							readObjects.add(p);
-						}
-
+                        recordObjects.forEach(PcscEvents.parseBytes(recordData), readObjects::add);
                     } catch (BerTlv.ParsingException e) {
                         System.out.printf("Failed to parse data: %s%n%s%n", e, Util.hexify(recordData));
                     }
@@ -245,6 +236,13 @@ public class Example {
                 System.out.printf("  %s%n", mappedValues.get(tagString));
             }
 
+            System.out.printf("> %d commands, %d extra exchanges for 61xx/6Cxx%n", channel.getCommands(), channel.getExtraExchanges());
+            for (int ins=0; ins<256; ins++) {
+                if (channel.getExtraExchanges(ins) > 0) {
+                    System.out.printf("  INS %02X: %d%n", ins, channel.getExtraExchanges(ins));
+                }
+            }
+
             card.disconnect(false);
 
         } catch (Util.CardOperationFailedException e) {
@@ -261,22 +259,21 @@ public class Example {
         throws Util.CardOperationFailedException, CardException
     {
         try {
-            var root = BerTlv.parseBytes(data);
+            var fci = EmvTemplates.FciTemplate.from(PcscEvents.parseBytes(data));
 
             // pi means "proprietary information"
-            var piTlv = root.getPart("A5");
-            if (piTlv == null) {
+            var pi = (fci == null) ? null : fci.getFciProprietaryTemplate();
+            if (pi == null) {
                 throw new Util.CardOperationFailedException("Cannot find EMV block in PSE FCI");
             }
 
-            // piTlv now contains data specified in EMV_v4.3 book 1 spec,
+            // pi now contains data specified in EMV_v4.3 book 1 spec,
             // section "11.3.4 Data Field Returned in the Response Message"
-            var sfiTlv = piTlv.getPart("88");
-            if (sfiTlv == null) {
+            var defSfiData = pi.getSfi();
+            if (defSfiData == null) {
                 throw new Util.CardOperationFailedException("Cannot find SFI block in PSE FCI");
             }
 
-            var defSfiData = sfiTlv.getValue();
             int sfi = defSfiData[0];
 
             ResponseAPDU answer;
@@ -291,31 +288,25 @@ public class Example {
             var aids = new ArrayList<byte[]>();
 
             byte recordNumber = 1;
-            byte expectedLength = 0;
             while (true) {
                 readRecordCommand[2] = recordNumber;
-                readRecordCommand[4] = expectedLength;
                 answer = channel.transmit(new CommandAPDU(readRecordCommand));
-                if (answer.getSW1() == 0x6C) {
-                    expectedLength = (byte)answer.getSW2();
-                    continue;
-                }
                 if (answer.getSW() != 0x9000) {
                     break;
                 }
 
                 var record = answer.getData();
                 if (record.length != 0) {
-                    BerTlv psd = BerTlv.parseBytes(record);
+                    var psd = EmvTemplates.RecordTemplate.from(PcscEvents.parseBytes(record));
                     // psd must have tag "70"
                     // see EMV_v4.3 book 1, section "12.2.3 Coding of a Payment System Directory"
-                    if (!psd.tagEquals("70")) {
+                    if (psd == null) {
                         throw new Util.CardOperationFailedException("Cannot find PSD record");
                     }
-                    for (BerTlv p : psd.getParts()) {
-                        if (p.tagEquals("61")) {
-                            BerTlv aidTlv = p.getPart("4F");
-                            aids.add(aidTlv.getValue());
+                    // collect AIDs of all application templates "61"
+                    for (var app : psd.getApplicationTemplateList()) {
+                        if (app.getApplicationIdentifier() != null) {
+                            aids.add(app.getApplicationIdentifier());
                         }
                     }
                 }
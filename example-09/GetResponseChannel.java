@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+
+/**
+ * CardChannel decorator resolving status words that need another exchange,
+ * see ISO/IEC 7816-3 and EMV Book 1, section "9.3.1.3 Transportation of
+ * C-APDUs and R-APDUs":
+ *
+ *     61xx  more data available: GET RESPONSE with Le=xx is sent and its
+ *           data is appended to the response
+ *     6Cxx  wrong Le: the command is sent again with Le=xx
+ *
+ * Callers get one assembled response with the final SW. Data of all parts is
+ * collected into one reusable buffer of the channel.
+ *
+ * Extra round-trips are counted per command INS, so it's visible which
+ * commands cost additional exchanges on a card. The JDK PC/SC provider
+ * resolves these status words itself unless started with
+ * -Dsun.security.smartcardio.t0GetResponse=false and
+ * -Dsun.security.smartcardio.t1GetResponse=false, in that case only round-trips
+ * of other providers are seen here.
+ *
+ * Not thread safe.
+ */
+class GetResponseChannel extends CardChannel {
+    // GET RESPONSE chain can't be longer, protects from cards repeating 61xx forever
+    public static final int MAX_GET_RESPONSES = 256;
+
+    // single response: up to 256 (short) or 65536 (extended) data bytes and SW1 SW2
+    private static final int SHORT_RESPONSE_LENGTH = 258;
+    private static final int EXTENDED_RESPONSE_LENGTH = 65538;
+
+    private final CardChannel channel;
+    // reader name of JFR events
+    private final String reader;
+
+    // command being sent: original one, its copy with corrected Le or GET RESPONSE
+    private byte[] command = new byte[261];
+    private ByteBuffer commandView = ByteBuffer.wrap(command);
+    private int commandLength;
+    // response of a single exchange, grows for extended length commands
+    private ByteBuffer part = ByteBuffer.allocate(SHORT_RESPONSE_LENGTH);
+    // assembled response: data of all parts and the final SW
+    private byte[] assembled = new byte[1024];
+    private int assembledLength;
+
+    private long commands = 0;
+    private long extraExchanges = 0;
+    private final long[] extraExchangesByIns = new long[256];
+
+
+    public GetResponseChannel(CardChannel channel) {
+        this(channel, null);
+    }
+
+    /**
+     * @param channel channel to decorate
+     * @param reader  reader name reported in pcsc.ApduExchange JFR events of
+     *                every exchange, including GET RESPONSE and repeated commands
+     */
+    public GetResponseChannel(CardChannel channel, String reader) {
+        this.channel = channel;
+        this.reader = reader;
+    }
+
+
+    @Override
+    public Card getCard() {
+        return channel.getCard();
+    }
+
+    @Override
+    public int getChannelNumber() {
+        return channel.getChannelNumber();
+    }
+
+    @Override
+    public ResponseAPDU transmit(CommandAPDU command)
+        throws CardException
+    {
+        var bytes = command.getBytes();
+        exchange(bytes, 0, bytes.length);
+        return new ResponseAPDU(Arrays.copyOf(assembled, assembledLength));
+    }
+
+    @Override
+    public int transmit(ByteBuffer command, ByteBuffer response)
+        throws CardException
+    {
+        if (command == response) {
+            throw new IllegalArgumentException("command and response must not be the same object");
+        }
+        int length = command.remaining();
+        ensureCommandCapacity(length);
+        command.get(this.command, 0, length);
+        exchange(this.command, 0, length);
+        if (response.remaining() < assembledLength) {
+            throw new IllegalArgumentException(String.format("Response of %d bytes doesn't fit into %d bytes", assembledLength, response.remaining()));
+        }
+        response.put(assembled, 0, assembledLength);
+        return assembledLength;
+    }
+
+    @Override
+    public void close()
+        throws CardException
+    {
+        channel.close();
+    }
+
+    /**
+     * Returns number of transmitted commands.
+     */
+    public long getCommands() {
+        return commands;
+    }
+
+    /**
+     * Returns number of exchanges beyond one per command: GET RESPONSE
+     * commands and commands repeated with corrected Le.
+     */
+    public long getExtraExchanges() {
+        return extraExchanges;
+    }
+
+    /**
+     * Returns number of extra exchanges caused by commands with instruction byte "ins".
+     */
+    public long getExtraExchanges(int ins) {
+        return extraExchangesByIns[ins & 0xFF];
+    }
+
+    /**
+     * Reset counters.
+     */
+    public void resetCounters() {
+        commands = 0;
+        extraExchanges = 0;
+        Arrays.fill(extraExchangesByIns, 0);
+    }
+
+
+    // send command bytes[offset..offset+length) and assemble response into "assembled"
+    private void exchange(byte[] bytes, int offset, int length)
+        throws CardException
+    {
+        if (length < 4) {
+            throw new IllegalArgumentException("APDU must be at least 4 bytes long");
+        }
+        if (bytes != command) {
+            ensureCommandCapacity(length);
+            System.arraycopy(bytes, offset, command, 0, length);
+        }
+        commandLength = length;
+        int ins = command[1] & 0xFF;
+        int cla = command[0] & 0xFF;
+        commands++;
+
+        assembledLength = 0;
+        boolean leCorrected = false;
+        int getResponses = 0;
+        while (true) {
+            ensurePartCapacity();
+            part.clear();
+            commandView.clear().limit(commandLength);
+            int n = transmitPart();
+            if (n < 2) {
+                throw new CardException("Response APDU must be at least 2 bytes long");
+            }
+            int sw1 = part.get(n - 2) & 0xFF;
+            int sw2 = part.get(n - 1) & 0xFF;
+
+            if (sw1 == 0x6C && !leCorrected && setLe(sw2)) {
+                // the same command with Le from SW2, once
+                leCorrected = true;
+                countExtraExchange(ins);
+                continue;
+            }
+
+            append(n - 2);
+            if (sw1 == 0x61 && getResponses < MAX_GET_RESPONSES) {
+                // GET RESPONSE on the same logical channel, Le from SW2
+                command[0] = (byte)getResponseCla(cla);
+                command[1] = (byte)0xC0;
+                command[2] = 0;
+                command[3] = 0;
+                command[4] = (byte)sw2;
+                commandLength = 5;
+                leCorrected = false;
+                getResponses++;
+                countExtraExchange(ins);
+                continue;
+            }
+
+            // final SW
+            ensureAssembledCapacity(2);
+            assembled[assembledLength++] = (byte)sw1;
+            assembled[assembledLength++] = (byte)sw2;
+            return;
+        }
+    }
+
+    // send "command" and receive response into "part", recorded as JFR event
+    private int transmitPart()
+        throws CardException
+    {
+        var event = new PcscEvents.ApduExchange();
+        event.begin();
+        int n = 0;
+        try {
+            n = channel.transmit(commandView, part);
+        } finally {
+            // failed transmits are recorded with sw 0
+            if (event.shouldCommit()) {
+                event.reader = reader;
+                event.ins = command[1] & 0xFF;
+                event.sw = (n >= 2) ? ((part.get(n - 2) & 0xFF) << 8) | (part.get(n - 1) & 0xFF) : 0;
+                event.commandLength = commandLength;
+                event.responseLength = n;
+                event.commit();
+            }
+        }
+        return n;
+    }
+
+    // set Le of short command, false if command is extended
+    private boolean setLe(int le) {
+        if (commandLength == 4) {
+            command[commandLength++] = (byte)le;
+            return true;
+        }
+        if (commandLength == 5) {
+            command[4] = (byte)le;
+            return true;
+        }
+        int lc = command[4] & 0xFF;
+        if (lc == 0) {
+            // extended length
+            return false;
+        }
+        if (commandLength == 5 + lc) {
+            command[commandLength++] = (byte)le;
+        } else {
+            command[commandLength - 1] = (byte)le;
+        }
+        return true;
+    }
+
+    // CLA of GET RESPONSE keeps logical channel of the command: channels 0-3
+    // in bits 1-2 of first interindustry CLA, channels 4-19 in bits 1-4 of
+    // further interindustry CLA (40-7F)
+    private static int getResponseCla(int cla) {
+        if ((cla & 0xC0) == 0x40) {
+            return 0x40 | (cla & 0x0F);
+        }
+        return cla & 0x03;
+    }
+
+    // append data of the last part
+    private void append(int length) {
+        ensureAssembledCapacity(length);
+        part.get(0, assembled, assembledLength, length);
+        assembledLength += length;
+    }
+
+    private void countExtraExchange(int ins) {
+        extraExchanges++;
+        extraExchangesByIns[ins]++;
+    }
+
+    private void ensureCommandCapacity(int length) {
+        // one more byte for Le appended to commands without it
+        if (command.length < length + 1) {
+            command = new byte[length + 1];
+            commandView = ByteBuffer.wrap(command);
+        }
+    }
+
+    // response to extended length command (Lc or Le starts with 00) may be
+    // longer than short one
+    private void ensurePartCapacity() {
+        boolean extended = commandLength > 5 && command[4] == 0;
+        int capacity = extended ? EXTENDED_RESPONSE_LENGTH : SHORT_RESPONSE_LENGTH;
+        if (part.capacity() < capacity) {
+            part = ByteBuffer.allocate(capacity);
+        }
+    }
+
+    private void ensureAssembledCapacity(int length) {
+        if (assembled.length - assembledLength < length) {
+            assembled = Arrays.copyOf(assembled, Math.max(assembled.length * 2, assembledLength + length));
+        }
+    }
+}
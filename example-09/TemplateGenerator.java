@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+
+/**
+ * Generates typed accessors of EMV templates from tag schema, run with
+ * "make EmvTemplates.java" (see emv-templates.schema for schema format).
+ *
+ * Every template becomes a class with static from(BerTlv) method that binds
+ * it to a parsed object in a single pass over its parts, using switch over
+ * packed tags, and getters that convert values according to their formats.
+ */
+class TemplateGenerator {
+    private static final String[] FORMATS = {"template", "b", "an", "ans", "n", "cn", "date"};
+
+    static class SchemaException extends Exception {
+        public SchemaException(int line, String message) {
+            super(String.format("line %d: %s", line, message));
+        }
+    }
+
+    // one schema line
+    private static class Entry {
+        String tagHex;
+        int tag;
+        String format;
+        String name;
+        boolean repeated;
+        Entry parent;
+        final List<Entry> parts = new ArrayList<Entry>();
+
+        boolean isTemplate() {
+            return format.equals("template");
+        }
+
+        // name of field holding bound part
+        String fieldName() {
+            return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+        }
+    }
+
+
+    public static void main(String[] args)
+        throws IOException
+    {
+        if (args.length != 2) {
+            System.err.println("Usage: java TemplateGenerator <schema file> <output .java file>");
+            System.exit(2);
+        }
+        var schema = Path.of(args[0]);
+        var output = Path.of(args[1]);
+        var className = output.getFileName().toString().replaceFirst("\\.java$", "");
+
+        List<Entry> roots;
+        try {
+            roots = parseSchema(Files.readAllLines(schema));
+        } catch (SchemaException e) {
+            System.err.printf("%s: %s%n", schema, e.getMessage());
+            System.exit(1);
+            return;
+        }
+        Files.writeString(output, generate(className, schema.getFileName().toString(), roots));
+    }
+
+    /**
+     * Parse schema lines into trees of templates.
+     * 
+     * @param  lines            schema file lines
+     * @return                  root templates in declaration order
+     * @throws SchemaException  if schema is malformed
+     */
+    static List<Entry> parseSchema(List<String> lines)
+        throws SchemaException
+    {
+        var roots = new ArrayList<Entry>();
+        // last declared template with the tag, parts refer to it
+        var templates = new HashMap<String, Entry>();
+        var templateNames = new HashSet<String>();
+
+        for (int i=0; i<lines.size(); i++) {
+            int lineNumber = i + 1;
+            var line = lines.get(i).strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            var fields = line.split("\\s+");
+            if (fields.length < 4 || fields.length > 5 || (fields.length == 5 && !fields[4].equals("*"))) {
+                throw new SchemaException(lineNumber, "expected \"tag format parent name [*]\"");
+            }
+
+            var e = new Entry();
+            e.tagHex = fields[0].toUpperCase();
+            if (!e.tagHex.matches("([0-9A-F]{2}){1,4}")) {
+                throw new SchemaException(lineNumber, "invalid tag " + fields[0]);
+            }
+            e.tag = Integer.parseUnsignedInt(e.tagHex, 16);
+            e.format = fields[1];
+            if (!List.of(FORMATS).contains(e.format)) {
+                throw new SchemaException(lineNumber, "unknown format " + e.format);
+            }
+            boolean constructed = (Integer.parseInt(e.tagHex.substring(0, 2), 16) & 0x20) != 0;
+            if (e.isTemplate() != constructed) {
+                throw new SchemaException(lineNumber, String.format("tag %s is %s", e.tagHex, e.isTemplate() ? "primitive" : "constructed"));
+            }
+            e.name = fields[3];
+            if (!e.name.matches("[A-Z][A-Za-z0-9]*")) {
+                throw new SchemaException(lineNumber, "name must be a capitalized Java identifier: " + e.name);
+            }
+            e.repeated = fields.length == 5;
+
+            if (fields[2].equals("-")) {
+                if (!e.isTemplate()) {
+                    throw new SchemaException(lineNumber, "root object must be a template");
+                }
+                roots.add(e);
+            } else {
+                e.parent = templates.get(fields[2].toUpperCase());
+                if (e.parent == null) {
+                    throw new SchemaException(lineNumber, "unknown parent template " + fields[2]);
+                }
+                for (var sibling : e.parent.parts) {
+                    if (sibling.tag == e.tag) {
+                        throw new SchemaException(lineNumber, String.format("tag %s is already declared in %s", e.tagHex, e.parent.tagHex));
+                    }
+                    if (sibling.name.equals(e.name)) {
+                        throw new SchemaException(lineNumber, String.format("name %s is already used in %s", e.name, e.parent.tagHex));
+                    }
+                }
+                e.parent.parts.add(e);
+            }
+
+            if (e.isTemplate()) {
+                if (!templateNames.add(e.name)) {
+                    throw new SchemaException(lineNumber, "duplicate template name " + e.name);
+                }
+                templates.put(e.tagHex, e);
+            }
+        }
+        return roots;
+    }
+
+    /**
+     * Generate source of class with nested class for every template.
+     */
+    static String generate(String className, String schemaName, List<Entry> roots) {
+        var out = new StringBuilder();
+        out.append("// Generated by TemplateGenerator from ").append(schemaName).append(", do not edit.\n");
+        out.append("\n");
+        out.append("import java.util.ArrayList;\n");
+        out.append("import java.util.List;\n");
+        out.append("\n\n");
+        out.append("/**\n");
+        out.append(" * Typed views of EMV templates, every template is bound to parsed object\n");
+        out.append(" * with from() in a single pass over its parts. Getters return null (or empty\n");
+        out.append(" * lists for repeated objects) if object is missing.\n");
+        out.append(" */\n");
+        out.append("class ").append(className).append(" {\n");
+        out.append("    private ").append(className).append("() {\n");
+        out.append("    }\n");
+
+        var templates = new ArrayList<Entry>();
+        for (var root : roots) {
+            collectTemplates(root, templates);
+        }
+        for (var t : templates) {
+            out.append("\n");
+            generateTemplate(out, t);
+        }
+
+        out.append("\n");
+        out.append("    // BCD digits of the value, padded values end with F nibbles\n");
+        out.append("    private static String digits(BerTlv tlv, boolean padded) {\n");
+        out.append("        var value = tlv.getValueView();\n");
+        out.append("        var res = new char[value.remaining() * 2];\n");
+        out.append("        int n = 0;\n");
+        out.append("        for (; n<res.length; n++) {\n");
+        out.append("            // high nibble first\n");
+        out.append("            int d = (value.get(n >> 1) >> (((n & 1) == 0) ? 4 : 0)) & 0xF;\n");
+        out.append("            if (padded && d == 0xF) {\n");
+        out.append("                break;\n");
+        out.append("            }\n");
+        out.append("            res[n] = \"0123456789ABCDEF\".charAt(d);\n");
+        out.append("        }\n");
+        out.append("        return new String(res, 0, n);\n");
+        out.append("    }\n");
+        out.append("}\n");
+        return out.toString();
+    }
+
+    private static void collectTemplates(Entry e, List<Entry> res) {
+        if (!e.isTemplate()) {
+            return;
+        }
+        res.add(e);
+        for (var p : e.parts) {
+            collectTemplates(p, res);
+        }
+    }
+
+    private static void generateTemplate(StringBuilder out, Entry t) {
+        var name = t.name;
+        out.append("    /**\n");
+        out.append("     * Template ").append(t.tagHex);
+        if (t.parent != null) {
+            out.append(", part of ").append(t.parent.tagHex);
+        }
+        out.append(".\n");
+        out.append("     */\n");
+        out.append("    public static class ").append(name).append(" {\n");
+        out.append("        private final BerTlv tlv;\n");
+        for (var p : t.parts) {
+            out.append("        private ").append(fieldType(p)).append(" ").append(p.fieldName()).append(";\n");
+        }
+        out.append("\n");
+        out.append("        private ").append(name).append("(BerTlv tlv) {\n");
+        out.append("            this.tlv = tlv;\n");
+        out.append("        }\n");
+        out.append("\n");
+        out.append("        /**\n");
+        out.append("         * Bind template to parsed object.\n");
+        out.append("         * \n");
+        out.append("         * @param  tlv parsed object, may be null\n");
+        out.append("         * @return     template or null if tlv is null or has other tag\n");
+        out.append("         */\n");
+        out.append("        public static ").append(name).append(" from(BerTlv tlv) {\n");
+        out.append("            if (tlv == null || !tlv.tagEquals(0x").append(t.tagHex).append(")) {\n");
+        out.append("                return null;\n");
+        out.append("            }\n");
+        out.append("            var res = new ").append(name).append("(tlv);\n");
+        out.append("            int count = tlv.getPartsCount();\n");
+        out.append("            for (int i=0; i<count; i++) {\n");
+        out.append("                var part = tlv.getPartAt(i);\n");
+        out.append("                switch (part.getPackedTag()) {\n");
+        for (var p : t.parts) {
+            var field = "res." + p.fieldName();
+            var bound = p.isTemplate() ? p.name + ".from(part)" : "part";
+            out.append("                case 0x").append(p.tagHex).append(":\n");
+            if (p.repeated) {
+                out.append("                    if (").append(field).append(" == null) {\n");
+                out.append("                        ").append(field).append(" = new ").append(fieldType(p)).append("();\n");
+                out.append("                    }\n");
+                out.append("                    ").append(field).append(".add(").append(bound).append(");\n");
+            } else {
+                out.append("                    if (").append(field).append(" == null) {\n");
+                out.append("                        ").append(field).append(" = ").append(bound).append(";\n");
+                out.append("                    }\n");
+            }
+            out.append("                    break;\n");
+        }
+        out.append("                }\n");
+        out.append("            }\n");
+        out.append("            return res;\n");
+        out.append("        }\n");
+        out.append("\n");
+        out.append("        public BerTlv getTlv() {\n");
+        out.append("            return tlv;\n");
+        out.append("        }\n");
+
+        for (var p : t.parts) {
+            var field = p.fieldName();
+            var type = valueType(p);
+            out.append("\n");
+            out.append("        // ").append(p.tagHex).append(", ").append(p.format).append(p.repeated ? ", repeated" : "").append("\n");
+            if (p.repeated) {
+                out.append("        public List<").append(type).append("> get").append(p.name).append("List() {\n");
+                out.append("            var res = new ArrayList<").append(type).append(">();\n");
+                out.append("            if (").append(field).append(" != null) {\n");
+                out.append("                for (var x : ").append(field).append(") {\n");
+                out.append("                    res.add(").append(convert(p, "x")).append(");\n");
+                out.append("                }\n");
+                out.append("            }\n");
+                out.append("            return res;\n");
+            } else {
+                out.append("        public ").append(type).append(" get").append(p.name).append("() {\n");
+                if (p.isTemplate()) {
+                    out.append("            return ").append(field).append(";\n");
+                } else {
+                    out.append("            return (").append(field).append(" == null) ? null : ").append(convert(p, field)).append(";\n");
+                }
+            }
+            out.append("        }\n");
+        }
+        out.append("    }\n");
+    }
+
+    // type of field holding bound part
+    private static String fieldType(Entry p) {
+        var type = p.isTemplate() ? p.name : "BerTlv";
+        return p.repeated ? "ArrayList<" + type + ">" : type;
+    }
+
+    // type returned by getter
+    private static String valueType(Entry p) {
+        switch (p.format) {
+        case "template":
+            return p.name;
+        case "b":
+            return "byte[]";
+        default:
+            return "String";
+        }
+    }
+
+    // expression converting bound part to getter value
+    private static String convert(Entry p, String expr) {
+        switch (p.format) {
+        case "template":
+            return expr;
+        case "b":
+            return expr + ".getValue()";
+        case "an":
+        case "ans":
+            return "Util.bytesToString(" + expr + ".getValue())";
+        case "n":
+            return "digits(" + expr + ", false)";
+        case "cn":
+            return "digits(" + expr + ", true)";
+        case "date":
+            return "Util.bytesToDate(" + expr + ".getValue())";
+        default:
+            throw new IllegalArgumentException(p.format);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+
+/**
+ * Compiled query over BerTlv tree.
+ *
+ * Expression is a list of steps separated by "/", every step is a hex tag
+ * (spaces are allowed) optionally followed by "*", or a single "*":
+ *
+ *     6F/A5/9F38             first 9F38 part of first A5 part of root object 6F
+ *     70/61{@literal *}/4F   4F parts of all 61 parts of root object 70
+ *     70/{@literal *}        all parts of root object 70
+ *
+ * First step matches the root object itself. Compiled paths are immutable,
+ * cached by expression and may be reused across threads and parsed trees.
+ */
+class TlvPath {
+    // step kinds
+    private static final int FIRST = 0;   // first part with the tag
+    private static final int ALL = 1;     // all parts with the tag
+    private static final int ANY = 2;     // all parts
+
+    // don't let dynamically built expressions to grow cache infinitely
+    private static final int CACHE_LIMIT = 256;
+    private static final ConcurrentHashMap<String, TlvPath> cache = new ConcurrentHashMap<String, TlvPath>();
+
+    private final String expression;
+    private final int[] tags;
+    private final int[] kinds;
+
+
+    private TlvPath(String expression, int[] tags, int[] kinds) {
+        this.expression = expression;
+        this.tags = tags;
+        this.kinds = kinds;
+    }
+
+
+    /**
+     * Compile expression or take already compiled path from cache.
+     * 
+     * @param  expression path expression, e.g. "6F/A5/9F38"
+     * @return            compiled path
+     * @throws IllegalArgumentException if expression is malformed
+     */
+    public static TlvPath compile(String expression) {
+        var path = cache.get(expression);
+        if (path == null) {
+            path = parse(expression);
+            if (cache.size() < CACHE_LIMIT) {
+                cache.putIfAbsent(expression, path);
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Find first matching object.
+     * 
+     * @param  root root object
+     * @return      matching object or null if there are no matches
+     */
+    public BerTlv find(BerTlv root) {
+        if (!matches(root, 0)) {
+            return null;
+        }
+        return findFrom(root, 1);
+    }
+
+    /**
+     * Call action for every matching object in document order.
+     * 
+     * @param  root   root object
+     * @param  action action to call
+     */
+    public void forEach(BerTlv root, Consumer<BerTlv> action) {
+        if (matches(root, 0)) {
+            forEachFrom(root, 1, action);
+        }
+    }
+
+    /**
+     * Find all matching objects.
+     * 
+     * @param  root root object
+     * @return      list of matching objects in document order
+     */
+    public List<BerTlv> findAll(BerTlv root) {
+        var res = new ArrayList<BerTlv>();
+        forEach(root, res::add);
+        return res;
+    }
+
+    public String toString() {
+        return expression;
+    }
+
+    // check that object matches tag of step
+    private boolean matches(BerTlv node, int step) {
+        return kinds[step] == ANY || node.tagEquals(tags[step]);
+    }
+
+    private BerTlv findFrom(BerTlv node, int step) {
+        if (step == tags.length) {
+            return node;
+        }
+        if (kinds[step] == FIRST) {
+            var part = node.getPart(tags[step]);
+            return (part == null) ? null : findFrom(part, step + 1);
+        }
+        int count = node.getPartsCount();
+        for (int i=0; i<count; i++) {
+            var part = node.getPartAt(i);
+            if (matches(part, step)) {
+                var res = findFrom(part, step + 1);
+                if (res != null) {
+                    return res;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void forEachFrom(BerTlv node, int step, Consumer<BerTlv> action) {
+        if (step == tags.length) {
+            action.accept(node);
+            return;
+        }
+        if (kinds[step] == FIRST) {
+            var part = node.getPart(tags[step]);
+            if (part != null) {
+                forEachFrom(part, step + 1, action);
+            }
+            return;
+        }
+        int count = node.getPartsCount();
+        for (int i=0; i<count; i++) {
+            var part = node.getPartAt(i);
+            if (matches(part, step)) {
+                forEachFrom(part, step + 1, action);
+            }
+        }
+    }
+
+    private static TlvPath parse(String expression) {
+        var steps = expression.split("/");
+        var tags = new int[steps.length];
+        var kinds = new int[steps.length];
+        for (int i=0; i<steps.length; i++) {
+            var step = steps[i].strip();
+            if (step.equals("*")) {
+                kinds[i] = ANY;
+                continue;
+            }
+            if (step.endsWith("*")) {
+                kinds[i] = ALL;
+                step = step.substring(0, step.length() - 1).strip();
+            } else {
+                kinds[i] = FIRST;
+            }
+            if (step.isEmpty() || !step.replace(" ", "").matches("([0-9A-Fa-f]{2}){1,4}")) {
+                throw new IllegalArgumentException(String.format("Incorrect step \"%s\" in TLV path \"%s\"", steps[i], expression));
+            }
+            tags[i] = BerTlv.tagFromHex(step);
+        }
+        return new TlvPath(expression, tags, kinds);
+    }
+}
@@ -25,9 +25,11 @@
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
-import static java.util.Arrays.copyOfRange;
+import java.util.Arrays;
 import static java.lang.Math.max;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
 import java.util.List;
 import java.util.HashMap;
 
@@ -40,35 +42,172 @@ class Util {
             super(message);
         }
     }
+
+    // two uppercase hex digits of every byte value: HEX_PAIRS[2*b], HEX_PAIRS[2*b+1]
+    private static final char[] HEX_PAIRS = new char[512];
+    static {
+        var digits = "0123456789ABCDEF";
+        for (int b=0; b<256; b++) {
+            HEX_PAIRS[2*b] = digits.charAt(b >> 4);
+            HEX_PAIRS[2*b+1] = digits.charAt(b & 0xF);
+        }
+    }
+
+    /**
+     * Returns bytes as uppercase hex digits separated by spaces, e.g. "9F 38 06".
+     */
     public static String hexify(byte[] bytes) {
-        var bytesStrings = new ArrayList<String>(bytes.length);
-        for (var b : bytes) {
-            bytesStrings.add(String.format("%02X", b));
+        return hexify(bytes, 0, bytes.length, " ");
+    }
+
+    /**
+     * Returns bytes as uppercase hex digits separated by "separator", e.g. "" or ":".
+     */
+    public static String hexify(byte[] bytes, String separator) {
+        return hexify(bytes, 0, bytes.length, separator);
+    }
+
+    /**
+     * Returns bytes[offset..offset+length) as uppercase hex digits separated by "separator".
+     */
+    public static String hexify(byte[] bytes, int offset, int length, String separator) {
+        var chars = new char[hexifiedLength(length, separator)];
+        hexify(bytes, offset, length, separator, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Returns number of chars hexify() produces for "length" bytes.
+     */
+    public static int hexifiedLength(int length, String separator) {
+        return (length == 0) ? 0 : length * 2 + (length - 1) * separator.length();
+    }
+
+    /**
+     * Write bytes[offset..offset+length) as hex into "dst" starting at "dstOffset",
+     * dst must have hexifiedLength(length, separator) chars available.
+     * 
+     * @return index next to the last written char
+     */
+    public static int hexify(byte[] bytes, int offset, int length, String separator, char[] dst, int dstOffset) {
+        int p = dstOffset;
+        int separatorLength = separator.length();
+        for (int i=0; i<length; i++) {
+            if (i > 0 && separatorLength > 0) {
+                if (separatorLength == 1) {
+                    dst[p] = separator.charAt(0);
+                } else {
+                    separator.getChars(0, separatorLength, dst, p);
+                }
+                p += separatorLength;
+            }
+            int b = (bytes[offset + i] & 0xFF) << 1;
+            dst[p] = HEX_PAIRS[b];
+            dst[p+1] = HEX_PAIRS[b+1];
+            p += 2;
+        }
+        return p;
+    }
+
+    /**
+     * Append bytes[offset..offset+length) as hex to "dst".
+     * 
+     * @return dst
+     */
+    public static StringBuilder hexify(byte[] bytes, int offset, int length, String separator, StringBuilder dst) {
+        var chunk = new char[hexifiedChunkLength(length, separator)];
+        for (int i=0; i<length; i+=HEXIFY_CHUNK) {
+            dst.append(chunk, 0, hexifyChunk(bytes, offset, length, separator, i, chunk));
+        }
+        return dst;
+    }
+
+    /**
+     * Append bytes[offset..offset+length) as hex to "dst", e.g. Writer of a log.
+     * 
+     * @return dst
+     */
+    public static Appendable hexify(byte[] bytes, int offset, int length, String separator, Appendable dst)
+        throws IOException
+    {
+        var chunk = new char[hexifiedChunkLength(length, separator)];
+        for (int i=0; i<length; i+=HEXIFY_CHUNK) {
+            int n = hexifyChunk(bytes, offset, length, separator, i, chunk);
+            if (dst instanceof Writer) {
+                ((Writer)dst).write(chunk, 0, n);
+            } else {
+                dst.append(CharBuffer.wrap(chunk, 0, n));
+            }
+        }
+        return dst;
+    }
+
+    // StringBuilder and Appendable sinks get chars of this number of bytes at once
+    private static final int HEXIFY_CHUNK = 64;
+
+    private static int hexifiedChunkLength(int length, String separator) {
+        return hexifiedLength(Math.min(length, HEXIFY_CHUNK), separator) + separator.length();
+    }
+
+    // write chars of bytes [i, i+HEXIFY_CHUNK) of bytes[offset..offset+length) into chunk,
+    // preceded by separator unless it's the first chunk; returns number of chars
+    private static int hexifyChunk(byte[] bytes, int offset, int length, String separator, int i, char[] chunk) {
+        int p = 0;
+        if (i > 0) {
+            separator.getChars(0, separator.length(), chunk, 0);
+            p = separator.length();
+        }
+        return hexify(bytes, offset + i, Math.min(HEXIFY_CHUNK, length - i), separator, chunk, p);
+    }
+
+    // value of every ASCII hex digit, -1 for other chars
+    private static final byte[] HEX_VALUES = new byte[128];
+    static {
+        Arrays.fill(HEX_VALUES, (byte)-1);
+        for (int i=0; i<16; i++) {
+            HEX_VALUES["0123456789abcdef".charAt(i)] = (byte)i;
+            HEX_VALUES["0123456789ABCDEF".charAt(i)] = (byte)i;
         }
-        return String.join(" ", bytesStrings);
     }
 
+    /**
+     * Parse hex string like "00 A4 04 00", bytes may be separated by spaces.
+     * 
+     * @throws IllegalArgumentException if input has non-hex char or odd number of digits
+     */
     public static byte[] toByteArray(String s) {
-        var len = s.length();
-        var buf = new byte[len/2];
+        int len = s.length();
+        int digits = 0;
+        for (int i=0; i<len; i++) {
+            if (s.charAt(i) != ' ') {
+                digits++;
+            }
+        }
+        var buf = new byte[digits / 2];
         int bufLen = 0;
         int i = 0;
-        
+
         while (i < len) {
             var c1 = s.charAt(i);
-            i++;
             if (c1 == ' ') {
+                i++;
                 continue;
             }
-            var c2 = s.charAt(i);
-            i++;
-
-            byte d = (byte)((Character.digit(c1, 16) << 4) + (Character.digit(c2, 16)));
-            buf[bufLen] = d;
+            if (i + 1 == len) {
+                throw new IllegalArgumentException(String.format("Input too short at offset %d", i));
+            }
+            var c2 = s.charAt(i + 1);
+            int d1 = (c1 < 128) ? HEX_VALUES[c1] : -1;
+            int d2 = (c2 < 128) ? HEX_VALUES[c2] : -1;
+            if ((d1 | d2) < 0) {
+                throw new IllegalArgumentException(String.format("Incorrect input character at offset %d", (d1 < 0) ? i : i + 1));
+            }
+            buf[bufLen] = (byte)((d1 << 4) | d2);
             ++bufLen;
+            i += 2;
         }
 
-        return copyOfRange(buf, 0, bufLen);
+        return buf;
     }
 
     public static String bytesToString(byte[] bytes) {
@@ -117,144 +256,25 @@ class Util {
             var tagBytes = b.getTag();
             var tagString = hexify(tagBytes);
 
-            // convert tag to int value
-            int tag = 0;
-            for (int i=0; i<tagBytes.length; i++) {
-                int x = tagBytes[i];
-                if (x < 0) {
-                    x += 256;
-                }
-                tag = tag*256 + x;
-            }
+            int tag = b.getPackedTag();
 
-            String name = null;
+            String name = getTagName(tag);
+            if (name == null) {
+                name = tagString;
+            }
             var value = b.getValue();
-            String displayValue = Util.hexify(value);
+            String displayValue;
 
             switch (tag) {
-            case 0x56:
-                name = "Track 1 Data";
-                break;
-            case 0x57:
-                name = "Track 2 Equivalent Data";
-                break;
-            case 0x5A:
-                name = "Application Primary Account Number (PAN)";
-                break;
             case 0x5F20:
-                name = "Cardholder Name";
                 displayValue = bytesToString(value);
                 break;
             case 0x5F24:
-                name = "Application Expiration Date";
-                displayValue = bytesToDate(value);
-                break;
             case 0x5F25:
-                name = "Application Effective Date";
                 displayValue = bytesToDate(value);
                 break;
-            case 0x5F28:
-                name = "Issuer Country Code";
-                // displayValue = bytesToString(value);
-                break;
-            case 0x5F30:
-                name = "Service Code";
-                break;
-            case 0x5F34:
-                name = "Application Primary Account Number (PAN) Sequence Number";
-                break;
-            case 0x8C:
-                name = "Card Risk Management Data Object List 1 (CDOL1)";
-                break;
-            case 0x8D:
-                name = "Card Risk Management Data Object List 2 (CDOL2)";
-                break;
-            case 0x8E:
-                name = "Cardholder Verification Method (CVM) List";
-                break;
-            case 0x8F:
-                name = "Certification Authority Public Key Index";
-                break;
-            case 0x90:
-                name = "Issuer Public Key Certificate";
-                break;
-            case 0x92:
-                name = "Issuer Public Key Remainder";
-                break;
-            case 0x93:
-                name = "Signed Static Application Data";
-                break;
-            case 0x9F07:
-                name = "Application Usage Control";
-                break;
-            case 0x9F08:
-                name = "Application Version Number";
-                break;
-            case 0x9F0D:
-                name = "Issuer Action Code - Default";
-                break;
-            case 0x9F0E:
-                name = "Issuer Action Code - Denial";
-                break;
-            case 0x9F0F:
-                name = "Issuer Action Code - Online";
-                break;
-            case 0x9F1F:
-                name = "Track 1 Discretionary Data";
-                break;
-            case 0x9F32:
-                name = "Issuer Public Key Exponent";
-                break;
-            case 0x9F42:
-                name = "Application Currency Code";
-                break;
-            case 0x9F44:
-                name = "Application Currency Exponent";
-                break;
-            case 0x9F46:
-                name = "ICC Public Key Certificate";
-                break;
-            case 0x9F47:
-                name = "ICC Public Key Exponent";
-                break;
-            case 0x9F48:
-                name = "ICC Public Key Remainder";
-                break;
-            case 0x9F49:
-                name = "Dynamic Data Authentication Data Object List (DDOL)";
-                break;
-            case 0x9F4A:
-                name = "Static Data Authentication Tag List";
-                break;
-            case 0x9F62:
-                name = "PCVC3 (Track1)";
-                break;
-            case 0x9F63:
-                name = "PUNATC (Track1)";
-                break;
-            case 0x9F64:
-                name = "NATC (Track1)";
-                break;
-            case 0x9F65:
-                name = "PCVC3 (Track2)";
-                break;
-            case 0x9F66:
-                name = "Terminal Transaction Qualifiers (TTQ)";
-                break;
-            case 0x9F67:
-                name = "NATC (Track2)";
-                break;
-            case 0x9F68:
-                name = "Card Additional Processes";
-                break;
-            case 0x9F6B:
-                name = "Track 2 Data/Card CVM Limit";
-                break;
-            case 0x9F6C:
-                name = "Card Transaction Qualifiers (CTQ)";
-                break;
             default:
-                name = hexify(tagBytes);
+                displayValue = hexify(value);
             }
 
             res.put(tagString, String.format("%s: %s", name, displayValue));
@@ -263,4 +283,124 @@ class Util {
         return res;
     }
 
+    /**
+     * Returns name of EMV data object.
+     * 
+     * @param  tag packed tag, see BerTlv.getPackedTag()
+     * @return     tag name or null if tag is unknown
+     */
+    public static String getTagName(int tag) {
+        switch (tag) {
+        case 0x4F:
+            return "Application Identifier (AID)";
+        case 0x50:
+            return "Application Label";
+        case 0x56:
+            return "Track 1 Data";
+        case 0x57:
+            return "Track 2 Equivalent Data";
+        case 0x5A:
+            return "Application Primary Account Number (PAN)";
+        case 0x5F20:
+            return "Cardholder Name";
+        case 0x5F24:
+            return "Application Expiration Date";
+        case 0x5F25:
+            return "Application Effective Date";
+        case 0x5F28:
+            return "Issuer Country Code";
+        case 0x5F2D:
+            return "Language Preference";
+        case 0x5F30:
+            return "Service Code";
+        case 0x5F34:
+            return "Application Primary Account Number (PAN) Sequence Number";
+        case 0x61:
+            return "Application Template";
+        case 0x6F:
+            return "File Control Information (FCI) Template";
+        case 0x70:
+            return "READ RECORD Response Message Template";
+        case 0x77:
+            return "Response Message Template Format 2";
+        case 0x80:
+            return "Response Message Template Format 1";
+        case 0x82:
+            return "Application Interchange Profile";
+        case 0x84:
+            return "Dedicated File (DF) Name";
+        case 0x88:
+            return "Short File Identifier (SFI)";
+        case 0x8C:
+            return "Card Risk Management Data Object List 1 (CDOL1)";
+        case 0x8D:
+            return "Card Risk Management Data Object List 2 (CDOL2)";
+        case 0x8E:
+            return "Cardholder Verification Method (CVM) List";
+        case 0x8F:
+            return "Certification Authority Public Key Index";
+        case 0x90:
+            return "Issuer Public Key Certificate";
+        case 0x92:
+            return "Issuer Public Key Remainder";
+        case 0x93:
+            return "Signed Static Application Data";
+        case 0x94:
+            return "Application File Locator (AFL)";
+        case 0x9F07:
+            return "Application Usage Control";
+        case 0x9F08:
+            return "Application Version Number";
+        case 0x9F0D:
+            return "Issuer Action Code - Default";
+        case 0x9F0E:
+            return "Issuer Action Code - Denial";
+        case 0x9F0F:
+            return "Issuer Action Code - Online";
+        case 0x9F1F:
+            return "Track 1 Discretionary Data";
+        case 0x9F32:
+            return "Issuer Public Key Exponent";
+        case 0x9F38:
+            return "Processing Options Data Object List (PDOL)";
+        case 0x9F42:
+            return "Application Currency Code";
+        case 0x9F44:
+            return "Application Currency Exponent";
+        case 0x9F46:
+            return "ICC Public Key Certificate";
+        case 0x9F47:
+            return "ICC Public Key Exponent";
+        case 0x9F48:
+            return "ICC Public Key Remainder";
+        case 0x9F49:
+            return "Dynamic Data Authentication Data Object List (DDOL)";
+        case 0x9F4A:
+            return "Static Data Authentication Tag List";
+        case 0x9F62:
+            return "PCVC3 (Track1)";
+        case 0x9F63:
+            return "PUNATC (Track1)";
+        case 0x9F64:
+            return "NATC (Track1)";
+        case 0x9F65:
+            return "PCVC3 (Track2)";
+        case 0x9F66:
+            return "Terminal Transaction Qualifiers (TTQ)";
+        case 0x9F67:
+            return "NATC (Track2)";
+        case 0x9F68:
+            return "Card Additional Processes";
+        case 0x9F6B:
+            return "Track 2 Data/Card CVM Limit";
+        case 0x9F6C:
+            return "Card Transaction Qualifiers (CTQ)";
+        case 0xA5:
+            return "File Control Information (FCI) Proprietary Template";
+        case 0xBF0C:
+            return "File Control Information (FCI) Issuer Discretionary Data";
+        }
+        return null;
+    }
+
 }
\ No newline at end of file
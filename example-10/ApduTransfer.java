@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.io.ByteArrayOutputStream;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+
+/**
+ * Transfer of command data and responses longer than short APDUs allow.
+ *
+ * Depending on card capabilities (ISO/IEC 7816-4, section "8.1.1.2.7 Card
+ * capabilities", third software function byte) commands are sent as:
+ *
+ *     extended length    Lc up to 65535 and Le up to 65536 bytes in one command
+ *     command chaining   data is split into 255 bytes parts, all but the last
+ *                        one have CLA bit 0x10 set
+ *     short APDUs        data up to 255 bytes, responses longer than 256 bytes
+ *                        are read by several commands (readBinary()) or with
+ *                        GET RESPONSE by the PC/SC provider
+ *
+ * Capabilities are taken from COMPACT-TLV object 7 of ATR historical bytes by
+ * forCard(). Extended length is used with T=1 only: T=0 would need ENVELOPE.
+ */
+class ApduTransfer {
+    public static final int SHORT_MAX_DATA = 255;
+    public static final int SHORT_MAX_NE = 256;
+    public static final int EXTENDED_MAX_DATA = 65535;
+    public static final int EXTENDED_MAX_NE = 65536;
+
+    // bits of the third byte of card capabilities
+    private static final int CAPABILITY_CHAINING = 0x80;
+    private static final int CAPABILITY_EXTENDED = 0x40;
+
+    // class byte bit of interindustry commands marking not the last command of a chain
+    private static final int CLA_CHAINING = 0x10;
+
+    private final CardChannel channel;
+    private final boolean extendedLength;
+    private final boolean chaining;
+    private long exchanges = 0;
+
+
+    /**
+     * @param channel        card channel
+     * @param extendedLength true if card supports extended Lc and Le
+     * @param chaining       true if card supports command chaining
+     */
+    public ApduTransfer(CardChannel channel, boolean extendedLength, boolean chaining) {
+        this.channel = channel;
+        this.extendedLength = extendedLength;
+        this.chaining = chaining;
+    }
+
+    /**
+     * Create transfer for the basic channel of the card with capabilities
+     * advertised in its ATR.
+     */
+    public static ApduTransfer forCard(Card card) {
+        int capabilities = getCapabilities(card.getATR().getHistoricalBytes());
+        boolean extended = (capabilities & CAPABILITY_EXTENDED) != 0 && card.getProtocol().equals("T=1");
+        boolean chaining = (capabilities & CAPABILITY_CHAINING) != 0;
+        return new ApduTransfer(card.getBasicChannel(), extended, chaining);
+    }
+
+    /**
+     * Returns third byte of card capabilities object of historical bytes
+     * (command chaining, extended Lc and Le, logical channels), 0 if historical
+     * bytes aren't COMPACT-TLV or the object is missing.
+     */
+    public static int getCapabilities(byte[] historicalBytes) {
+        if (historicalBytes.length == 0) {
+            return 0;
+        }
+        try {
+            var objects = new CompactTlv(historicalBytes);
+            while (objects.next()) {
+                if (objects.getTagNumber() == 7 && objects.getValueLength() >= 3) {
+                    return historicalBytes[objects.getValueOffset() + 2] & 0xFF;
+                }
+            }
+        } catch (CompactTlv.ParsingException e) {
+            // proprietary or broken historical bytes advertise nothing
+        }
+        return 0;
+    }
+
+    public boolean isExtendedLength() {
+        return extendedLength;
+    }
+
+    public boolean isChaining() {
+        return chaining;
+    }
+
+    /**
+     * Returns maximum number of response data bytes of a single command.
+     */
+    public int getMaxNe() {
+        return extendedLength ? EXTENDED_MAX_NE : SHORT_MAX_NE;
+    }
+
+    /**
+     * Returns number of commands sent to the card.
+     */
+    public long getExchanges() {
+        return exchanges;
+    }
+
+    /**
+     * Send command with data of any length supported by the card: in one
+     * extended or short command or in a chain of short commands.
+     * 
+     * @param  cla  class byte
+     * @param  ins  instruction byte
+     * @param  p1   parameter byte 1
+     * @param  p2   parameter byte 2
+     * @param  data command data, may be empty
+     * @param  ne   maximum number of expected response bytes, 0 if none; limited by getMaxNe()
+     * @return      response of the last command
+     * @throws CardException if card operation failed or a chained command was rejected
+     * @throws IllegalArgumentException if data is too long for the card capabilities
+     */
+    public ResponseAPDU transmit(int cla, int ins, int p1, int p2, byte[] data, int ne)
+        throws CardException
+    {
+        ne = Math.min(ne, getMaxNe());
+        if (data.length <= SHORT_MAX_DATA || (extendedLength && data.length <= EXTENDED_MAX_DATA)) {
+            return send(new CommandAPDU(cla, ins, p1, p2, data, ne));
+        }
+        if (!chaining) {
+            throw new IllegalArgumentException(String.format(
+                "Command data of %d bytes needs %s, card doesn't support it", data.length,
+                extendedLength ? "command chaining" : "extended length or command chaining"));
+        }
+
+        // all but the last part must be accepted with 9000, response is expected for the last one only
+        int partLength = extendedLength ? EXTENDED_MAX_DATA : SHORT_MAX_DATA;
+        int offset = 0;
+        while (data.length - offset > partLength) {
+            var answer = send(new CommandAPDU(cla | CLA_CHAINING, ins, p1, p2, data, offset, partLength));
+            if (answer.getSW() != 0x9000) {
+                return answer;
+            }
+            offset += partLength;
+        }
+        return send(new CommandAPDU(cla, ins, p1, p2, data, offset, data.length - offset, ne));
+    }
+
+    /**
+     * Read "length" bytes of the current transparent EF starting at "offset"
+     * (READ BINARY with offset in P1-P2) using as few commands as card allows.
+     * 
+     * @param  offset data offset, up to 0x7FFF
+     * @param  length number of bytes to read
+     * @return        read bytes, shorter than "length" if the file ends earlier
+     * @throws CardException if card operation failed or READ BINARY was rejected
+     */
+    public byte[] readBinary(int offset, int length)
+        throws CardException
+    {
+        var out = new ByteArrayOutputStream(length);
+        while (out.size() < length) {
+            int p = offset + out.size();
+            if (p > 0x7FFF) {
+                throw new IllegalArgumentException(String.format("Offset %d doesn't fit into P1-P2", p));
+            }
+            int ne = Math.min(length - out.size(), getMaxNe());
+            var answer = send(new CommandAPDU(0x00, 0xB0, p >> 8, p & 0xFF, ne));
+            if (answer.getSW() == 0x6B00 || answer.getSW() == 0x6282) {
+                // offset beyond or end of file reached
+                out.write(answer.getData(), 0, answer.getNr());
+                break;
+            }
+            if (answer.getSW() != 0x9000) {
+                throw new CardException(String.format("READ BINARY at offset %d failed: %04X", p, answer.getSW()));
+            }
+            if (answer.getNr() == 0) {
+                break;
+            }
+            out.write(answer.getData(), 0, answer.getNr());
+        }
+        return out.toByteArray();
+    }
+
+    private ResponseAPDU send(CommandAPDU command)
+        throws CardException
+    {
+        exchanges++;
+        return channel.transmit(command);
+    }
+}
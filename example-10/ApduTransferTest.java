@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+
+// Tests of ApduTransfer over scripted channel, no card is needed.
+class ApduTransferTest {
+    public static void main(String[] args) {
+        startTest(1);
+        // command chaining: 255 bytes parts, CLA 0x10 on all but the last one
+        try {
+            var data = new byte[600];
+            var card = new ScriptedChannel("90 00", "90 00", "01 02 90 00");
+            var transfer = new ApduTransfer(card, false, true);
+            var answer = transfer.transmit(0x00, 0xDA, 0x01, 0x02, data, 2);
+            boolean passed = answer.getSW() == 0x9000 && answer.getNr() == 2
+                && transfer.getExchanges() == 3
+                && card.sent.size() == 3
+                && card.sent.get(0).startsWith("10 DA 01 02 FF 00 00") && card.sent.get(0).length() == (5 + 255) * 3 - 1
+                && card.sent.get(1).startsWith("10 DA 01 02 FF 00 00") && card.sent.get(1).length() == (5 + 255) * 3 - 1
+                && card.sent.get(2).startsWith("00 DA 01 02 5A 00 00") && card.sent.get(2).endsWith(" 02")
+                && card.sent.get(2).length() == (5 + 90 + 1) * 3 - 1;
+
+            // chain stops at the first rejected part
+            card = new ScriptedChannel("90 00", "6A 80");
+            transfer = new ApduTransfer(card, false, true);
+            answer = transfer.transmit(0x00, 0xDA, 0x01, 0x02, data, 0);
+            passed = passed && answer.getSW() == 0x6A80 && card.sent.size() == 2;
+
+            // neither chaining nor extended length
+            try {
+                new ApduTransfer(card, false, false).transmit(0x00, 0xDA, 0x01, 0x02, data, 0);
+                passed = false;
+            } catch (IllegalArgumentException e) {
+            }
+            System.out.println(passed ? "PASSED" : "FAILED");
+        } catch (CardException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(2);
+        // extended Lc and Le: "00" and two bytes each, Le 65536 is "00 00"
+        try {
+            var data = new byte[300];
+            var card = new ScriptedChannel("90 00", "90 00");
+            var transfer = new ApduTransfer(card, true, false);
+            transfer.transmit(0x00, 0xDA, 0x01, 0x02, data, 1000);
+            transfer.transmit(0x00, 0xCA, 0x01, 0x02, new byte[0], 100000);
+            boolean passed = transfer.getMaxNe() == 65536
+                && card.sent.get(0).startsWith("00 DA 01 02 00 01 2C 00 00") && card.sent.get(0).endsWith(" 00 03 E8")
+                && card.sent.get(0).length() == (4 + 3 + 300 + 2) * 3 - 1
+                && card.sent.get(1).equals("00 CA 01 02 00 00 00");
+            System.out.println(passed ? "PASSED" : "FAILED");
+        } catch (CardException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(3);
+        // readBinary() split by Le the card allows, stops at the end of file
+        try {
+            var card = new ScriptedChannel(bytes(256) + " 90 00", bytes(256) + " 90 00", bytes(100) + " 62 82");
+            var transfer = new ApduTransfer(card, false, false);
+            var file = transfer.readBinary(0, 1000);
+            boolean passed = file.length == 612
+                && card.sent.equals(Arrays.asList("00 B0 00 00 00", "00 B0 01 00 00", "00 B0 02 00 00"));
+
+            card = new ScriptedChannel(bytes(1000) + " 90 00");
+            transfer = new ApduTransfer(card, true, false);
+            file = transfer.readBinary(0, 1000);
+            passed = passed && file.length == 1000
+                && card.sent.equals(Arrays.asList("00 B0 00 00 00 03 E8"));
+
+            card = new ScriptedChannel("69 82");
+            try {
+                new ApduTransfer(card, false, false).readBinary(0, 10);
+                passed = false;
+            } catch (CardException e) {
+            }
+            System.out.println(passed ? "PASSED" : "FAILED");
+        } catch (CardException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(4);
+        // capabilities from ATR: third byte of COMPACT-TLV object 7, extended length with T=1 only
+        {
+            // historical bytes "80 73 00 00 C0": chaining and extended length
+            var capable = "3B 85 80 01 80 73 00 00 C0 00";
+            var t1 = ApduTransfer.forCard(new StubCard(capable, "T=1"));
+            var t0 = ApduTransfer.forCard(new StubCard(capable, "T=0"));
+            // historical bytes "80 31 C0": card service data only
+            var missing = ApduTransfer.forCard(new StubCard("3B 83 80 01 80 31 C0 00", "T=1"));
+            // no historical bytes
+            var empty = ApduTransfer.forCard(new StubCard("3B 00", "T=1"));
+            boolean passed = t1.isExtendedLength() && t1.isChaining()
+                && !t0.isExtendedLength() && t0.isChaining() && t0.getMaxNe() == 256
+                && !missing.isExtendedLength() && !missing.isChaining()
+                && !empty.isExtendedLength() && !empty.isChaining()
+                && ApduTransfer.getCapabilities(Util.toByteArray("80 73 00 00 C0")) == 0xC0
+                // unsupported category, object longer than historical bytes
+                && ApduTransfer.getCapabilities(Util.toByteArray("10 73 00 00 C0")) == 0
+                && ApduTransfer.getCapabilities(Util.toByteArray("80 73 00 00")) == 0;
+            System.out.println(passed ? "PASSED" : "FAILED");
+        }
+    }
+
+    // every test starts with separator and its number
+    private static void startTest(int number) {
+        System.out.println("--------------------");
+        System.out.printf("Test %d%n", number);
+    }
+
+    // hex string of "length" bytes
+    private static String bytes(int length) {
+        return Util.hexify(new byte[length]);
+    }
+
+
+    /**
+     * Channel replaying recorded responses and recording sent commands.
+     */
+    static class ScriptedChannel extends CardChannel {
+        final ArrayList<String> sent = new ArrayList<String>();
+        private final ArrayDeque<byte[]> responses = new ArrayDeque<byte[]>();
+
+        ScriptedChannel(String... responses) {
+            for (var r : responses) {
+                this.responses.add(Util.toByteArray(r));
+            }
+        }
+
+        @Override
+        public Card getCard() {
+            return null;
+        }
+
+        @Override
+        public int getChannelNumber() {
+            return 0;
+        }
+
+        @Override
+        public ResponseAPDU transmit(CommandAPDU command)
+            throws CardException
+        {
+            sent.add(Util.hexify(command.getBytes()));
+            if (responses.isEmpty()) {
+                // card removed
+                throw new CardException("No more responses");
+            }
+            return new ResponseAPDU(responses.remove());
+        }
+
+        @Override
+        public int transmit(ByteBuffer command, ByteBuffer response)
+            throws CardException
+        {
+            var bytes = new byte[command.remaining()];
+            command.get(bytes);
+            var r = transmit(new CommandAPDU(bytes)).getBytes();
+            response.put(r);
+            return r.length;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Card with given ATR and protocol, its basic channel has no responses.
+     */
+    static class StubCard extends Card {
+        private final ATR atr;
+        private final String protocol;
+        private final ScriptedChannel channel = new ScriptedChannel();
+
+        StubCard(String atr, String protocol) {
+            this.atr = new ATR(Util.toByteArray(atr));
+            this.protocol = protocol;
+        }
+
+        @Override
+        public ATR getATR() {
+            return atr;
+        }
+
+        @Override
+        public String getProtocol() {
+            return protocol;
+        }
+
+        @Override
+        public CardChannel getBasicChannel() {
+            return channel;
+        }
+
+        @Override
+        public CardChannel openLogicalChannel()
+            throws CardException
+        {
+            throw new CardException("Logical channels are not supported");
+        }
+
+        @Override
+        public void beginExclusive() {
+        }
+
+        @Override
+        public void endExclusive() {
+        }
+
+        @Override
+        public byte[] transmitControlCommand(int controlCode, byte[] command)
+            throws CardException
+        {
+            throw new CardException("Control commands are not supported");
+        }
+
+        @Override
+        public void disconnect(boolean reset) {
+        }
+    }
+}
@@ -25,6 +25,8 @@
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.ArrayList;
 
@@ -48,12 +50,23 @@ public class BerTlv {
         }
     }
 
+    public static class ConstraintException extends Exception {
+        public ConstraintException(String message) {
+            super(message);
+        }
+    }
+
+    // longest value of encoded objects, the parser accepts at most 3 length bytes "83 xx xx xx"
+    public static final int MAX_VALUE_LENGTH = 0xFFFFFF;
+
     private final byte[] tag;
     private final Encoding encoding;
     private final TagClass tagClass;
 
-    // primitive value
-    private final byte[] value;
+    // primitive value, stored as (offset, length) view into backing buffer
+    private final byte[] buffer;
+    private final int valueOffset;
+    private final int valueLength;
 
     // constructed value parts
     private final List<BerTlv> parts;
@@ -63,7 +76,9 @@ public class BerTlv {
     public BerTlv(byte[] tag, List<BerTlv> parts) {
         this.tag = tag;
         this.parts = parts;
-        this.value = null;
+        this.buffer = null;
+        this.valueOffset = 0;
+        this.valueLength = 0;
 
         this.encoding = Encoding.CONSTRUCTED;
         this.tagClass = getClassFromTag(tag);
@@ -71,9 +86,17 @@ public class BerTlv {
 
     // primitive value constructor
     public BerTlv(byte[] tag, byte[] value) {
+        this(tag, value, 0, value.length);
+    }
+
+
+    // primitive value constructor, value is a view into "buffer", no bytes are copied
+    BerTlv(byte[] tag, byte[] buffer, int valueOffset, int valueLength) {
         this.tag = tag;
         this.parts = null;
-        this.value = value;
+        this.buffer = buffer;
+        this.valueOffset = valueOffset;
+        this.valueLength = valueLength;
 
         this.encoding = Encoding.PRIMITIVE;
         this.tagClass = getClassFromTag(tag);
@@ -87,8 +110,33 @@ public class BerTlv {
         return encoding;
     }
 
+    /**
+     * Returns copy of the primitive value, null for CONSTRUCTED objects.
+     * 
+     * @return value bytes
+     */
     public byte[] getValue() {
-        return value;
+        if (this.encoding != Encoding.PRIMITIVE) {
+            return null;
+        }
+        return Util.copyArray(buffer, valueOffset, valueLength);
+    }
+
+    /**
+     * Returns read-only view of the primitive value without copying it,
+     * null for CONSTRUCTED objects.
+     * 
+     * @return value view, position is 0 and limit is value length
+     */
+    public ByteBuffer getValueView() {
+        if (this.encoding != Encoding.PRIMITIVE) {
+            return null;
+        }
+        return ByteBuffer.wrap(buffer, valueOffset, valueLength).slice().asReadOnlyBuffer();
+    }
+
+    public int getValueLength() {
+        return valueLength;
     }
 
     public boolean tagEquals(String tagHex) {
@@ -96,21 +144,90 @@ public class BerTlv {
     }
 
 
-    // /**
-    //  * Add new BerTlv part to constructed
-    //  * 
-    //  * @param  part [description]
-    //  * @return      [description]
-    //  */
-    // public BerTlv addPart(BerTlv part)
-    //     throws ConstraintException
-    // {
-    //     return this;
-    // }
+    /**
+     * Add new BerTlv part to constructed object.
+     * 
+     * @param  part part to append
+     * @return      this object
+     * @throws ConstraintException if this object is PRIMITIVE
+     */
+    public BerTlv addPart(BerTlv part)
+        throws ConstraintException
+    {
+        if (this.encoding != Encoding.CONSTRUCTED) {
+            throw new ConstraintException("Only CONSTRUCTED objects have parts.");
+        }
+        parts.add(part);
+        return this;
+    }
+
+
+    /**
+     * Returns size of the object encoding, i.e. tag, length and value bytes.
+     * 
+     * @return encoded length
+     * @throws IllegalStateException if some value is longer than MAX_VALUE_LENGTH
+     */
+    public int getEncodedLength() {
+        int length = getEncodedValueLength();
+        return tag.length + lengthFieldSize(length) + length;
+    }
+
+
+    /**
+     * Encode object into a new bytes array.
+     * 
+     * @return encoded object
+     * @throws IllegalStateException if some value is longer than MAX_VALUE_LENGTH
+     */
+    public byte[] toBytes() {
+        var lengths = new int[countNodes()];
+        computeLengths(lengths, 0);
+        var res = new byte[tag.length + lengthFieldSize(lengths[0]) + lengths[0]];
+        writeEncoding(ByteBuffer.wrap(res), lengths, 0);
+        return res;
+    }
+
+
+    /**
+     * Encode object into dst starting at offset.
+     * 
+     * @param  dst    target array
+     * @param  offset position of the first encoded byte
+     * @return        number of bytes written
+     * @throws BufferOverflowException if encoding doesn't fit into dst, nothing is written then
+     * @throws IllegalStateException if some value is longer than MAX_VALUE_LENGTH
+     */
+    public int encode(byte[] dst, int offset) {
+        var buffer = ByteBuffer.wrap(dst, offset, dst.length - offset);
+        encode(buffer);
+        return buffer.position() - offset;
+    }
+
+
+    /**
+     * Encode object into dst at its current position. Value lengths of all nested
+     * objects are computed in one pass before writing.
+     * 
+     * @param  dst target buffer
+     * @throws BufferOverflowException if encoding doesn't fit into dst, nothing is written then
+     * @throws IllegalStateException if some value is longer than MAX_VALUE_LENGTH
+     */
+    public void encode(ByteBuffer dst) {
+        var lengths = new int[countNodes()];
+        computeLengths(lengths, 0);
+        if (dst.remaining() < tag.length + lengthFieldSize(lengths[0]) + lengths[0]) {
+            throw new BufferOverflowException();
+        }
+        writeEncoding(dst, lengths, 0);
+    }
 
 
     /**
      * Parse bytes into ONE BerTlv object ignoring remaining data if there are any.
+     *
+     * Primitive values of the resulting tree are views into "bytes", so the array
+     * must not be modified while the tree is in use.
      * 
      * @param  bytes            bytes array to parse
      * @return                  parsed BerTlv object, remaining bytes are ignored
@@ -119,7 +236,7 @@ public class BerTlv {
     public static BerTlv parseBytes(byte[] bytes)
         throws ParsingException
     {
-        Pair p = parseChunk(bytes);
+        Pair p = parseChunk(bytes, 0, bytes.length);
         return p.value;
     }
 
@@ -164,88 +281,89 @@ public class BerTlv {
 
 
     /**
-     * Parse one chunk of continuous data.
+     * Parse one chunk of continuous data located in bytes[offset..limit).
      * 
-     * @param  bytes            bytes array to parse
+     * @param  bytes            backing bytes array
+     * @param  offset           chunk start
+     * @param  limit            end of available data (exclusive)
      * @return                  Pair structure that contains size of processed data and resulting BerTlv object
      * @throws ParsingException
      */
-    private static Pair parseChunk(byte[] bytes)
+    private static Pair parseChunk(byte[] bytes, int offset, int limit)
         throws ParsingException
     {
-        // "bytes" MUST BE at least 2 bytes length
-        if (bytes.length < 2) {
+        // chunk MUST BE at least 2 bytes length
+        if (limit - offset < 2) {
             throw new ParsingException("Bytes array is too short");
         }
 
-        try {
-            int p = 0;
-
-            // extract tag bytes
-            byte[] tagBytes;
-            int v = bytes[0] & 0x1F;
-            if (v == 0x1F) {
-                // xxx1 1111, i.e. tag continues in later bytes
-                while (true) {
-                    p++;
-                    if (((bytes[p] >> 7) & 1) == 0) {
-                        break;
-                    }
-                }
-            }
-            tagBytes = Util.copyArray(bytes, 0, p+1);
-
-            // extract length bytes and length
-            p++;
-            byte[] lengthBytes = new byte[4];
-            int lengthBytesLen = 1;
-            int length = 0;
-
-            v = (bytes[p] >> 7) & 1;
-            if (v == 0) {
-                length = bytes[p] & 0x7F;
-            } else {
-                int localLen = bytes[p] & 0x7F;
-                lengthBytesLen += localLen;
-                if (lengthBytesLen > 4) {
-                    throw new ParsingException(String.format("Length value is too large: %d, byte: %02X", lengthBytesLen, bytes[p]));
+        int p = offset;
+
+        // extract tag bytes
+        byte[] tagBytes;
+        int v = bytes[p] & 0x1F;
+        if (v == 0x1F) {
+            // xxx1 1111, i.e. tag continues in later bytes
+            while (true) {
+                p++;
+                if (p >= limit) {
+                    throw new ParsingException("Premature end of bytes");
                 }
-                for (int i=0; i<localLen; i++) {
-                    int x = bytes[p+i+1];
-                    if (x < 0) {
-                        x += 256;
-                    }
-                    length = length*256 + x;
+                if (((bytes[p] >> 7) & 1) == 0) {
+                    break;
                 }
             }
-            p += lengthBytesLen;
-
-            BerTlv t = null;
-            if (((bytes[0] >> 5) & 1) == 1) {
-                // CONSTRUCTED
-                // parse chunks of data block until it depletes
-                ArrayList<BerTlv> parts = new ArrayList<BerTlv>(5);
-                byte[] remains = Util.copyArray(bytes, p, length);
-                while (true) {
-                    Pair chunk = parseChunk(remains);
-                    parts.add(chunk.value);
-                    if (remains.length == chunk.size) {
-                        break;
-                    }
-                    remains = Util.copyArray(remains, chunk.size, remains.length-chunk.size);
-                }
+        }
+        tagBytes = Util.copyArray(bytes, offset, p-offset+1);
+
+        // extract length bytes and length
+        p++;
+        if (p >= limit) {
+            throw new ParsingException("Premature end of bytes");
+        }
+        int lengthBytesLen = 1;
+        int length = 0;
 
-                t = new BerTlv(tagBytes, parts);
-            } else {
-                // PRIMITIVE
-                t = new BerTlv(tagBytes, Util.copyArray(bytes, p, length));
+        v = (bytes[p] >> 7) & 1;
+        if (v == 0) {
+            length = bytes[p] & 0x7F;
+        } else {
+            int localLen = bytes[p] & 0x7F;
+            lengthBytesLen += localLen;
+            if (lengthBytesLen > 4) {
+                throw new ParsingException(String.format("Length value is too large: %d, byte: %02X", lengthBytesLen, bytes[p]));
+            }
+            if (p + localLen >= limit) {
+                throw new ParsingException("Premature end of bytes");
+            }
+            for (int i=0; i<localLen; i++) {
+                length = length*256 + (bytes[p+i+1] & 0xFF);
             }
-            Pair pair = new Pair(p+length, t);
-            return pair;
+        }
+        p += lengthBytesLen;
 
-        } catch (ArrayIndexOutOfBoundsException e) {
+        int end = p + length;
+        if (end > limit) {
             throw new ParsingException("Premature end of bytes");
         }
+
+        BerTlv t = null;
+        if (((bytes[offset] >> 5) & 1) == 1) {
+            // CONSTRUCTED
+            // parse chunks of data block in place until it depletes
+            ArrayList<BerTlv> parts = new ArrayList<BerTlv>(5);
+            while (p < end) {
+                Pair chunk = parseChunk(bytes, p, end);
+                parts.add(chunk.value);
+                p += chunk.size;
+            }
+
+            t = new BerTlv(tagBytes, parts);
+        } else {
+            // PRIMITIVE
+            t = new BerTlv(tagBytes, bytes, p, length);
+        }
+        return new Pair(end-offset, t);
     }
 
     /**
@@ -259,7 +377,7 @@ public class BerTlv {
         if (encoding == Encoding.PRIMITIVE) {
             s = String.format("TAG: %s (PRIMITIVE)%nVALUE: %s", 
                 Util.hexify(tag), 
-                Util.hexify(value));
+                Util.hexify(getValue()));
         } else {
             // get representations of parts and indent them
             ArrayList<String> partStrings = new ArrayList<String>(parts.size());
@@ -283,6 +401,98 @@ public class BerTlv {
         return encoding == Encoding.CONSTRUCTED;
     }
 
+    private int getEncodedValueLength() {
+        if (encoding == Encoding.PRIMITIVE) {
+            return valueLength;
+        }
+        long length = 0;
+        for (BerTlv p : parts) {
+            length += p.getEncodedLength();
+        }
+        checkValueLength(length);
+        return (int)length;
+    }
+
+    // number of objects in this subtree
+    private int countNodes() {
+        int count = 1;
+        if (encoding == Encoding.CONSTRUCTED) {
+            for (BerTlv p : parts) {
+                count += p.countNodes();
+            }
+        }
+        return count;
+    }
+
+    // store value lengths of the subtree objects into "lengths" in pre-order,
+    // starting at index i; returns index next to the last subtree object
+    private int computeLengths(int[] lengths, int i) {
+        int next = i + 1;
+        if (encoding == Encoding.PRIMITIVE) {
+            lengths[i] = valueLength;
+        } else {
+            long length = 0;
+            for (BerTlv p : parts) {
+                int partIndex = next;
+                next = p.computeLengths(lengths, partIndex);
+                length += p.tag.length + lengthFieldSize(lengths[partIndex]) + lengths[partIndex];
+            }
+            // checked before narrowing, int would overflow on many large parts
+            checkValueLength(length);
+            lengths[i] = (int)length;
+        }
+        return next;
+    }
+
+    // write subtree using value lengths computed by computeLengths()
+    private int writeEncoding(ByteBuffer dst, int[] lengths, int i) {
+        dst.put(tag);
+        writeLength(dst, lengths[i]);
+        int next = i + 1;
+        if (encoding == Encoding.PRIMITIVE) {
+            dst.put(buffer, valueOffset, valueLength);
+        } else {
+            for (BerTlv p : parts) {
+                next = p.writeEncoding(dst, lengths, next);
+            }
+        }
+        return next;
+    }
+
+    // encoded length must be parseable back, parseChunk() accepts up to 3 length bytes
+    private static int lengthFieldSize(int length) {
+        if (length < 0x80) {
+            return 1;
+        } else if (length <= 0xFF) {
+            return 2;
+        } else if (length <= 0xFFFF) {
+            return 3;
+        } else {
+            checkValueLength(length);
+            return 4;
+        }
+    }
+
+    private static void checkValueLength(long length) {
+        if (length > MAX_VALUE_LENGTH) {
+            throw new IllegalStateException(String.format("Value of %d bytes exceeds %d bytes supported by the parser", length, MAX_VALUE_LENGTH));
+        }
+    }
+
+    private static void writeLength(ByteBuffer dst, int length) {
+        int size = lengthFieldSize(length);
+        if (size == 1) {
+            // short form
+            dst.put((byte)length);
+            return;
+        }
+        // long form: 0x80 + number of length bytes, then length bytes
+        dst.put((byte)(0x80 | (size - 1)));
+        for (int i=size-2; i>=0; i--) {
+            dst.put((byte)(length >> (i*8)));
+        }
+    }
+
     /**
      * We use this class internally to return both BerTlv object and consumed bytes array size.
      */
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Decoder of COMPACT-TLV data objects of historical bytes (ISO/IEC 7816-4).
+ *
+ * Every object is one byte with tag number in the high nibble and value length
+ * in the low nibble followed by the value, e.g. "31 80" is card service data
+ * (tag 0x43 in BER-TLV terms) with value "80". Supported category indicators
+ * (first historical byte) are:
+ *
+ *     0x80    COMPACT-TLV objects, status indicator, if any, is object 0x48
+ *     0x00    COMPACT-TLV objects followed by 3 mandatory status indicator bytes
+ *
+ * Decoder is a cursor over the original bytes: next() moves to the next object
+ * and getters return its tag and value location, nothing is copied or
+ * allocated. Cursor may be reused for other bytes with reset().
+ *
+ *     var objects = new CompactTlv(atr, historicalBytesOffset, historicalBytesLength);
+ *     while (objects.next()) {
+ *         int tag = objects.getTag();
+ *         ...
+ *     }
+ */
+class CompactTlv {
+    public static final int CATEGORY_STATUS_AT_END = 0x00;
+    public static final int CATEGORY_COMPACT_TLV = 0x80;
+
+    // length of status indicator at the end of CATEGORY_STATUS_AT_END bytes
+    private static final int STATUS_LENGTH = 3;
+
+    public static class ParsingException extends Exception {
+        public ParsingException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Receives objects from forEach().
+     */
+    public interface Visitor {
+        void object(int tag, byte[] bytes, int valueOffset, int valueLength);
+    }
+
+    private byte[] bytes;
+    private int category;
+    // end of objects, status indicator bytes (if any) start here
+    private int limit;
+    private int p;
+
+    // current object
+    private int tag;
+    private int valueOffset;
+    private int valueLength;
+
+
+    /**
+     * @param  historicalBytes  historical bytes including category indicator
+     * @throws ParsingException if category indicator isn't supported
+     */
+    public CompactTlv(byte[] historicalBytes)
+        throws ParsingException
+    {
+        reset(historicalBytes, 0, historicalBytes.length);
+    }
+
+    /**
+     * @param  bytes            bytes containing historical bytes, e.g. whole ATR
+     * @param  offset           category indicator offset
+     * @param  length           historical bytes length (K)
+     * @throws ParsingException if category indicator isn't supported
+     */
+    public CompactTlv(byte[] bytes, int offset, int length)
+        throws ParsingException
+    {
+        reset(bytes, offset, length);
+    }
+
+
+    /**
+     * Start decoding other historical bytes.
+     * 
+     * @param  bytes            bytes containing historical bytes, e.g. whole ATR
+     * @param  offset           category indicator offset
+     * @param  length           historical bytes length (K)
+     * @throws ParsingException if category indicator isn't supported
+     */
+    public void reset(byte[] bytes, int offset, int length)
+        throws ParsingException
+    {
+        if (offset < 0 || length < 0 || length > bytes.length - offset) {
+            throw new ParsingException("Historical bytes are out of bounds");
+        }
+        if (length == 0) {
+            throw new ParsingException("Historical bytes are empty");
+        }
+        category = bytes[offset] & 0xFF;
+        if (category == CATEGORY_COMPACT_TLV) {
+            limit = offset + length;
+        } else if (category == CATEGORY_STATUS_AT_END) {
+            if (length < STATUS_LENGTH + 1) {
+                throw new ParsingException("Status indicator is missing");
+            }
+            limit = offset + length - STATUS_LENGTH;
+        } else {
+            throw new ParsingException(String.format("Unsupported category indicator %02X", category));
+        }
+        this.bytes = bytes;
+        p = offset + 1;
+        tag = -1;
+        valueOffset = 0;
+        valueLength = 0;
+    }
+
+    /**
+     * Move to the next object.
+     * 
+     * @return                  false if there are no more objects
+     * @throws ParsingException if object value exceeds historical bytes
+     */
+    public boolean next()
+        throws ParsingException
+    {
+        if (p == limit) {
+            tag = -1;
+            return false;
+        }
+        int b = bytes[p] & 0xFF;
+        int length = b & 0xF;
+        if (length > limit - p - 1) {
+            throw new ParsingException(String.format("Object %02X at offset %d exceeds historical bytes", b, p));
+        }
+        tag = b >> 4;
+        valueOffset = p + 1;
+        valueLength = length;
+        p = valueOffset + length;
+        return true;
+    }
+
+    /**
+     * Decode all objects.
+     * 
+     * @param  bytes            bytes containing historical bytes, e.g. whole ATR
+     * @param  offset           category indicator offset
+     * @param  length           historical bytes length (K)
+     * @param  visitor          receives tag in BER-TLV form (e.g. 0x43) and value location of every object
+     * @throws ParsingException if historical bytes are malformed or category isn't supported
+     */
+    public static void forEach(byte[] bytes, int offset, int length, Visitor visitor)
+        throws ParsingException
+    {
+        var objects = new CompactTlv(bytes, offset, length);
+        while (objects.next()) {
+            visitor.object(objects.getTag(), bytes, objects.getValueOffset(), objects.getValueLength());
+        }
+    }
+
+    /**
+     * Returns category indicator, CATEGORY_COMPACT_TLV or CATEGORY_STATUS_AT_END.
+     */
+    public int getCategory() {
+        return category;
+    }
+
+    /**
+     * Returns tag of the current object in BER-TLV form, i.e. 0x40 + tag number, e.g. 0x43.
+     * 
+     * @throws IllegalStateException if there is no current object, i.e. next()
+     *                               wasn't called or returned false
+     */
+    public int getTag() {
+        if (tag == -1) {
+            throw new IllegalStateException("No current object");
+        }
+        return 0x40 + tag;
+    }
+
+    /**
+     * Returns tag number of the current object, i.e. high nibble of its first
+     * byte, -1 if there is no current object.
+     */
+    public int getTagNumber() {
+        return tag;
+    }
+
+    /**
+     * Returns offset of the current object value in bytes.
+     */
+    public int getValueOffset() {
+        return valueOffset;
+    }
+
+    /**
+     * Returns length of the current object value, i.e. low nibble of its first byte.
+     */
+    public int getValueLength() {
+        return valueLength;
+    }
+
+    /**
+     * Returns offset of 3 status indicator bytes following the objects,
+     * -1 if category has no such bytes (status may be in object 0x48 then).
+     */
+    public int getStatusOffset() {
+        return (category == CATEGORY_STATUS_AT_END) ? limit : -1;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2019, Sergey Stolyarov <sergei@regolit.com>
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the <organization> nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+// Tests of CompactTlv decoder.
+class CompactTlvTest {
+    public static void main(String[] args) {
+        startTest(1);
+        // category 0x80: objects only, status indicator is object 0x48
+        try {
+            var bytes = Util.toByteArray("80 31 C0 73 00 00 C0 82 90 00");
+            var objects = new CompactTlv(bytes);
+            var found = new ArrayList<String>();
+            while (objects.next()) {
+                found.add(String.format("%02X:%s", objects.getTag(), Util.hexify(bytes, objects.getValueOffset(), objects.getValueLength())));
+            }
+            boolean passed = found.equals(Arrays.asList("43:C0", "47:00 00 C0", "48:90 00"))
+                && objects.getCategory() == CompactTlv.CATEGORY_COMPACT_TLV
+                && objects.getStatusOffset() == -1
+                && objects.getTagNumber() == -1
+                && !objects.next();
+            System.out.println(passed ? "PASSED" : "FAILED");
+        } catch (CompactTlv.ParsingException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(2);
+        // category 0x00: objects followed by 3 status bytes, historical bytes in the middle of ATR
+        try {
+            var atr = Util.toByteArray("3B 86 80 01 00 31 C0 05 90 00 00");
+            var found = new ArrayList<String>();
+            CompactTlv.forEach(atr, 4, 6, (tag, bytes, offset, length) ->
+                found.add(String.format("%02X:%s", tag, Util.hexify(bytes, offset, length))));
+            var objects = new CompactTlv(atr, 4, 6);
+            boolean passed = found.equals(Arrays.asList("43:C0"))
+                && objects.next() && objects.getTag() == 0x43 && objects.getValueOffset() == 6
+                && !objects.next()
+                && objects.getCategory() == CompactTlv.CATEGORY_STATUS_AT_END
+                && objects.getStatusOffset() == 7;
+
+            // cursor reused for other bytes
+            objects.reset(Util.toByteArray("80 41 7F"), 0, 3);
+            passed = passed && objects.next() && objects.getTag() == 0x44 && objects.getValueLength() == 1;
+            System.out.println(passed ? "PASSED" : "FAILED");
+        } catch (CompactTlv.ParsingException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(3);
+        // no current object
+        try {
+            var objects = new CompactTlv(Util.toByteArray("80 31 C0"));
+            boolean passed = true;
+            try {
+                objects.getTag();
+                passed = false;
+            } catch (IllegalStateException e) {
+            }
+            passed = passed && objects.next() && !objects.next();
+            try {
+                objects.getTag();
+                passed = false;
+            } catch (IllegalStateException e) {
+            }
+            System.out.println(passed ? "PASSED" : "FAILED");
+        } catch (CompactTlv.ParsingException e) {
+            System.out.printf("FAILED: %s%n", e.getMessage());
+        }
+
+        startTest(4);
+        // malformed historical bytes
+        {
+            var malformed = new String[] {
+                "",             // empty
+                "10 31 C0",     // unsupported category
+                "00 31 C0",     // status indicator missing
+                "80 33 C0 00",  // object longer than historical bytes
+                "00 32 C0 90 00 00",  // object runs into status indicator
+            };
+            int rejected = 0;
+            for (var hex : malformed) {
+                try {
+                    var objects = new CompactTlv(Util.toByteArray(hex));
+                    while (objects.next()) {
+                    }
+                } catch (CompactTlv.ParsingException e) {
+                    rejected++;
+                }
+            }
+            try {
+                new CompactTlv(Util.toByteArray("80 31 C0"), 1, 3);
+            } catch (CompactTlv.ParsingException e) {
+                rejected++;
+            }
+            System.out.println((rejected == malformed.length + 1) ? "PASSED" : "FAILED");
+        }
+    }
+
+    // every test starts with separator and its number
+    private static void startTest(int number) {
+        System.out.println("--------------------");
+        System.out.printf("Test %d%n", number);
+    }
+}
@@ -55,6 +55,11 @@ public class Example {
 
             parseAndPrintATR(card.getATR().getBytes());
 
+            // long commands and responses are sent the way card capabilities allow
+            var transfer = ApduTransfer.forCard(card);
+            System.out.printf("Extended length APDUs used: %s%n", transfer.isExtendedLength() ? "yes" : "no");
+            System.out.printf("Command chaining used: %s%n", transfer.isChaining() ? "yes" : "no");
+
             // obtain logical channel
             // CardChannel channel = card.getBasicChannel();
 
@@ -105,7 +110,6 @@ public class Example {
 
             var allInterfaceBytes = new ArrayList<InterfaceBytes>(33);
             int historicalBytesLength = 0;
-            var historicalBytes = new byte[0];
 
             // check format byte T0
             byte T0 = bytes[1];
@@ -151,8 +155,8 @@ public class Example {
                 Y = (TD >> 4) & 0xF;
             }
 
-            // copy historical bytes
-            historicalBytes = Util.copyArray(bytes, p, historicalBytesLength);
+            // historical bytes are read in place
+            int historicalBytesOffset = p;
 
             // read and check TCK (if present)
 
@@ -178,49 +182,24 @@ public class Example {
             }
 
             System.out.printf("Historical bytes length (K): %d%n", historicalBytesLength);
-            System.out.printf("Historical bytes (raw): %s%n", Util.hexify(historicalBytes));
+            System.out.printf("Historical bytes (raw): %s%n", Util.hexify(bytes, historicalBytesOffset, historicalBytesLength));
 
 
-            if (historicalBytes[0] == (byte)0x80) {
-                // parse all as COMPACT-TLV objects
-                var limit = historicalBytes.length;
-                p = 1;
-                while (true) {
-                    if (p == limit) {
-                        break;
-                    }
-                    if (p > limit) {
-                        throw new ATRParsingException("Incorrect historical bytes structure.");
-                    }
-                    int objLen = historicalBytes[p] & 0xF;
-                    int objTag = ((historicalBytes[p] >> 4) & 0xF) + 0x40;
-                    var objData = Util.copyArray(historicalBytes, p+1, objLen);
-                    printHistoricalBytesValue(objTag, objData);
-                    p += objLen + 1;
+            byte category = bytes[historicalBytesOffset];
+            if (category == (byte)0x80 || category == 0x0) {
+                // parse as COMPACT-TLV objects, optionally followed by status indicator bytes;
+                // values are printed from ATR bytes, nothing is copied
+                var objects = new CompactTlv(bytes, historicalBytesOffset, historicalBytesLength);
+                while (objects.next()) {
+                    printHistoricalBytesValue(objects.getTag(), bytes, objects.getValueOffset(), objects.getValueLength());
                 }
-            } else if (historicalBytes[0] == 0x0) {
-                // parse all as COMPACT-TLV except last three bytes
-                int limit = historicalBytes.length - 3;
-                p = 1;
-                while (true) {
-                    if (p == limit) {
-                        break;
-                    }
-                    if (p > limit) {
-                        throw new ATRParsingException("Incorrect historical bytes structure.");
+                if (objects.getStatusOffset() != -1) {
+                    System.out.println("  Status indicator bytes:");
+                    for (String x: getStatusIndicatorBytes(bytes, objects.getStatusOffset(), 3)) {
+                        System.out.printf("    %s%n", x);
                     }
-                    int objLen = historicalBytes[p] & 0xF;
-                    int objTag = ((historicalBytes[p] >> 4) & 0xF) + 0x40;
-                    var objData = Util.copyArray(historicalBytes, p+1, objLen);
-                    printHistoricalBytesValue(objTag, objData);
-                    p += objLen + 1;
                 }
-                System.out.println("  Status indicator bytes:");
-                for (String x: getStatusIndicatorBytes(Util.copyArray(historicalBytes, historicalBytes.length - 3, 3))) {
-                    System.out.printf("    %s%n", x);
-                }
-                // System.out.printf("  Status indicator bytes: %s%n", Util.hexify(Util.copyArray(historicalBytes, historicalBytes.length - 3, 3)));
-            } else if (historicalBytes[0] == 0x10) {
+            } else if (category == 0x10) {
                 // ???
             } else {
                 // show as is
@@ -232,11 +211,13 @@ public class Example {
             System.out.println("Failed to parse ATR: internal structure is broken");
         } catch (ATRParsingException e) {
             System.out.printf("Failed to parse ATR: %s%n", e.toString());
+        } catch (CompactTlv.ParsingException e) {
+            System.out.printf("Failed to parse historical bytes: %s%n", e.getMessage());
         }
     }
 
-    private static void printHistoricalBytesValue(int tag, byte[] value) {
-        System.out.printf("  TAG: %02X; DATA: %s%n", tag, Util.hexify(value));
+    private static void printHistoricalBytesValue(int tag, byte[] bytes, int offset, int length) {
+        System.out.printf("  TAG: %02X; DATA: %s%n", tag, Util.hexify(bytes, offset, length));
 
         // print additional details
         byte b;
@@ -248,7 +229,10 @@ public class Example {
         case 0x42:
             break;
         case 0x43:
-            b = value[0];
+            if (length == 0) {
+                break;
+            }
+            b = bytes[offset];
             System.out.println("    Card service data:");
             System.out.printf("      Application selection by full DF name: %s%n", intToBoolString(b & 0x80));
             System.out.printf("      Application selection by partial DF name: %s%n", intToBoolString(b & 0x40));
@@ -283,13 +267,13 @@ public class Example {
             break;
         case 0x47:
             System.out.println("    Card capabilities");
-            for (String x: getCapabilities(value)) {
+            for (String x: getCapabilities(bytes, offset, length)) {
                 System.out.printf("      %s%n", x);
             }
             break;
         case 0x48:
             System.out.println("    Status information:");
-            for (String x: getStatusIndicatorBytes(value)) {
+            for (String x: getStatusIndicatorBytes(bytes, offset, length)) {
                 System.out.printf("      %s%n", x);
             }
             break;
@@ -310,11 +294,11 @@ public class Example {
         }
     }
 
-    private static String[] getStatusIndicatorBytes(byte[] value) {
+    private static String[] getStatusIndicatorBytes(byte[] bytes, int offset, int length) {
         ArrayList<String> items = new ArrayList<String>(2);
 
-        if (value.length == 1 || value.length == 3) {
-            byte b = value[0];
+        if (length == 1 || length == 3) {
+            byte b = bytes[offset];
             String s = "";
             if (b == 0) {
                 s = "No information given";
@@ -333,19 +317,19 @@ public class Example {
             }
             items.add(String.format("LCS (life cycle status): %s", s));
         }
-        if (value.length == 2 || value.length == 3) {
-            items.add(String.format("Status word: %s", Util.hexify(Util.copyArray(value, value.length-2, 2))));
+        if (length == 2 || length == 3) {
+            items.add(String.format("Status word: %s", Util.hexify(bytes, offset+length-2, 2)));
         }
         return items.toArray(new String[0]);
     }
 
-    private static String[] getCapabilities(byte[] value) {
+    private static String[] getCapabilities(byte[] bytes, int offset, int length) {
         var items = new ArrayList<String>(5);
         String s;
         byte b;
 
-        if (value.length >= 1) {
-            b = value[0];
+        if (length >= 1) {
+            b = bytes[offset+0];
             ArrayList<String> sub = new ArrayList<String>(5);
             if ((b & 0x80) != 0) {
                 sub.add("by full DF name");
@@ -370,8 +354,8 @@ public class Example {
             items.add(String.format("Record identifier supported: %s", intToBoolString(b & 0x1)));
         }
 
-        if (value.length >= 2) {
-            b = value[1];
+        if (length >= 2) {
+            b = bytes[offset+1];
             items.add(String.format("EFs of TLV structure supported: %s", intToBoolString(b & 0x80)));
 
             s = "Behaviour of write functions: ";
@@ -403,8 +387,8 @@ public class Example {
             items.add(String.format("Data unit size in quartets: %d", b));
         }
 
-        if (value.length >= 3) {
-            b = value[2];
+        if (length >= 3) {
+            b = bytes[offset+2];
             items.add(String.format("Commands chaining: %s", intToBoolString(b & 0x80)));
             items.add(String.format("Extended Lc and Le fields: %s", intToBoolString(b & 0x40)));
 
@@ -25,9 +25,8 @@
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
-import static java.util.Arrays.copyOfRange;
+import java.util.Arrays;
 // import static java.lang.Math.max;
-import java.util.ArrayList;
 // import java.util.List;
 // import java.util.HashMap;
 
@@ -40,35 +39,82 @@ class Util {
             super(message);
         }
     }
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
     public static String hexify(byte[] bytes) {
-        ArrayList<String> bytesStrings = new ArrayList<String>(bytes.length);
-        for (byte b : bytes) {
-            bytesStrings.add(String.format("%02X", b));
+        return hexify(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Returns bytes[offset..offset+length) as hex digits separated by spaces,
+     * e.g. a part of ATR without copying it first.
+     */
+    public static String hexify(byte[] bytes, int offset, int length) {
+        if (length == 0) {
+            return "";
+        }
+        // two digits per byte, spaces between bytes
+        var chars = new char[length * 3 - 1];
+        int p = 0;
+        for (int i=offset; i<offset+length; i++) {
+            if (p > 0) {
+                chars[p++] = ' ';
+            }
+            chars[p++] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            chars[p++] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    // value of every ASCII hex digit, -1 for other chars
+    private static final byte[] HEX_VALUES = new byte[128];
+    static {
+        Arrays.fill(HEX_VALUES, (byte)-1);
+        for (int i=0; i<16; i++) {
+            HEX_VALUES["0123456789abcdef".charAt(i)] = (byte)i;
+            HEX_VALUES["0123456789ABCDEF".charAt(i)] = (byte)i;
         }
-        return String.join(" ", bytesStrings);
     }
 
+    /**
+     * Parse hex string like "00 A4 04 00", bytes may be separated by spaces.
+     * 
+     * @throws IllegalArgumentException if input has non-hex char or odd number of digits
+     */
     public static byte[] toByteArray(String s) {
         int len = s.length();
-        byte[] buf = new byte[len/2];
+        int digits = 0;
+        for (int i=0; i<len; i++) {
+            if (s.charAt(i) != ' ') {
+                digits++;
+            }
+        }
+        var buf = new byte[digits / 2];
         int bufLen = 0;
         int i = 0;
-        
+
         while (i < len) {
-            char c1 = s.charAt(i);
-            i++;
+            var c1 = s.charAt(i);
             if (c1 == ' ') {
+                i++;
                 continue;
             }
-            char c2 = s.charAt(i);
-            i++;
-
-            byte d = (byte)((Character.digit(c1, 16) << 4) + (Character.digit(c2, 16)));
-            buf[bufLen] = d;
+            if (i + 1 == len) {
+                throw new IllegalArgumentException(String.format("Input too short at offset %d", i));
+            }
+            var c2 = s.charAt(i + 1);
+            int d1 = (c1 < 128) ? HEX_VALUES[c1] : -1;
+            int d2 = (c2 < 128) ? HEX_VALUES[c2] : -1;
+            if ((d1 | d2) < 0) {
+                throw new IllegalArgumentException(String.format("Incorrect input character at offset %d", (d1 < 0) ? i : i + 1));
+            }
+            buf[bufLen] = (byte)((d1 << 4) | d2);
             ++bufLen;
+            i += 2;
         }
 
-        return copyOfRange(buf, 0, bufLen);
+        return buf;
     }
 
     public static String bytesToString(byte[] bytes) {